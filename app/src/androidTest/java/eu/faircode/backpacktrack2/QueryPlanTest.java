@@ -0,0 +1,163 @@
+package eu.faircode.backpacktrack2;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertTrue;
+
+// Fails when a query of the helper scans a table or an index or sorts with a temporary B-tree
+@RunWith(AndroidJUnit4.class)
+public class QueryPlanTest {
+    private static final String DB_NAME = "QueryPlanTest";
+    private static final long DAY = 24 * 3600 * 1000L;
+
+    private Context context;
+    private DatabaseHelper dh;
+    private boolean rtree;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getTargetContext();
+        context.deleteDatabase(DB_NAME);
+        dh = new DatabaseHelper(context, DB_NAME);
+
+        // An archived trackpoint, a current trackpoint and a waypoint, so that all branches are planned
+        SQLiteDatabase db = dh.getWritableDatabase();
+        long now = new Date().getTime();
+        long[] times = new long[]{0, now, now};
+        String[] names = new String[]{null, null, "Waypoint"};
+        for (int i = 0; i < times.length; i++)
+            db.execSQL("INSERT INTO location (time, provider, latitude, longitude, accuracy, name)" +
+                    " VALUES (?, 'gps', 0, 0, 10, ?)", new Object[]{times[i], names[i]});
+        Cursor cursor = db.rawQuery("SELECT COUNT(*) FROM sqlite_master WHERE type = 'table' AND name = 'location_rtree'", null);
+        try {
+            rtree = (cursor.moveToFirst() && cursor.getInt(0) > 0);
+            if (rtree)
+                db.execSQL("INSERT INTO location_rtree SELECT ID, latitude, latitude, longitude, longitude FROM location");
+        } finally {
+            cursor.close();
+        }
+        dh.archiveLocations(DAY, true);
+    }
+
+    @After
+    public void tearDown() {
+        if (dh != null)
+            dh.close();
+        context.deleteDatabase(DB_NAME);
+    }
+
+    @Test
+    public void plans() {
+        Map<String, DatabaseHelper.RecordedQuery> queries = record();
+        SQLiteDatabase db = dh.getReadableDatabase();
+
+        // Queries returning every row of a partial index may scan exactly that index
+        Map<String, String> allowed = new HashMap<String, String>();
+        if (dh.hasPartialIndexes(db)) {
+            allowed.put(DatabaseHelper.QUERY_WAYPOINTS, "idx_location_waypoint_name");
+            allowed.put(DatabaseHelper.QUERY_UNSENT, "idx_location_unsent");
+            allowed.put(DatabaseHelper.QUERY_UNSENT_COUNT, "idx_location_unsent");
+        }
+
+        List<String> problems = new ArrayList<String>();
+        for (Map.Entry<String, DatabaseHelper.RecordedQuery> entry : queries.entrySet()) {
+            String query = entry.getKey();
+            assertTrue("Not a read statement: " + query, query.trim().toUpperCase().startsWith("SELECT"));
+
+            String index = allowed.get(query);
+            boolean sorts = entry.getValue().sorts;
+            Cursor cursor = db.rawQuery("EXPLAIN QUERY PLAN " + query, entry.getValue().args);
+            try {
+                int colDetail = cursor.getColumnIndex("detail");
+                while (cursor.moveToNext()) {
+                    String detail = cursor.getString(colDetail);
+                    boolean scan = (detail.startsWith("SCAN ") &&
+                            !(index != null && detail.endsWith(" INDEX " + index)) &&
+                            !detail.matches(".* VIRTUAL TABLE INDEX \\d+:\\S+.*") &&
+                            !detail.matches("SCAN (SUBQUERY \\d+|\\(subquery-\\d+\\)).*"));
+                    boolean sort = (detail.contains("TEMP B-TREE") && !(sorts && detail.contains("ORDER BY")));
+                    if (scan || sort)
+                        problems.add(detail + ": " + query);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        assertTrue("Queries planned=" + queries.size(), queries.size() > 20);
+        assertTrue(problems.toString(), problems.isEmpty());
+    }
+
+    // Records the queries of the hot paths by running the helper methods
+    private Map<String, DatabaseHelper.RecordedQuery> record() {
+        Map<String, DatabaseHelper.RecordedQuery> queries = new LinkedHashMap<String, DatabaseHelper.RecordedQuery>();
+        long now = new Date().getTime();
+        DatabaseHelper.recordQueries(queries);
+        try {
+            // The last day and the first day, to include the archive
+            for (long from : new long[]{now - DAY, 0})
+                for (int i = 1; i <= 3; i++) {
+                    boolean trackpoints = ((i & 1) != 0);
+                    boolean waypoints = ((i & 2) != 0);
+                    dh.getLocations(from, from + DAY, trackpoints, waypoints, true, 0).close();
+                    dh.getLocations(from, from + DAY, trackpoints, waypoints, false, HistoryLoader.PAGE_SIZE).close();
+                    dh.getLocationsPage(from, from + DAY, Long.MAX_VALUE, trackpoints, waypoints, HistoryLoader.PAGE_SIZE).close();
+                    dh.getTrackSlice(from, from + DAY, trackpoints, waypoints, TrackSlice.POSITION);
+                }
+            for (int i = 1; i <= 3; i++)
+                dh.getLocationsSince(0, (i & 1) != 0, (i & 2) != 0).close();
+            dh.getLocation(1);
+            dh.findWaypointsWithin(0, 0, 1000).close();
+            if (rtree) {
+                dh.getLocationsInBox(-0.01, -0.01, 0.01, 0.01, true, true).close();
+                dh.getNearestLocations(0, 0, 1, true, true).close();
+            }
+            dh.getWaypoints().close();
+            dh.getUnsentLocations().close();
+            dh.getUnsentLocationCount();
+
+            dh.getActivityTypes(now, now).close();
+            dh.getActivityTypesPage(now, now, Long.MAX_VALUE, HistoryLoader.PAGE_SIZE).close();
+            dh.getActivityTypesSince(0).close();
+            dh.getActivityDurations(now, now, true).close();
+            dh.getActivityDurationsPage(now, now, Long.MAX_VALUE, HistoryLoader.PAGE_SIZE).close();
+            dh.getActivityLog(now, now, true).close();
+            dh.getActivityLogPage(now, now, Long.MAX_VALUE, HistoryLoader.PAGE_SIZE).close();
+            dh.getSteps(now, now, true).close();
+            dh.getStepsPage(now, now, Long.MAX_VALUE, HistoryLoader.PAGE_SIZE).close();
+            dh.getWeather(now, now, true).close();
+            dh.getWeatherPage(now, now, Long.MAX_VALUE, HistoryLoader.PAGE_SIZE).close();
+            dh.getWeatherSince(0).close();
+            dh.getAcquisitions(-1, now, 20).close();
+            dh.getAcquisitions(0, now, 20).close();
+        } finally {
+            DatabaseHelper.recordQueries(null);
+        }
+
+        // Queries of write paths, planned only
+        DatabaseHelper.RecordedQuery steps = new DatabaseHelper.RecordedQuery();
+        steps.args = new String[]{"0"};
+        queries.put(DatabaseHelper.QUERY_STEP_COUNT, steps);
+        DatabaseHelper.RecordedQuery continued = new DatabaseHelper.RecordedQuery();
+        continued.args = new String[]{"0", "0"};
+        queries.put(DatabaseHelper.QUERY_ACTIVITY_CONTINUED, continued);
+        queries.put(DatabaseHelper.QUERY_ACTIVITY_SEGMENT, continued);
+        return queries;
+    }
+}
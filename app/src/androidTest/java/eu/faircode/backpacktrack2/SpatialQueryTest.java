@@ -0,0 +1,205 @@
+package eu.faircode.backpacktrack2;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// Box and nearest location queries against a populated R*Tree, with part of the trackpoints archived
+@RunWith(AndroidJUnit4.class)
+public class SpatialQueryTest {
+    private static final String DB_NAME = "SpatialQueryTest";
+    private static final double EARTH_RADIUS = 6371000;
+    private static final int TRACKPOINTS = 500;
+    private static final int WAYPOINTS = 5;
+    private static final long ARCHIVE_BEFORE = 1009843200000L; // 2002-01-01
+
+    private Context context;
+    private DatabaseHelper dh;
+    private List<Point> points = new ArrayList<Point>();
+
+    private static class Point {
+        long id;
+        long time;
+        double latitude;
+        double longitude;
+        boolean waypoint;
+    }
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getTargetContext();
+        context.deleteDatabase(DB_NAME);
+        dh = new DatabaseHelper(context, DB_NAME);
+
+        SQLiteDatabase db = dh.getWritableDatabase();
+        Cursor cursor = db.rawQuery("SELECT COUNT(*) FROM sqlite_master WHERE type = 'table' AND name = 'location_rtree'", null);
+        try {
+            Assume.assumeTrue(cursor.moveToFirst() && cursor.getInt(0) > 0);
+        } finally {
+            cursor.close();
+        }
+
+        // Random points in a box of about one by one kilometer, a year before and a year after ARCHIVE_BEFORE
+        Random random = new Random(1);
+        SQLiteStatement location = db.compileStatement("INSERT INTO location" +
+                " (time, provider, latitude, longitude, accuracy, name) VALUES (?, 'gps', ?, ?, 10, ?)");
+        SQLiteStatement rtree = db.compileStatement("INSERT INTO location_rtree VALUES (?, ?, ?, ?, ?)");
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < TRACKPOINTS + WAYPOINTS; i++) {
+                Point point = new Point();
+                point.time = ARCHIVE_BEFORE + (long) ((random.nextDouble() - 0.5) * 2 * 365 * 24 * 3600 * 1000L);
+                point.latitude = 52 + random.nextDouble() * 0.01;
+                point.longitude = 5 + random.nextDouble() * 0.015;
+                point.waypoint = (i >= TRACKPOINTS);
+
+                location.clearBindings();
+                location.bindLong(1, point.time);
+                location.bindDouble(2, point.latitude);
+                location.bindDouble(3, point.longitude);
+                if (point.waypoint)
+                    location.bindString(4, "Waypoint " + i);
+                else
+                    location.bindNull(4);
+                point.id = location.executeInsert();
+
+                rtree.bindLong(1, point.id);
+                rtree.bindDouble(2, point.latitude);
+                rtree.bindDouble(3, point.latitude);
+                rtree.bindDouble(4, point.longitude);
+                rtree.bindDouble(5, point.longitude);
+                rtree.executeInsert();
+
+                points.add(point);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            location.close();
+            rtree.close();
+        }
+
+        assertTrue(dh.archiveLocations(ARCHIVE_BEFORE, true) > 0);
+    }
+
+    @After
+    public void tearDown() {
+        if (dh != null)
+            dh.close();
+        context.deleteDatabase(DB_NAME);
+    }
+
+    @Test
+    public void box() {
+        double south = 52.002;
+        double west = 5.003;
+        double north = 52.006;
+        double east = 5.009;
+        for (int i = 1; i <= 3; i++) {
+            boolean trackpoints = ((i & 1) != 0);
+            boolean waypoints = ((i & 2) != 0);
+
+            List<Long> expected = new ArrayList<Long>();
+            for (Point point : points)
+                if ((point.waypoint ? waypoints : trackpoints) &&
+                        point.latitude >= south && point.latitude <= north &&
+                        point.longitude >= west && point.longitude <= east)
+                    expected.add(point.id);
+            Collections.sort(expected);
+
+            List<Long> actual = new ArrayList<Long>();
+            long time = Long.MIN_VALUE;
+            Cursor cursor = dh.getLocationsInBox(south, west, north, east, trackpoints, waypoints);
+            try {
+                int colId = cursor.getColumnIndex("ID");
+                int colTime = cursor.getColumnIndex("time");
+                while (cursor.moveToNext()) {
+                    assertTrue("Ordered by time", cursor.getLong(colTime) >= time);
+                    time = cursor.getLong(colTime);
+                    actual.add(cursor.getLong(colId));
+                }
+            } finally {
+                cursor.close();
+            }
+            Collections.sort(actual);
+
+            assertTrue(expected.size() > 0 || !trackpoints);
+            assertEquals("trackpoints=" + trackpoints + " waypoints=" + waypoints, expected, actual);
+        }
+    }
+
+    @Test
+    public void nearest() {
+        // Inside the points, next to them and far away, so that the circle has to grow
+        double[][] centers = new double[][]{{52.005, 5.0075}, {52.02, 5.0}, {40.0, -3.0}};
+        for (double[] center : centers)
+            for (int k : new int[]{1, 10, 50})
+                for (int i = 1; i <= 3; i++) {
+                    boolean trackpoints = ((i & 1) != 0);
+                    boolean waypoints = ((i & 2) != 0);
+                    assertNearest(center[0], center[1], k, trackpoints, waypoints);
+                }
+    }
+
+    private void assertNearest(final double latitude, final double longitude, int k, boolean trackpoints, boolean waypoints) {
+        List<Point> candidates = new ArrayList<Point>();
+        for (Point point : points)
+            if (point.waypoint ? waypoints : trackpoints)
+                candidates.add(point);
+        Collections.sort(candidates, new Comparator<Point>() {
+            @Override
+            public int compare(Point p1, Point p2) {
+                return Double.compare(getDistance(latitude, longitude, p1), getDistance(latitude, longitude, p2));
+            }
+        });
+
+        List<Long> expected = new ArrayList<Long>();
+        for (int i = 0; i < Math.min(k, candidates.size()); i++)
+            expected.add(candidates.get(i).id);
+
+        List<Long> actual = new ArrayList<Long>();
+        double distance = 0;
+        Cursor cursor = dh.getNearestLocations(latitude, longitude, k, trackpoints, waypoints);
+        try {
+            int colId = cursor.getColumnIndex("ID");
+            int colDistance = cursor.getColumnIndex("distance");
+            while (cursor.moveToNext()) {
+                assertTrue("Nearest first", cursor.getDouble(colDistance) >= distance);
+                distance = cursor.getDouble(colDistance);
+                actual.add(cursor.getLong(colId));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        assertEquals("latitude=" + latitude + " longitude=" + longitude + " k=" + k +
+                " trackpoints=" + trackpoints + " waypoints=" + waypoints, expected, actual);
+    }
+
+    // Same equirectangular approximation as the query
+    private static double getDistance(double latitude, double longitude, Point point) {
+        double cos = Math.max(Math.cos(Math.toRadians(latitude)), 1e-6);
+        double k = Math.toRadians(1) * EARTH_RADIUS;
+        double dy = (point.latitude - latitude) * k;
+        double dx = (point.longitude - longitude) * k * cos;
+        return dy * dy + dx * dx;
+    }
+}
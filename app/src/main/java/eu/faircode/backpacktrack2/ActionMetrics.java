@@ -0,0 +1,278 @@
+package eu.faircode.backpacktrack2;
+
+import android.content.Context;
+import android.support.v4.util.AtomicFile;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Per action count, queue wait, execution latency histogram and wake lock hold time in hourly buckets
+public class ActionMetrics {
+    private static final String TAG = "BPT2.Metrics";
+
+    private static final String FILE = "action.metrics";
+    private static final int VERSION = 1;
+
+    private static final long BUCKET_MS = 3600 * 1000L;
+    private static final int MAX_BUCKETS = 48;
+    private static final long PERSIST_INTERVAL = 60 * 1000L;
+
+    // Upper bounds of the latency histogram in milliseconds, the last bin is open ended
+    public static final long[] LATENCY_BOUNDS = new long[]{10, 50, 100, 500, 1000, 5000, 30000};
+
+    // Prefix of the wake lock hold time of a lane as a whole
+    public static final String WAKELOCK = "wakelock:";
+
+    private static ActionMetrics mInstance = null;
+
+    public static class Stat {
+        public int count;
+        public long wait;
+        public long waitMax;
+        public long execute;
+        public long executeMax;
+        public long hold;
+        public int[] histogram = new int[LATENCY_BOUNDS.length + 1];
+
+        private void add(Stat other) {
+            count += other.count;
+            wait += other.wait;
+            waitMax = Math.max(waitMax, other.waitMax);
+            execute += other.execute;
+            executeMax = Math.max(executeMax, other.executeMax);
+            hold += other.hold;
+            for (int i = 0; i < histogram.length; i++)
+                histogram[i] += other.histogram[i];
+        }
+    }
+
+    // Bucket start -> action -> statistics
+    private TreeMap<Long, Map<String, Stat>> buckets = new TreeMap<>();
+    private AtomicFile file;
+    private long lastPersist = 0;
+
+    public static synchronized ActionMetrics getInstance(Context context) {
+        if (mInstance == null)
+            mInstance = new ActionMetrics(context.getApplicationContext());
+        return mInstance;
+    }
+
+    private ActionMetrics(Context context) {
+        file = new AtomicFile(new File(context.getFilesDir(), FILE));
+        restore();
+    }
+
+    // Durations in milliseconds
+    public synchronized void record(String action, long wait, long execute, long hold) {
+        Stat stat = getStat(action);
+        stat.count++;
+        stat.wait += wait;
+        stat.waitMax = Math.max(stat.waitMax, wait);
+        stat.execute += execute;
+        stat.executeMax = Math.max(stat.executeMax, execute);
+        stat.hold += hold;
+        stat.histogram[getBin(execute)]++;
+        persistDelayed();
+    }
+
+    public synchronized void recordWakeLock(String lane, long hold) {
+        Stat stat = getStat(WAKELOCK + lane);
+        stat.count++;
+        stat.hold += hold;
+        persistDelayed();
+    }
+
+    public synchronized void flush() {
+        persist();
+    }
+
+    public synchronized void clear() {
+        buckets.clear();
+        persist();
+    }
+
+    private Stat getStat(String action) {
+        long bucket = new Date().getTime() / BUCKET_MS * BUCKET_MS;
+        Map<String, Stat> stats = buckets.get(bucket);
+        if (stats == null) {
+            stats = new HashMap<>();
+            buckets.put(bucket, stats);
+            while (buckets.size() > MAX_BUCKETS)
+                buckets.remove(buckets.firstKey());
+        }
+
+        if (action == null)
+            action = "null";
+        Stat stat = stats.get(action);
+        if (stat == null) {
+            stat = new Stat();
+            stats.put(action, stat);
+        }
+        return stat;
+    }
+
+    private static int getBin(long latency) {
+        for (int i = 0; i < LATENCY_BOUNDS.length; i++)
+            if (latency <= LATENCY_BOUNDS[i])
+                return i;
+        return LATENCY_BOUNDS.length;
+    }
+
+    // Totals of all retained buckets, highest wake lock hold time first
+    public synchronized String getSummary() {
+        final Map<String, Stat> totals = new HashMap<>();
+        for (Map<String, Stat> stats : buckets.values())
+            for (Map.Entry<String, Stat> entry : stats.entrySet()) {
+                Stat total = totals.get(entry.getKey());
+                if (total == null) {
+                    total = new Stat();
+                    totals.put(entry.getKey(), total);
+                }
+                total.add(entry.getValue());
+            }
+
+        List<String> actions = new ArrayList<>(totals.keySet());
+        Collections.sort(actions, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                long ha = totals.get(a).hold;
+                long hb = totals.get(b).hold;
+                return (ha < hb ? 1 : (ha > hb ? -1 : 0));
+            }
+        });
+
+        StringBuilder sb = new StringBuilder();
+        if (buckets.size() > 0)
+            sb.append(SimpleDateFormat.getDateTimeInstance().format(new Date(buckets.firstKey()))).append("\n\n");
+        for (String action : actions) {
+            Stat stat = totals.get(action);
+            sb.append(action.replace("eu.faircode.backpacktrack2.", "")).append("\n");
+            sb.append(String.format(Locale.getDefault(), "  #%d hold %ds", stat.count, stat.hold / 1000));
+            if (!action.startsWith(WAKELOCK))
+                sb.append(String.format(Locale.getDefault(), " exec %d/%dms wait %d/%dms",
+                        stat.execute / Math.max(1, stat.count), stat.executeMax,
+                        stat.wait / Math.max(1, stat.count), stat.waitMax));
+            sb.append("\n");
+        }
+        return sb.toString();
+    }
+
+    public synchronized void writeCsv(Writer writer) throws IOException {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ", Locale.ROOT);
+
+        writer.write("bucket,action,count,wait_ms,wait_max_ms,execute_ms,execute_max_ms,hold_ms");
+        for (long bound : LATENCY_BOUNDS)
+            writer.write(",le_" + bound + "ms");
+        writer.write(",gt_" + LATENCY_BOUNDS[LATENCY_BOUNDS.length - 1] + "ms\n");
+
+        for (Map.Entry<Long, Map<String, Stat>> bucket : buckets.entrySet())
+            for (Map.Entry<String, Stat> entry : bucket.getValue().entrySet()) {
+                Stat stat = entry.getValue();
+                writer.write(format.format(new Date(bucket.getKey())));
+                writer.write("," + entry.getKey());
+                writer.write("," + stat.count);
+                writer.write("," + stat.wait);
+                writer.write("," + stat.waitMax);
+                writer.write("," + stat.execute);
+                writer.write("," + stat.executeMax);
+                writer.write("," + stat.hold);
+                for (int count : stat.histogram)
+                    writer.write("," + count);
+                writer.write("\n");
+            }
+    }
+
+    private void persistDelayed() {
+        long now = new Date().getTime();
+        if (now - lastPersist >= PERSIST_INTERVAL)
+            persist();
+    }
+
+    private void persist() {
+        lastPersist = new Date().getTime();
+        FileOutputStream fos = null;
+        try {
+            fos = file.startWrite();
+            DataOutputStream out = new DataOutputStream(fos);
+            out.writeInt(VERSION);
+            out.writeInt(LATENCY_BOUNDS.length + 1);
+            out.writeInt(buckets.size());
+            for (Map.Entry<Long, Map<String, Stat>> bucket : buckets.entrySet()) {
+                out.writeLong(bucket.getKey());
+                out.writeInt(bucket.getValue().size());
+                for (Map.Entry<String, Stat> entry : bucket.getValue().entrySet()) {
+                    Stat stat = entry.getValue();
+                    out.writeUTF(entry.getKey());
+                    out.writeInt(stat.count);
+                    out.writeLong(stat.wait);
+                    out.writeLong(stat.waitMax);
+                    out.writeLong(stat.execute);
+                    out.writeLong(stat.executeMax);
+                    out.writeLong(stat.hold);
+                    for (int count : stat.histogram)
+                        out.writeInt(count);
+                }
+            }
+            out.flush();
+            file.finishWrite(fos);
+        } catch (Throwable ex) {
+            Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+            if (fos != null)
+                file.failWrite(fos);
+        }
+    }
+
+    private void restore() {
+        if (!file.getBaseFile().exists())
+            return;
+
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(file.readFully()));
+            if (in.readInt() != VERSION || in.readInt() != LATENCY_BOUNDS.length + 1) {
+                Log.w(TAG, "Discarding metrics of other layout");
+                return;
+            }
+
+            int bucketCount = in.readInt();
+            for (int b = 0; b < bucketCount; b++) {
+                long bucket = in.readLong();
+                int statCount = in.readInt();
+                Map<String, Stat> stats = new HashMap<>();
+                for (int s = 0; s < statCount; s++) {
+                    String action = in.readUTF();
+                    Stat stat = new Stat();
+                    stat.count = in.readInt();
+                    stat.wait = in.readLong();
+                    stat.waitMax = in.readLong();
+                    stat.execute = in.readLong();
+                    stat.executeMax = in.readLong();
+                    stat.hold = in.readLong();
+                    for (int i = 0; i < stat.histogram.length; i++)
+                        stat.histogram[i] = in.readInt();
+                    stats.put(action, stat);
+                }
+                buckets.put(bucket, stats);
+            }
+            Log.i(TAG, "Restored buckets=" + buckets.size());
+        } catch (Throwable ex) {
+            Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+            buckets.clear();
+        }
+    }
+}
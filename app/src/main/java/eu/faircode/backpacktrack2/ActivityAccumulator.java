@@ -0,0 +1,314 @@
+package eu.faircode.backpacktrack2;
+
+import android.content.Context;
+import android.support.v4.util.AtomicFile;
+import android.util.Log;
+
+import com.google.android.gms.location.DetectedActivity;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Keeps activity durations and log segments in memory until they are flushed to the database;
+// the journal is written by the caller on a debounce, never on every added activity.
+// Durations being flushed carry a sequence number, so that replaying them after a crash is a no-op
+// for days the database already applied them to
+public class ActivityAccumulator {
+    private static final String TAG = "BPT2.Accumulator";
+
+    static final String JOURNAL = "activity.journal";
+    private static final int JOURNAL_VERSION = 2;
+
+    public static final String[] COLUMNS = new String[]{"still", "walking", "running", "onbicycle", "invehicle", "unknown"};
+    public static final int[] ACTIVITIES = new int[]{DetectedActivity.STILL, DetectedActivity.WALKING, DetectedActivity.RUNNING,
+            DetectedActivity.ON_BICYCLE, DetectedActivity.IN_VEHICLE, DetectedActivity.UNKNOWN};
+
+    // Day -> duration deltas per column
+    private Map<Long, long[]> durations = new LinkedHashMap<Long, long[]>();
+    private List<Segment> segments = new ArrayList<Segment>();
+    private long sequence = 0; // of the last flush
+    private Snapshot inflight = null; // durations of a flush not known to be committed
+    private boolean journaled = true;
+    private AtomicFile journal;
+
+    public static class Segment {
+        public long id; // -1 when not persisted yet
+        public long start;
+        public long finish;
+        public int activity;
+        public boolean lookup; // may continue a persisted segment
+        public boolean dirty;
+
+        private Segment copy() {
+            Segment copy = new Segment();
+            copy.id = id;
+            copy.start = start;
+            copy.finish = finish;
+            copy.activity = activity;
+            copy.lookup = lookup;
+            copy.dirty = dirty;
+            return copy;
+        }
+    }
+
+    // Copy of the pending changes, to flush without holding the accumulator
+    public static class Snapshot {
+        public long sequence;
+        public Map<Long, long[]> durations = new LinkedHashMap<Long, long[]>();
+        public List<Segment> segments = new ArrayList<Segment>();
+    }
+
+    public ActivityAccumulator(Context context, String name) {
+        journal = new AtomicFile(new File(context.getFilesDir(), name));
+        restore();
+    }
+
+    public static int getColumn(int activity) {
+        switch (activity) {
+            case DetectedActivity.STILL:
+                return 0;
+            case DetectedActivity.ON_FOOT:
+            case DetectedActivity.WALKING:
+                return 1;
+            case DetectedActivity.RUNNING:
+                return 2;
+            case DetectedActivity.ON_BICYCLE:
+                return 3;
+            case DetectedActivity.IN_VEHICLE:
+                return 4;
+            default:
+                return 5;
+        }
+    }
+
+    // Returns true when a new log segment was started
+    public synchronized boolean add(long day, long time, int activity, long duration) {
+        long[] delta = durations.get(day);
+        if (delta == null) {
+            delta = new long[COLUMNS.length];
+            durations.put(day, delta);
+        }
+        delta[getColumn(activity)] += duration;
+
+        boolean started;
+        Segment last = (segments.size() == 0 ? null : segments.get(segments.size() - 1));
+        if (last != null && last.activity == activity && last.finish == time) {
+            last.finish = time + duration;
+            last.dirty = true;
+            started = false;
+        } else {
+            Segment segment = new Segment();
+            segment.id = -1;
+            segment.start = time;
+            segment.finish = time + duration;
+            segment.activity = activity;
+            segment.lookup = (last == null);
+            segment.dirty = true;
+            segments.add(segment);
+            started = true;
+        }
+
+        journaled = false;
+        return started;
+    }
+
+    public synchronized boolean isDirty() {
+        if (inflight != null || durations.size() > 0)
+            return true;
+        for (Segment segment : segments)
+            if (segment.dirty)
+                return true;
+        return false;
+    }
+
+    // Sequences must keep increasing when the journal was lost, applied is the highest sequence in the database
+    public synchronized void ensureSequence(long applied) {
+        sequence = Math.max(sequence, applied);
+    }
+
+    // The pending durations move to the flush in progress under a new sequence,
+    // unless a previous flush was not confirmed, which is then retried with its own sequence
+    public synchronized Snapshot snapshot() {
+        if (inflight == null && durations.size() > 0) {
+            inflight = new Snapshot();
+            inflight.sequence = ++sequence;
+            inflight.durations = durations;
+            durations = new LinkedHashMap<Long, long[]>();
+            journaled = false;
+        }
+
+        Snapshot snapshot = new Snapshot();
+        if (inflight != null) {
+            snapshot.sequence = inflight.sequence;
+            for (Map.Entry<Long, long[]> entry : inflight.durations.entrySet())
+                snapshot.durations.put(entry.getKey(), entry.getValue().clone());
+        }
+        for (Segment segment : segments)
+            snapshot.segments.add(segment.copy());
+        return snapshot;
+    }
+
+    // Called after the snapshot was flushed successfully with the resulting IDs and starts,
+    // activity added in the meantime stays pending; flushes must not overlap
+    public synchronized void flushed(Snapshot snapshot, long[] ids, long[] starts) {
+        inflight = null;
+
+        // Segments are only appended and only the last one is extended
+        for (int i = 0; i < snapshot.segments.size(); i++) {
+            Segment segment = segments.get(i);
+            segment.id = ids[i];
+            segment.start = starts[i];
+            segment.lookup = false;
+            segment.dirty = (segment.finish != snapshot.segments.get(i).finish);
+        }
+
+        // Only the open segment can still be extended
+        Iterator<Segment> iterator = segments.iterator();
+        while (iterator.hasNext()) {
+            Segment segment = iterator.next();
+            if (iterator.hasNext() && !segment.dirty && segment.id >= 0)
+                iterator.remove();
+        }
+
+        journaled = false;
+    }
+
+    // Writes the journal if changed, serialized in memory to keep the accumulator locked briefly
+    public void journal() {
+        byte[] data;
+        synchronized (this) {
+            if (journaled)
+                return;
+            try {
+                data = serialize();
+            } catch (Throwable ex) {
+                Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+                return;
+            }
+            journaled = true;
+        }
+
+        synchronized (journal) {
+            FileOutputStream fos = null;
+            try {
+                fos = journal.startWrite();
+                fos.write(data);
+                journal.finishWrite(fos);
+            } catch (Throwable ex) {
+                Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+                if (fos != null)
+                    journal.failWrite(fos);
+                synchronized (this) {
+                    journaled = false;
+                }
+            }
+        }
+    }
+
+    private byte[] serialize() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeInt(JOURNAL_VERSION);
+
+        out.writeLong(sequence);
+        out.writeLong(inflight == null ? -1 : inflight.sequence);
+        if (inflight != null)
+            writeDurations(out, inflight.durations);
+        writeDurations(out, durations);
+
+        out.writeInt(segments.size());
+        for (Segment segment : segments) {
+            out.writeLong(segment.id);
+            out.writeLong(segment.start);
+            out.writeLong(segment.finish);
+            out.writeInt(segment.activity);
+            out.writeBoolean(segment.lookup);
+            out.writeBoolean(segment.dirty);
+        }
+
+        out.flush();
+        return bos.toByteArray();
+    }
+
+    private static void writeDurations(DataOutputStream out, Map<Long, long[]> durations) throws IOException {
+        out.writeInt(durations.size());
+        for (Map.Entry<Long, long[]> entry : durations.entrySet()) {
+            out.writeLong(entry.getKey());
+            for (long value : entry.getValue())
+                out.writeLong(value);
+        }
+    }
+
+    private static void readDurations(DataInputStream in, Map<Long, long[]> durations) throws IOException {
+        int days = in.readInt();
+        for (int d = 0; d < days; d++) {
+            long day = in.readLong();
+            long[] delta = new long[COLUMNS.length];
+            for (int i = 0; i < delta.length; i++)
+                delta[i] = in.readLong();
+            durations.put(day, delta);
+        }
+    }
+
+    private void restore() {
+        if (!journal.getBaseFile().exists())
+            return;
+
+        FileInputStream fis = null;
+        try {
+            fis = journal.openRead();
+            DataInputStream in = new DataInputStream(fis);
+            // Version 1 journals have no sequence and nothing in flight
+            int version = in.readInt();
+            if (version != 1 && version != JOURNAL_VERSION)
+                throw new IllegalStateException("Unknown journal version");
+
+            if (version >= 2) {
+                sequence = in.readLong();
+                long pending = in.readLong();
+                if (pending >= 0) {
+                    inflight = new Snapshot();
+                    inflight.sequence = pending;
+                    readDurations(in, inflight.durations);
+                }
+            }
+            readDurations(in, durations);
+
+            int count = in.readInt();
+            for (int s = 0; s < count; s++) {
+                Segment segment = new Segment();
+                segment.id = in.readLong();
+                segment.start = in.readLong();
+                segment.finish = in.readLong();
+                segment.activity = in.readInt();
+                segment.lookup = in.readBoolean();
+                segment.dirty = in.readBoolean();
+                segments.add(segment);
+            }
+
+            Log.i(TAG, "Restored days=" + durations.size() + " segments=" + segments.size() +
+                    " sequence=" + sequence + " inflight=" + (inflight == null ? -1 : inflight.sequence));
+        } catch (Throwable ex) {
+            Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+            inflight = null;
+            durations.clear();
+            segments.clear();
+        } finally {
+            if (fis != null)
+                try {
+                    fis.close();
+                } catch (Throwable ignored) {
+                }
+        }
+    }
+}
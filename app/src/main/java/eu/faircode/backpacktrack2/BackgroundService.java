@@ -2,18 +2,16 @@ package eu.faircode.backpacktrack2;
 
 import android.Manifest;
 import android.app.AlarmManager;
-import android.app.IntentService;
 import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
+import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.database.Cursor;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Color;
 import android.graphics.drawable.Icon;
 import android.location.Location;
@@ -22,7 +20,10 @@ import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
-import android.os.PowerManager;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Process;
 import android.os.Vibrator;
 import android.preference.PreferenceManager;
 import android.support.v4.content.FileProvider;
@@ -81,7 +82,7 @@ import javax.net.ssl.HttpsURLConnection;
 import de.timroes.axmlrpc.XMLRPCClient;
 import de.timroes.axmlrpc.XMLRPCException;
 
-public class BackgroundService extends IntentService {
+public class BackgroundService extends Service {
     private static final String TAG = "BPT2.Service";
 
     // Actions
@@ -95,6 +96,7 @@ public class BackgroundService extends IntentService {
     public static final String ACTION_LOCATION_PASSIVE = "LocationPassive";
     public static final String ACTION_LOCATION_TIMEOUT = "LocationTimeout";
     public static final String ACTION_LOCATION_CHECK = "LocationCheck";
+    public static final String ACTION_LOCATION_ACQUIRED = "LocationAcquired";
     public static final String ACTION_STATE_CHANGED = "StateChanged";
     public static final String ACTION_STOP_LOCATING = "StopLocating";
     public static final String ACTION_TRACKPOINT = "TrackPoint";
@@ -108,6 +110,8 @@ public class BackgroundService extends IntentService {
 
     public static final String ACTION_LIFELINE = "Lifeline";
     public static final String ACTION_CONNECTIVITY = "Connectivity";
+    public static final String ACTION_BENCHMARK = "Benchmark";
+    public static final String ACTION_CANCEL = "Cancel";
 
     public static final String EXPORTED_ACTION_PRIVACY = "eu.faircode.backpacktrack2.PRIVACY";
     public static final String EXPORTED_ACTION_TRACKING = "eu.faircode.backpacktrack2.TRACKING";
@@ -132,18 +136,24 @@ public class BackgroundService extends IntentService {
     public static final String EXTRA_WAYPOINT = "Waypoint";
     public static final String EXTRA_GEOURI = "Geopoint";
     public static final String EXTRA_ID = "RowID";
+    public static final String EXTRA_IDS = "RowIDs";
+    public static final String EXTRA_DELETED = "Deleted";
+    public static final String EXTRA_LANE = "Lane";
+    public static final String EXTRA_LOCATION = "Location";
+    public static final String EXTRA_SESSION = "Session";
+    public static final String EXTRA_POINTS = "Points";
 
     public static final String DEFAULT_TRACK_NAME = "BackPackTrack";
 
     // Constants
-    private static final int STATE_IDLE = 1;
-    private static final int STATE_ACQUIRING = 2;
-    private static final int STATE_ACQUIRED = 3;
+    static final int STATE_IDLE = 1;
+    static final int STATE_ACQUIRING = 2;
+    static final int STATE_ACQUIRED = 3;
 
-    private static final int LOCATION_TRACKPOINT = 1;
-    private static final int LOCATION_WAYPOINT = 2;
-    private static final int LOCATION_PERIODIC = 3;
-    private static final int LOCATION_AUTO = 4;
+    static final int LOCATION_TRACKPOINT = 1;
+    static final int LOCATION_WAYPOINT = 2;
+    static final int LOCATION_PERIODIC = 3;
+    static final int LOCATION_AUTO = 4;
 
     public final static int ALTITUDE_NONE = 0;
     public final static int ALTITUDE_GPS = 1;
@@ -155,10 +165,16 @@ public class BackgroundService extends IntentService {
     private static final int VIBRATE_LONG = 500; // milliseconds
 
     private static final int ALARM_DUE_TIME = 5 * 1000; // milliseconds
+    private static final long VACUUM_BUDGET = 2 * 1000L; // milliseconds
+    private static final int BENCHMARK_ROWS = 1000;
+    private static final int BENCHMARK_POINTS = 200000;
+    private static final int BENCHMARK_ITERATIONS = 1000;
+    private static final int BENCHMARK_REPLAY_DAYS = 7;
 
     private static final int NOTIFICATION_LOCATION = 0;
     private static final int NOTIFICATION_WEATHER = 1;
     private static final int NOTIFICATION_RAIN = 2;
+    private static final int NOTIFICATION_PROGRESS = 3;
 
     public static final int REQUEST_LOCATION = 1;
     public static final int REQUEST_TRACKPOINT = 2;
@@ -171,6 +187,12 @@ public class BackgroundService extends IntentService {
     public static final int REQUEST_RAIN = 9;
     public static final int REQUEST_STEPS = 10;
     public static final int REQUEST_RESTART = 11;
+    public static final int REQUEST_CANCEL = 12;
+
+    // Execution lanes
+    public static final String LANE_TRACKING = "Tracking";
+    public static final String LANE_NETWORK = "Network";
+    public static final String LANE_EXPORT = "Export";
 
     private static final int LIFELINE_TIMEOUT = 20 * 1000;
     public static final String LIFELINE_BASEURL = "https://lifeline.faircode.eu/";
@@ -178,19 +200,151 @@ public class BackgroundService extends IntentService {
     private static int mEGM96Pointer = -1;
     private static int mEGM96Offset;
 
-    public BackgroundService() {
-        super(TAG);
+    private ExecutionLane laneTracking;
+    private ExecutionLane laneNetwork;
+    private ExecutionLane laneExport;
+    private Handler mainHandler;
+    private int lastStartId;
+    private Map<String, Integer> lastProgress = new HashMap<>();
+
+    // Passive trackpoints not stored yet, tracking lane only
+    private List<Location> passiveBatch = new ArrayList<>();
+    private List<Integer> passiveAltitudeTypes = new ArrayList<>();
+
+    private ExecutionLane.Listener laneListener = new ExecutionLane.Listener() {
+        @Override
+        public void onProgress(ExecutionLane lane, int current, int total) {
+            // Update only when the percentage changes
+            int percent = (total > 0 ? current * 100 / total : 0);
+            synchronized (lastProgress) {
+                Integer last = lastProgress.get(lane.getName());
+                if (last != null && last == percent)
+                    return;
+                lastProgress.put(lane.getName(), percent);
+            }
+            showProgressNotification(lane, current, total, BackgroundService.this);
+        }
+
+        @Override
+        public void onFinished(final ExecutionLane lane) {
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (lastProgress) {
+                        if (lastProgress.remove(lane.getName()) != null)
+                            removeProgressNotification(lane, BackgroundService.this);
+                    }
+                    if (isIdle())
+                        stopSelf(lastStartId);
+                }
+            });
+        }
+    };
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mainHandler = new Handler(Looper.getMainLooper());
+        laneTracking = new ExecutionLane(this, LANE_TRACKING, Process.THREAD_PRIORITY_FOREGROUND, laneListener);
+        laneNetwork = new ExecutionLane(this, LANE_NETWORK, Process.THREAD_PRIORITY_BACKGROUND, laneListener);
+        laneExport = new ExecutionLane(this, LANE_EXPORT, Process.THREAD_PRIORITY_BACKGROUND, laneListener);
+    }
+
+    @Override
+    public void onDestroy() {
+        laneTracking.quit();
+        laneNetwork.quit();
+        laneExport.quit();
+        ActionMetrics.getInstance(this).flush();
+        super.onDestroy();
     }
 
     @Override
-    protected void onHandleIntent(Intent intent) {
-        PowerManager.WakeLock wakeLock = null;
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    @Override
+    public int onStartCommand(final Intent intent, int flags, int startId) {
+        lastStartId = startId;
+
+        if (intent == null)
+            Log.i(TAG, "No intent");
+
+        else if (ACTION_CANCEL.equals(intent.getAction())) {
+            // The tracking lane is never cancelled, it reschedules itself and the daily task
+            ExecutionLane lane = getLane(intent.getStringExtra(EXTRA_LANE));
+            if (lane != null && lane != laneTracking)
+                lane.cancel();
+
+        } else {
+            final ExecutionLane lane = getLane(intent);
+            lane.execute(intent.getAction(), new Runnable() {
+                @Override
+                public void run() {
+                    handleIntent(intent, lane);
+                }
+            });
+            return START_NOT_STICKY;
+        }
+
+        if (isIdle())
+            stopSelf(startId);
+        return START_NOT_STICKY;
+    }
+
+    // Stay started while acquiring a location
+    private boolean isIdle() {
+        return (laneTracking.isIdle() && laneNetwork.isIdle() && laneExport.isIdle() &&
+                !LocationSession.getInstance(this).isActive());
+    }
+
+    private ExecutionLane getLane(String name) {
+        if (LANE_TRACKING.equals(name))
+            return laneTracking;
+        else if (LANE_NETWORK.equals(name))
+            return laneNetwork;
+        else if (LANE_EXPORT.equals(name))
+            return laneExport;
+        else
+            return null;
+    }
+
+    private ExecutionLane getLane(Intent intent) {
+        String action = intent.getAction();
+
+        // Network requests, never queued behind exports
+        if (ACTION_UPDATE_WEATHER.equals(action) ||
+                EXPORTED_ACTION_UPDATE_WEATHER.equals(action) ||
+                ACTION_GUARD_WEATHER.equals(action) ||
+                ACTION_LIFELINE.equals(action) ||
+                ACTION_CONNECTIVITY.equals(action))
+            return laneNetwork;
+
+        // Long running jobs
+        if (ACTION_SHARE_GPX.equals(action) ||
+                ACTION_SHARE_KML.equals(action) ||
+                ACTION_UPLOAD_GPX.equals(action) ||
+                EXPORTED_ACTION_WRITE_GPX.equals(action) ||
+                EXPORTED_ACTION_WRITE_KML.equals(action) ||
+                EXPORTED_ACTION_UPLOAD_GPX.equals(action) ||
+                EXPORTED_ACTION_GET_ALTITUDE.equals(action) ||
+                ACTION_BENCHMARK.equals(action))
+            return laneExport;
+
+        // Locations, activities, time-outs, the daily task and everything else;
+        // the daily task updates the last activity like activity updates do, so they must not run concurrently
+        return laneTracking;
+    }
+
+    // Called on the thread of the lane
+    private void handleIntent(Intent intent, ExecutionLane lane) {
         try {
-            PowerManager powerManager = (PowerManager) getSystemService(POWER_SERVICE);
-            wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
-            wakeLock.acquire();
+            Log.i(TAG, "Intent=" + intent + " lane=" + lane.getName());
 
-            Log.i(TAG, "Intent=" + intent);
+            // Passive trackpoints are stored before anything else is done
+            if (lane == laneTracking && !ACTION_LOCATION_PASSIVE.equals(intent.getAction()))
+                storePassiveTrackpoints();
 
             if (EXPORTED_ACTION_PRIVACY.equals(intent.getAction()))
                 handlePrivacyEnable(intent);
@@ -218,6 +372,9 @@ public class BackgroundService extends IntentService {
                     ACTION_LOCATION_COARSE.equals(intent.getAction()))
                 handleLocationUpdate(intent);
 
+            else if (ACTION_LOCATION_ACQUIRED.equals(intent.getAction()))
+                handleLocationAcquired(intent);
+
             else if (ACTION_LOCATION_PASSIVE.equals(intent.getAction()))
                 handlePassiveLocationUpdate(intent);
 
@@ -240,29 +397,29 @@ public class BackgroundService extends IntentService {
                 handleProximity(intent);
 
             else if (ACTION_SHARE_GPX.equals(intent.getAction()))
-                handleShare(intent);
+                handleShare(intent, lane);
 
             else if (ACTION_SHARE_KML.equals(intent.getAction()))
-                handleShare(intent);
+                handleShare(intent, lane);
 
             else if (ACTION_UPLOAD_GPX.equals(intent.getAction()))
-                handleUploadGPX(intent);
+                handleUploadGPX(intent, lane);
 
             else if (EXPORTED_ACTION_WRITE_GPX.equals(intent.getAction())) {
                 convertTime(intent);
-                handleShare(intent);
+                handleShare(intent, lane);
 
             } else if (EXPORTED_ACTION_WRITE_KML.equals(intent.getAction())) {
                 convertTime(intent);
-                handleShare(intent);
+                handleShare(intent, lane);
 
             } else if (EXPORTED_ACTION_UPLOAD_GPX.equals(intent.getAction())) {
                 convertTime(intent);
-                handleUploadGPX(intent);
+                handleUploadGPX(intent, lane);
 
             } else if (EXPORTED_ACTION_GET_ALTITUDE.equals(intent.getAction())) {
                 convertTime(intent);
-                handleGetAltitude(intent);
+                handleGetAltitude(intent, lane);
 
             } else if (ACTION_DAILY.equals(intent.getAction()))
                 handleDaily(intent);
@@ -280,14 +437,18 @@ public class BackgroundService extends IntentService {
             else if (ACTION_CONNECTIVITY.equals(intent.getAction()))
                 handleConnectivity(intent);
 
+            else if (ACTION_BENCHMARK.equals(intent.getAction()))
+                handleBenchmark(intent);
+
             else
                 Log.i(TAG, "Unknown action");
         } catch (Throwable ex) {
             Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
             Util.toast(ex.toString(), Toast.LENGTH_LONG, this);
         } finally {
-            if (wakeLock != null)
-                wakeLock.release();
+            // A burst of passive locations is stored in one transaction once no more jobs are queued
+            if (lane == laneTracking && lane.getPending() <= 1)
+                storePassiveTrackpoints();
         }
     }
 
@@ -324,16 +485,7 @@ public class BackgroundService extends IntentService {
 
         // Persist probably activities
         if (prefs.getBoolean(SettingsFragment.PREF_RECOGNITION_HISTORY, SettingsFragment.DEFAULT_RECOGNITION_HISTORY)) {
-            DatabaseHelper dh = null;
-            try {
-                dh = new DatabaseHelper(this);
-                long time = new Date().getTime();
-                for (DetectedActivity act : listProbable)
-                    dh.insertActivityType(time, act.getType(), act.getConfidence());
-            } finally {
-                if (dh != null)
-                    dh.close();
-            }
+            DatabaseHelper.getInstance(this).insertActivityTypes(new Date().getTime(), listProbable);
         }
 
         DetectedActivity activity = listProbable.get(0);
@@ -398,7 +550,7 @@ public class BackgroundService extends IntentService {
 
             // Update activity duration
             if (lastTime >= 0)
-                new DatabaseHelper(this).updateActivity(lastTime, lastActivity, time - lastTime).close();
+                DatabaseHelper.getInstance(this).updateActivity(lastTime, lastActivity, time - lastTime);
 
             // Debug
             if (Util.debugMode(this) && lastActivity != activity.getType())
@@ -444,7 +596,8 @@ public class BackgroundService extends IntentService {
                     }
                 } else
                     startPeriodicLocating(this);
-            }
+            } else if (lastActivity != act && !still)
+                schedulePeriodicLocating(this, true);
 
             // Start/stop step counter service
             if (pref_recognize_steps)
@@ -466,82 +619,39 @@ public class BackgroundService extends IntentService {
             prefs.edit().putInt(SettingsFragment.PREF_LOCATION_TYPE, LOCATION_TRACKPOINT).apply();
         else if (ACTION_WAYPOINT.equals((intent.getAction())))
             prefs.edit().putInt(SettingsFragment.PREF_LOCATION_TYPE, LOCATION_WAYPOINT).apply();
-        else if (ACTION_PERIODIC.equals(intent.getAction()))
+        else if (ACTION_PERIODIC.equals(intent.getAction())) {
             prefs.edit().putInt(SettingsFragment.PREF_LOCATION_TYPE, LOCATION_PERIODIC).apply();
+            schedulePeriodicLocating(this, false);
+        }
 
         // Try to acquire a new location
         startLocating(this);
     }
 
     private void handleLocationUpdate(Intent intent) {
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
-
-        // Process location update
-        int locationType = prefs.getInt(SettingsFragment.PREF_LOCATION_TYPE, -1);
-        Location location = (Location) intent.getExtras().get(LocationManager.KEY_LOCATION_CHANGED);
-        Log.i(TAG, "Update location=" + location + " type=" + locationType);
-        if (location == null || (location.getLatitude() == 0.0 && location.getLongitude() == 0.0))
-            return;
-
-        // Check if still acquiring location
-        if (prefs.getInt(SettingsFragment.PREF_STATE, STATE_IDLE) == STATE_IDLE) {
-            Log.i(TAG, "Not acquiring anymore");
-            return;
-        }
-
-        // Filter inaccurate location
-        int pref_inaccurate = Integer.parseInt(prefs.getString(SettingsFragment.PREF_INACCURATE, SettingsFragment.DEFAULT_INACCURATE));
-        if (!location.hasAccuracy() || location.getAccuracy() > pref_inaccurate) {
-            Log.i(TAG, "Filtering inaccurate location=" + location);
-            return;
-        }
-
-        // Filter old locations
-        Location lastLocation = LocationDeserializer.deserialize(prefs.getString(SettingsFragment.PREF_LAST_LOCATION, null));
-        if (lastLocation != null && location.getTime() <= lastLocation.getTime()) {
-            Log.i(TAG, "Location is older than last location, location=" + location);
-            return;
-        }
-
-        // Correct altitude
-        correctAltitude(location, this);
-
-        // Persist better location
-        Location bestLocation = LocationDeserializer.deserialize(prefs.getString(SettingsFragment.PREF_BEST_LOCATION, null));
-        if (isBetterLocation(bestLocation, location)) {
-            Log.i(TAG, "Better location=" + location);
-            SharedPreferences.Editor editor = prefs.edit();
-            editor.putInt(SettingsFragment.PREF_STATE, STATE_ACQUIRED);
-            editor.putString(SettingsFragment.PREF_BEST_LOCATION, LocationSerializer.serialize(location));
-            editor.apply();
-            showStateNotification(this);
-        }
+        // Location updates requested with a pending intent by a previous version
+        Intent locationIntent = new Intent(this, BackgroundService.class);
+        locationIntent.setAction(intent.getAction());
+        PendingIntent pi = PendingIntent.getService(this, 0, locationIntent, PendingIntent.FLAG_UPDATE_CURRENT);
+        LocationManager lm = (LocationManager) getSystemService(LOCATION_SERVICE);
+        lm.removeUpdates(pi);
+        Log.i(TAG, "Removed pending intent location updates action=" + intent.getAction());
+    }
 
-        // Check altitude
-        boolean pref_altitude = prefs.getBoolean(SettingsFragment.PREF_ALTITUDE, SettingsFragment.DEFAULT_ALTITUDE);
-        if (!location.hasAltitude() && pref_altitude) {
-            Log.i(TAG, "No altitude, but preferred, location=" + location);
-            return;
-        }
+    private void handleLocationAcquired(Intent intent) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
 
-        // Check accuracy
-        int pref_accuracy;
-        if (locationType == LOCATION_WAYPOINT)
-            pref_accuracy = Integer.parseInt(prefs.getString(SettingsFragment.PREF_WP_ACCURACY, SettingsFragment.DEFAULT_WP_ACCURACY));
-        else
-            pref_accuracy = Integer.parseInt(prefs.getString(SettingsFragment.PREF_TP_ACCURACY, SettingsFragment.DEFAULT_TP_ACCURACY));
-        if (!location.hasAccuracy() || location.getAccuracy() > pref_accuracy) {
-            Log.i(TAG, "Accuracy not reached, location=" + location);
+        // Check if still the same acquisition
+        int session = intent.getIntExtra(EXTRA_SESSION, -1);
+        if (!LocationSession.getInstance(this).isCurrent(session) ||
+                prefs.getInt(SettingsFragment.PREF_STATE, STATE_IDLE) == STATE_IDLE) {
+            Log.i(TAG, "Not acquiring anymore session=" + session);
             return;
         }
 
-        // Check pressure
-        boolean pressure_enabled = prefs.getBoolean(SettingsFragment.PREF_PRESSURE_ENABLED, SettingsFragment.DEFAULT_PRESSURE_ENABLED);
-        if (pressure_enabled)
-            if (prefs.getFloat(SettingsFragment.PREF_PRESSURE_VALUE, -1) < 0) {
-                Log.i(TAG, "Pressure not available yet");
-                return;
-            }
+        int locationType = prefs.getInt(SettingsFragment.PREF_LOCATION_TYPE, -1);
+        Location location = intent.getParcelableExtra(EXTRA_LOCATION);
+        Log.i(TAG, "Acquired location=" + location + " type=" + locationType);
 
         stopLocating(this);
 
@@ -566,7 +676,7 @@ public class BackgroundService extends IntentService {
         }
 
         // Get last location
-        Location lastLocation = LocationDeserializer.deserialize(prefs.getString(SettingsFragment.PREF_LAST_LOCATION, null));
+        Location lastLocation = TrackingState.getInstance(this).getLastLocation();
         if (lastLocation == null) {
             Log.i(TAG, "Passive location without last location, location=" + location);
             return;
@@ -581,12 +691,23 @@ public class BackgroundService extends IntentService {
         // Correct altitude
         correctAltitude(location, this);
 
+        // Smooth location
+        boolean filter = prefs.getBoolean(SettingsFragment.PREF_PASSIVE_FILTER, SettingsFragment.DEFAULT_PASSIVE_FILTER);
+        if (filter) {
+            location = filterLocation(LocationFilter.PASSIVE, location, this);
+            if (location == null)
+                return;
+        }
+        SamplingScheduler.getInstance(this).onLocation(location);
+
         // Filter nearby passive locations
         int pref_nearby = Integer.parseInt(prefs.getString(SettingsFragment.PREF_PASSIVE_NEARBY, SettingsFragment.DEFAULT_PASSIVE_NEARBY));
         if (Util.distance(lastLocation, location) < pref_nearby &&
                 (lastLocation.hasAccuracy() ? lastLocation.getAccuracy() : Float.MAX_VALUE) <=
                         (location.hasAccuracy() ? location.getAccuracy() : Float.MAX_VALUE)) {
             Log.i(TAG, "Filtering nearby passive location=" + location);
+            if (filter)
+                LocationFilter.getInstance(LocationFilter.PASSIVE).absorbed();
             return;
         }
 
@@ -618,16 +739,10 @@ public class BackgroundService extends IntentService {
 
         if (update) {
             // Persist new location
-            prefs.edit().putString(SettingsFragment.PREF_LAST_LOCATION, LocationSerializer.serialize(location)).apply();
-            DatabaseHelper dh = null;
-            try {
-                dh = new DatabaseHelper(this);
-                int altitude_type = (location.hasAltitude() ? ALTITUDE_GPS : ALTITUDE_NONE);
-                dh.insertLocation(location, altitude_type, null).close();
-            } finally {
-                if (dh != null)
-                    dh.close();
-            }
+            TrackingState.getInstance(this).setLastLocation(location);
+            int altitude_type = (location.hasAltitude() ? ALTITUDE_GPS : ALTITUDE_NONE);
+            passiveBatch.add(location);
+            passiveAltitudeTypes.add(altitude_type);
 
             // Feedback
             showStateNotification(this);
@@ -636,7 +751,8 @@ public class BackgroundService extends IntentService {
                         " " + getProviderName(location, this) +
                         " " + Math.round(bchange) +
                         "° / " + Math.round(achange) + "m", Toast.LENGTH_SHORT, this);
-        }
+        } else if (filter)
+            LocationFilter.getInstance(LocationFilter.PASSIVE).absorbed();
     }
 
     private void handleSatelliteCheck(Intent intent) {
@@ -644,17 +760,13 @@ public class BackgroundService extends IntentService {
 
         int fixed = prefs.getInt(SettingsFragment.PREF_SATS_FIXED, 0);
         int visible = prefs.getInt(SettingsFragment.PREF_SATS_VISIBLE, 0);
-        int checksat = Integer.parseInt(prefs.getString(SettingsFragment.PREF_CHECK_SAT, SettingsFragment.DEFAULT_CHECK_SAT));
+        int checksat = FixPredictor.getInstance(this).getCheckSat();
         Log.i(TAG, "Check satellites fixed/visible=" + fixed + "/" + visible + " required=" + checksat);
 
         // Check if there is any chance for a GPS fix
         if (fixed < checksat) {
             // Cancel fine location updates
-            Intent locationIntent = new Intent(this, BackgroundService.class);
-            locationIntent.setAction(BackgroundService.ACTION_LOCATION_FINE);
-            PendingIntent pi = PendingIntent.getService(this, 0, locationIntent, PendingIntent.FLAG_UPDATE_CURRENT);
-            LocationManager lm = (LocationManager) getSystemService(LOCATION_SERVICE);
-            lm.removeUpdates(pi);
+            LocationSession.getInstance(this).stopGps();
             stopService(new Intent(this, GpsStatusService.class));
             Log.i(TAG, "Canceled fine location updates");
         }
@@ -669,7 +781,7 @@ public class BackgroundService extends IntentService {
 
         // Process location time-out
         int locationType = prefs.getInt(SettingsFragment.PREF_LOCATION_TYPE, -1);
-        Location bestLocation = LocationDeserializer.deserialize(prefs.getString(SettingsFragment.PREF_BEST_LOCATION, null));
+        Location bestLocation = TrackingState.getInstance(this).getBestLocation();
         Log.i(TAG, "Timeout best location=" + bestLocation + " type=" + locationType);
 
         stopLocating(this);
@@ -745,7 +857,7 @@ public class BackgroundService extends IntentService {
             if (name == null)
                 name = SimpleDateFormat.getDateTimeInstance(SimpleDateFormat.MEDIUM, SimpleDateFormat.MEDIUM).format(new Date());
 
-            new DatabaseHelper(this).insertLocation(location, altitude_type, name).close();
+            DatabaseHelper.getInstance(this).insertLocation(location, altitude_type, name);
             Util.toast(getString(R.string.msg_added, name), Toast.LENGTH_LONG, this);
         }
     }
@@ -763,7 +875,7 @@ public class BackgroundService extends IntentService {
         sendBroadcast(proximity);
     }
 
-    private void handleShare(Intent intent) throws IOException {
+    private void handleShare(Intent intent, ExecutionLane lane) throws IOException {
         // Write file
         String trackName = intent.getStringExtra(EXTRA_TRACK_NAME);
         boolean extensions = intent.getBooleanExtra(EXTRA_WRITE_EXTENSIONS, false);
@@ -772,6 +884,10 @@ public class BackgroundService extends IntentService {
         long to = intent.getLongExtra(EXTRA_TIME_TO, Long.MAX_VALUE);
         boolean gpx = ACTION_SHARE_GPX.equals(intent.getAction()) || EXPORTED_ACTION_WRITE_GPX.equals(intent.getAction());
         String fileName = writeFile(gpx, trackName, extensions, from, to, this);
+        if (lane.isCancelled()) {
+            Log.i(TAG, "Share cancelled");
+            return;
+        }
 
         // Persist last share time
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
@@ -782,7 +898,7 @@ public class BackgroundService extends IntentService {
 
         // Delete data on request
         if (delete)
-            new DatabaseHelper(this).deleteTrackpoints(from, to).close();
+            DatabaseHelper.getInstance(this).deleteTrackpoints(from, to);
 
         // View file
         if (ACTION_SHARE_GPX.equals(intent.getAction()) || ACTION_SHARE_KML.equals(intent.getAction())) {
@@ -810,7 +926,7 @@ public class BackgroundService extends IntentService {
         }
     }
 
-    private void handleUploadGPX(Intent intent) throws IOException, XMLRPCException {
+    private void handleUploadGPX(Intent intent, ExecutionLane lane) throws IOException, XMLRPCException {
         // Write GPX file
         String trackName = intent.getStringExtra(EXTRA_TRACK_NAME);
         boolean extensions = intent.getBooleanExtra(EXTRA_WRITE_EXTENSIONS, false);
@@ -818,6 +934,10 @@ public class BackgroundService extends IntentService {
         long from = intent.getLongExtra(EXTRA_TIME_FROM, 0);
         long to = intent.getLongExtra(EXTRA_TIME_TO, Long.MAX_VALUE);
         String gpxFileName = writeFile(true, trackName, extensions, from, to, this);
+        if (lane.isCancelled()) {
+            Log.i(TAG, "Upload cancelled");
+            return;
+        }
 
         // Get GPX file content
         File gpx = new File(gpxFileName);
@@ -854,7 +974,7 @@ public class BackgroundService extends IntentService {
 
         // Delete data on request
         if (delete)
-            new DatabaseHelper(this).deleteTrackpoints(from, to).close();
+            DatabaseHelper.getInstance(this).deleteTrackpoints(from, to);
 
         // Feedback
         if (ACTION_UPLOAD_GPX.equals(intent.getAction()) && !intent.getBooleanExtra(EXTRA_JOB, false)) {
@@ -864,7 +984,7 @@ public class BackgroundService extends IntentService {
         }
     }
 
-    private void handleGetAltitude(Intent intent) throws IOException, JSONException {
+    private void handleGetAltitude(Intent intent, ExecutionLane lane) throws IOException, JSONException {
         Calendar cfrom = Calendar.getInstance();
         cfrom.add(Calendar.DAY_OF_YEAR, -1); // yesterday
         cfrom.set(Calendar.HOUR_OF_DAY, 0);
@@ -882,7 +1002,65 @@ public class BackgroundService extends IntentService {
         long from = intent.getLongExtra(EXTRA_TIME_FROM, cfrom.getTimeInMillis());
         long to = intent.getLongExtra(EXTRA_TIME_TO, cto.getTimeInMillis());
 
-        getAltitude(from, to, this);
+        getAltitude(from, to, lane, this);
+    }
+
+    private void handleBenchmark(Intent intent) {
+        // Development builds only, the table takes tens of megabytes
+        if (!BuildConfig.DEBUG)
+            return;
+        // Multi-million point runs through adb with the points extra
+        int points = intent.getIntExtra(EXTRA_POINTS, BENCHMARK_POINTS);
+        String result = DatabaseHelper.getInstance(this).benchmarkInserts(BENCHMARK_ROWS) + "\n" +
+                DatabaseHelper.benchmarkSpatial(this, points, 20);
+
+        // Tracking state cost per fix, with the last location if any
+        Location location = TrackingState.getInstance(this).getLastLocation();
+        if (location == null) {
+            location = new Location(LocationManager.GPS_PROVIDER);
+            location.setTime(new Date().getTime());
+            location.setLatitude(52);
+            location.setLongitude(5);
+            location.setAltitude(10);
+            location.setAccuracy(10);
+        }
+        result += "\n" + TrackingState.benchmark(this, location, BENCHMARK_ITERATIONS);
+
+        result += "\n" + benchmarkSimplification();
+        Util.toast(result, Toast.LENGTH_LONG, this);
+    }
+
+    // Replays the recorded trackpoints of the last week through the simplification at several tolerances
+    private String benchmarkSimplification() {
+        List<Location> track = new ArrayList<>();
+        Cursor cursor = null;
+        try {
+            long now = new Date().getTime();
+            cursor = DatabaseHelper.getInstance(this).getLocations(now - BENCHMARK_REPLAY_DAYS * 24 * 3600 * 1000L, now, true, false, true, 0);
+            int colTime = cursor.getColumnIndex("time");
+            int colLatitude = cursor.getColumnIndex("latitude");
+            int colLongitude = cursor.getColumnIndex("longitude");
+            while (cursor.moveToNext()) {
+                Location tpt = new Location("trackpoint");
+                tpt.setTime(cursor.getLong(colTime));
+                tpt.setLatitude(cursor.getDouble(colLatitude));
+                tpt.setLongitude(cursor.getDouble(colLongitude));
+                track.add(tpt);
+            }
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+
+        // Tracks stored with simplification enabled are reduced already
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        int configured = Integer.parseInt(prefs.getString(SettingsFragment.PREF_SIMPLIFY_TOLERANCE, SettingsFragment.DEFAULT_SIMPLIFY_TOLERANCE));
+        String result = "Simplification days=" + BENCHMARK_REPLAY_DAYS + " locations=" + track.size() + " stored=" + configured + "m";
+        for (int tolerance : new int[]{5, 10, 20, 50}) {
+            int kept = TrackSimplifier.replay(track, tolerance);
+            result += " " + tolerance + "m=" + (kept > 0 ? (track.size() * 10 / kept) / 10f : 0) + "x";
+        }
+        return result;
     }
 
     private void handleDaily(Intent intent) {
@@ -896,20 +1074,56 @@ public class BackgroundService extends IntentService {
             Log.i(TAG, "Daily task at " + SimpleDateFormat.getDateTimeInstance().format(time));
 
             // Reset step counter
-            new DatabaseHelper(this).updateSteps(time, 0).close();
+            StepCounterService.flush(this);
+            DatabaseHelper.getInstance(this).updateSteps(time, 0);
 
             // Finalize last activity
             SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
             int lastActivity = prefs.getInt(SettingsFragment.PREF_LAST_ACTIVITY, DetectedActivity.STILL);
             long lastTime = prefs.getLong(SettingsFragment.PREF_LAST_ACTIVITY_TIME, -1);
             if (lastTime >= 0) {
-                new DatabaseHelper(this).updateActivity(lastTime, lastActivity, time - lastTime).close();
+                DatabaseHelper.getInstance(this).updateActivity(lastTime, lastActivity, time - lastTime);
                 prefs.edit().putLong(SettingsFragment.PREF_LAST_ACTIVITY_TIME, time).apply();
-                new DatabaseHelper(this).updateActivity(time, lastActivity, 0).close();
+                DatabaseHelper.getInstance(this).updateActivity(time, lastActivity, 0);
             }
+            DatabaseHelper.getInstance(this).flushActivity();
+
+            // Archive trackpoints of closed months
+            int months = Integer.parseInt(prefs.getString(SettingsFragment.PREF_ARCHIVE_MONTHS, SettingsFragment.DEFAULT_ARCHIVE_MONTHS));
+            if (months > 0)
+                try {
+                    Calendar archive = Calendar.getInstance();
+                    archive.setTimeInMillis(time);
+                    archive.set(Calendar.DAY_OF_MONTH, 1);
+                    archive.add(Calendar.MONTH, -months);
+                    boolean lifeline = prefs.getBoolean(SettingsFragment.PREF_LIFELINE_ENABLED, SettingsFragment.DEFAULT_LIFELINE_ENABLED);
+                    DatabaseHelper.getInstance(this).archiveLocations(archive.getTimeInMillis(), !lifeline);
+                } catch (Throwable ex) {
+                    Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+                }
+
+            // Remove deleted locations
+            boolean lifeline = prefs.getBoolean(SettingsFragment.PREF_LIFELINE_ENABLED, SettingsFragment.DEFAULT_LIFELINE_ENABLED);
+            purgeLocations(!lifeline);
+
+            // Forget old acquisitions
+            FixPredictor.getInstance(this).purge();
 
             // Optimize database
-            new DatabaseHelper(this).vacuum().close();
+            long maintenance = DatabaseHelper.getInstance(this).vacuum(VACUUM_BUDGET);
+            prefs.edit()
+                    .putLong(SettingsFragment.PREF_MAINTENANCE_TIME, new Date().getTime())
+                    .putLong(SettingsFragment.PREF_MAINTENANCE_DURATION, maintenance)
+                    .apply();
+
+            // Write lock contention
+            Log.i(TAG, "Database locks\n" + DatabaseHelper.getLockStatistics(true));
+            Log.i(TAG, "Action metrics\n" + ActionMetrics.getInstance(this).getSummary());
+            Log.i(TAG, NotificationRenderer.getStatistics(true));
+            Log.i(TAG, LocationFilter.getStatistics(true));
+            Log.i(TAG, TrackSimplifier.getInstance().getStatistics(true));
+            Log.i(TAG, SamplingScheduler.getInstance(this).getStatistics(true) + "\n" +
+                    SamplingScheduler.getInstance(this).getDecisions());
         } finally {
             startDaily(this);
             showStateNotification(this);
@@ -933,7 +1147,7 @@ public class BackgroundService extends IntentService {
             String apikey_fio = prefs.getString(SettingsFragment.PREF_WEATHER_APIKEY_FIO, null);
 
             // Get last location
-            Location lastLocation = BackgroundService.LocationDeserializer.deserialize(prefs.getString(SettingsFragment.PREF_LAST_LOCATION, null));
+            Location lastLocation = TrackingState.getInstance(this).getLastLocation();
             if (lastLocation == null)
                 return;
 
@@ -950,10 +1164,8 @@ public class BackgroundService extends IntentService {
             // Select best weather station
             for (Weather weather : listWeather) {
                 // Persist weather
-                DatabaseHelper dh = new DatabaseHelper(this);
-                if (dh.insertWeather(weather, lastLocation) && Util.debugMode(this))
+                if (DatabaseHelper.getInstance(this).insertWeather(weather, lastLocation) && Util.debugMode(this))
                     Util.toast(getString(R.string.title_weather_settings), Toast.LENGTH_SHORT, this);
-                dh.close();
 
                 if (!weather.isEmpty()) {
                     // Update reference pressure
@@ -976,12 +1188,10 @@ public class BackgroundService extends IntentService {
             Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
 
             // Insert no weather
-            DatabaseHelper dh = new DatabaseHelper(this);
             Weather weather = new Weather();
             weather.time = new Date().getTime();
-            if (dh.insertWeather(weather, null) && Util.debugMode(this))
+            if (DatabaseHelper.getInstance(this).insertWeather(weather, null) && Util.debugMode(this))
                 Util.toast(getString(R.string.title_weather_settings), Toast.LENGTH_SHORT, this);
-            dh.close();
 
         } finally {
             startWeatherUpdates(this);
@@ -997,34 +1207,46 @@ public class BackgroundService extends IntentService {
 
     private void handleLifeline(Intent intent) {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        boolean deleted = intent.getBooleanExtra(EXTRA_DELETED, false);
 
-        if (prefs.getBoolean(SettingsFragment.PREF_LIFELINE_ENABLED, SettingsFragment.DEFAULT_LIFELINE_ENABLED))
+        if (prefs.getBoolean(SettingsFragment.PREF_LIFELINE_ENABLED, SettingsFragment.DEFAULT_LIFELINE_ENABLED)) {
             if (Util.isConnected(this)) {
                 long last = prefs.getLong(SettingsFragment.PREF_LIFELINE_LAST, 0);
                 int interval = Integer.parseInt(prefs.getString(SettingsFragment.PREF_LIFELINE_METERED_INTERVAL, SettingsFragment.DEFAULT_LIFELINE_METERED_INTERVAL));
                 if (!Util.isMeteredNetwork(this) || interval == 0 || last + 60 * 1000L * interval < new Date().getTime()) {
-                    DatabaseHelper dh = null;
                     try {
                         long id = intent.getLongExtra(EXTRA_ID, 0);
-                        if (id != 0) {
-                            dh = new DatabaseHelper(this);
-                            Location location = dh.getLocation(id);
-                            postLocation(id, location, location.getProvider());
-                        }
+                        long[] ids = intent.getLongArrayExtra(EXTRA_IDS);
+                        if (ids == null)
+                            ids = (id == 0 ? new long[0] : new long[]{id});
+                        DatabaseHelper dh = DatabaseHelper.getInstance(this);
+                        for (long rid : ids)
+                            if (rid > 0) {
+                                if (deleted)
+                                    postLocation(rid, null, null);
+                                else {
+                                    Location location = dh.getLocation(rid);
+                                    if (location != null)
+                                        postLocation(rid, location, location.getProvider());
+                                }
+                            }
                     } catch (Throwable ex) {
                         Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
-                    } finally {
-                        if (dh != null)
-                            dh.close();
                     }
+
+                    // Delete acknowledged
+                    if (deleted)
+                        purgeLocations(false);
                 } else if (Util.isMeteredNetwork(this))
                     JobExecutionService.schedule(JobExecutionService.JOB_CONNECTIVITY, null, this);
             } else
                 JobExecutionService.schedule(JobExecutionService.JOB_CONNECTIVITY, null, this);
+        } else if (deleted)
+            // Nothing to acknowledge
+            purgeLocations(true);
 
-        DatabaseHelper dh = new DatabaseHelper(this);
-        prefs.edit().putInt(SettingsFragment.PREF_LIFELINE_STATE, dh.getUnsentLocationCount()).apply();
-        dh.close();
+        int unsent = DatabaseHelper.getInstance(this).getUnsentLocationCount();
+        prefs.edit().putInt(SettingsFragment.PREF_LIFELINE_STATE, unsent).apply();
     }
 
     private void handleConnectivity(Intent intent) {
@@ -1047,13 +1269,12 @@ public class BackgroundService extends IntentService {
             Log.i(TAG, "Lifeline update metered=" + metered + " interval=" + interval);
 
             // Update lifeline
-            if (prefs.getBoolean(SettingsFragment.PREF_LIFELINE_ENABLED, SettingsFragment.DEFAULT_LIFELINE_ENABLED))
+            if (prefs.getBoolean(SettingsFragment.PREF_LIFELINE_ENABLED, SettingsFragment.DEFAULT_LIFELINE_ENABLED)) {
+                boolean deleted = false;
                 try {
-                    DatabaseHelper dh = null;
                     Cursor cursor = null;
                     try {
-                        dh = new DatabaseHelper(this);
-                        cursor = dh.getUnsentLocations();
+                        cursor = DatabaseHelper.getInstance(this).getUnsentLocations();
 
                         int colID = cursor.getColumnIndex("ID");
                         int colTime = cursor.getColumnIndex("time");
@@ -1069,8 +1290,14 @@ public class BackgroundService extends IntentService {
                             long id = cursor.getLong(colID);
                             String name = cursor.getString(colName);
 
+                            if (!cursor.isNull(colDeleted)) {
+                                postLocation(id, null, null);
+                                deleted = true;
+                                continue;
+                            }
+
                             Location location = new Location(cursor.getString(colProvider));
-                            location.setTime(cursor.isNull(colDeleted) ? cursor.getLong(colTime) : Long.MAX_VALUE);
+                            location.setTime(cursor.getLong(colTime));
                             location.setLatitude(cursor.getDouble(colLatitude));
                             location.setLongitude(cursor.getDouble(colLongitude));
                             if (!cursor.isNull(colAltitude))
@@ -1084,16 +1311,35 @@ public class BackgroundService extends IntentService {
                     } finally {
                         if (cursor != null)
                             cursor.close();
-                        if (dh != null)
-                            dh.close();
                     }
                 } catch (Throwable ex) {
                     Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
                 }
+
+                // Deletes acknowledged
+                if (deleted)
+                    purgeLocations(false);
+            }
+        }
+    }
+
+    private void purgeLocations(boolean unacknowledged) {
+        long start = new Date().getTime();
+        int rows = DatabaseHelper.getInstance(this).purgeLocations(unacknowledged);
+        long duration = new Date().getTime() - start;
+        if (rows > 0) {
+            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+            prefs.edit()
+                    .putLong(SettingsFragment.PREF_PURGE_TIME, new Date().getTime())
+                    .putInt(SettingsFragment.PREF_PURGE_ROWS, rows)
+                    .putLong(SettingsFragment.PREF_PURGE_DURATION, duration)
+                    .putLong(SettingsFragment.PREF_PURGE_TOTAL, prefs.getLong(SettingsFragment.PREF_PURGE_TOTAL, 0) + rows)
+                    .apply();
         }
     }
 
     private void postLocation(long id, Location location, String name) throws IOException, NoSuchAlgorithmException, JSONException {
+        // No location deletes the event
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
 
         HttpsURLConnection urlConnection = null;
@@ -1105,7 +1351,7 @@ public class BackgroundService extends IntentService {
             }
 
             JSONObject jlocation = null;
-            if (location.getTime() != Long.MAX_VALUE) {
+            if (location != null) {
                 jlocation = new JSONObject();
                 jlocation.put("name", name);
                 jlocation.put("lat", location.getLatitude());
@@ -1123,7 +1369,7 @@ public class BackgroundService extends IntentService {
             json.put("token", Util.sha256(Long.toString(llid)));
             json.put("type", "location");
             json.put("extid", Long.toString(id));
-            if (location.getTime() != Long.MAX_VALUE)
+            if (location != null)
                 json.put("time", sdf.format(location.getTime()));
             if (jlocation != null)
                 json.put("data", jlocation.toString());
@@ -1134,7 +1380,7 @@ public class BackgroundService extends IntentService {
             urlConnection.setReadTimeout(LIFELINE_TIMEOUT);
             urlConnection.setRequestProperty("Accept", "application/json; charset=UTF-8");
             urlConnection.setRequestProperty("Content-type", "application/json; charset=UTF-8");
-            urlConnection.setRequestMethod(location.getTime() == Long.MAX_VALUE ? "DELETE" : "POST");
+            urlConnection.setRequestMethod(location == null ? "DELETE" : "POST");
             urlConnection.setDoInput(true);
             urlConnection.setDoOutput(true);
 
@@ -1152,8 +1398,7 @@ public class BackgroundService extends IntentService {
                 throw new IOException(errorMessage);
             }
 
-            if (location != null)
-                new DatabaseHelper(this).sentLocation(id, true).close();
+            DatabaseHelper.getInstance(this).sentLocation(id, true);
 
             prefs.edit().putLong(SettingsFragment.PREF_LIFELINE_LAST, new Date().getTime()).apply();
 
@@ -1274,18 +1519,49 @@ public class BackgroundService extends IntentService {
     }
 
     private static void startPeriodicLocating(Context context) {
-        // Set repeating alarm
         Intent alarmIntent = new Intent(context, BackgroundService.class);
         alarmIntent.setAction(BackgroundService.ACTION_PERIODIC);
         PendingIntent pi = PendingIntent.getService(context, 0, alarmIntent, PendingIntent.FLAG_UPDATE_CURRENT);
         AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+
+        // Set single alarm, rescheduled on each periodic location request
+        if (prefs.getBoolean(SettingsFragment.PREF_SAMPLING_ADAPTIVE, SettingsFragment.DEFAULT_SAMPLING_ADAPTIVE)) {
+            long next = new Date().getTime() + ALARM_DUE_TIME;
+            am.set(AlarmManager.RTC_WAKEUP, next, pi);
+            prefs.edit().putLong(SettingsFragment.PREF_SAMPLING_NEXT, next).apply();
+            Log.i(TAG, "Start adaptive periodic locating due=" + ALARM_DUE_TIME + "ms");
+            return;
+        }
+
+        // Set repeating alarm
         int interval = Integer.parseInt(prefs.getString(SettingsFragment.PREF_INTERVAL, SettingsFragment.DEFAULT_INTERVAL));
         // setRepeating is inexact since KitKat
         am.setRepeating(AlarmManager.RTC_WAKEUP, new Date().getTime() + ALARM_DUE_TIME, interval * 1000, pi);
         Log.i(TAG, "Start periodic locating interval=" + interval + "s" + " due=" + ALARM_DUE_TIME + "ms");
     }
 
+    // Schedules the next adaptive periodic location request, if adaptive periodic locating was started
+    private static void schedulePeriodicLocating(Context context, boolean earlier) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        if (!prefs.contains(SettingsFragment.PREF_SAMPLING_NEXT))
+            return;
+
+        long now = new Date().getTime();
+        long next = now + SamplingScheduler.getInstance(context).getInterval() * 1000L;
+        long scheduled = prefs.getLong(SettingsFragment.PREF_SAMPLING_NEXT, 0);
+        if (earlier && scheduled > now && scheduled <= next)
+            return;
+
+        Intent alarmIntent = new Intent(context, BackgroundService.class);
+        alarmIntent.setAction(BackgroundService.ACTION_PERIODIC);
+        PendingIntent pi = PendingIntent.getService(context, 0, alarmIntent, PendingIntent.FLAG_UPDATE_CURRENT);
+        AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        am.set(AlarmManager.RTC_WAKEUP, next, pi);
+        prefs.edit().putLong(SettingsFragment.PREF_SAMPLING_NEXT, next).apply();
+        Log.i(TAG, "Next periodic locating in " + (next - now) / 1000 + "s");
+    }
+
     private static void stopPeriodicLocating(Context context) {
         // Cancel repeating alarm
         Intent alarmIntent = new Intent(context, BackgroundService.class);
@@ -1293,6 +1569,8 @@ public class BackgroundService extends IntentService {
         PendingIntent pi = PendingIntent.getService(context, 0, alarmIntent, PendingIntent.FLAG_UPDATE_CURRENT);
         AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
         am.cancel(pi);
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        prefs.edit().remove(SettingsFragment.PREF_SAMPLING_NEXT).apply();
         Log.i(TAG, "Stop periodic locating");
     }
 
@@ -1322,28 +1600,15 @@ public class BackgroundService extends IntentService {
                 gps = false;
         }
 
-        // Request coarse location
-        if (network && lm.isProviderEnabled(LocationManager.NETWORK_PROVIDER)) {
-            Intent locationIntent = new Intent(context, BackgroundService.class);
-            locationIntent.setAction(BackgroundService.ACTION_LOCATION_COARSE);
-            PendingIntent pi = PendingIntent.getService(context, 0, locationIntent, PendingIntent.FLAG_UPDATE_CURRENT);
-            lm.requestLocationUpdates(LocationManager.NETWORK_PROVIDER, minTime * 1000, minDist, pi);
-            Log.i(TAG, "Requested network location updates");
-        }
+        network = (network && lm.isProviderEnabled(LocationManager.NETWORK_PROVIDER));
+        gps = (gps && lm.isProviderEnabled(LocationManager.GPS_PROVIDER));
 
-        // Request fine location
-        if (gps && lm.isProviderEnabled(LocationManager.GPS_PROVIDER)) {
-            Intent locationIntent = new Intent(context, BackgroundService.class);
-            locationIntent.setAction(BackgroundService.ACTION_LOCATION_FINE);
-            PendingIntent pi = PendingIntent.getService(context, 0, locationIntent, PendingIntent.FLAG_UPDATE_CURRENT);
-            lm.requestLocationUpdates(LocationManager.GPS_PROVIDER, minTime * 1000, minDist, pi);
-            context.startService(new Intent(context, GpsStatusService.class));
-            Log.i(TAG, "Requested GPS location updates");
-        }
+        // Predict time-out and satellite check from previous acquisitions
+        FixPredictor.Prediction prediction = FixPredictor.getInstance(context).predict(TrackingState.getInstance(context).getLastLocation());
+        int timeout = prediction.timeout;
 
         // Initiate location timeout
-        if ((network && lm.isProviderEnabled(LocationManager.NETWORK_PROVIDER)) || (gps && lm.isProviderEnabled(LocationManager.GPS_PROVIDER))) {
-            int timeout = Integer.parseInt(prefs.getString(SettingsFragment.PREF_TIMEOUT, SettingsFragment.DEFAULT_TIMEOUT));
+        if (network || gps) {
             Intent alarmIntent = new Intent(context, BackgroundService.class);
             alarmIntent.setAction(BackgroundService.ACTION_LOCATION_TIMEOUT);
             PendingIntent pi = PendingIntent.getService(context, 0, alarmIntent, PendingIntent.FLAG_UPDATE_CURRENT);
@@ -1354,14 +1619,21 @@ public class BackgroundService extends IntentService {
                 am.set(AlarmManager.RTC_WAKEUP, new Date().getTime() + timeout * 1000, pi);
             Log.i(TAG, "Set timeout=" + timeout + "s");
 
+            // A previous session could otherwise mark the new acquisition acquired
+            LocationSession.getInstance(context).stop();
             prefs.edit().putInt(SettingsFragment.PREF_STATE, STATE_ACQUIRING).apply();
             showStateNotification(context);
+
+            // Request coarse and fine location
+            LocationSession.getInstance(context).start(network, gps, minTime, minDist, timeout);
+            if (gps)
+                context.startService(new Intent(context, GpsStatusService.class));
         } else
             Log.i(TAG, "No location providers");
 
         // Initiate satellite check
-        if (gps && lm.isProviderEnabled(LocationManager.GPS_PROVIDER)) {
-            int check = Integer.parseInt(prefs.getString(SettingsFragment.PREF_CHECK_TIME, SettingsFragment.DEFAULT_CHECK_TIME));
+        if (gps) {
+            int check = prediction.checkTime;
             Intent alarmIntent = new Intent(context, BackgroundService.class);
             alarmIntent.setAction(BackgroundService.ACTION_LOCATION_CHECK);
             PendingIntent pi = PendingIntent.getService(context, 0, alarmIntent, PendingIntent.FLAG_UPDATE_CURRENT);
@@ -1394,24 +1666,10 @@ public class BackgroundService extends IntentService {
         Log.i(TAG, "Stop locating");
 
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-        LocationManager lm = (LocationManager) context.getSystemService(Context.LOCATION_SERVICE);
-
-        // Cancel coarse location updates
-        {
-            Intent locationIntent = new Intent(context, BackgroundService.class);
-            locationIntent.setAction(BackgroundService.ACTION_LOCATION_COARSE);
-            PendingIntent pi = PendingIntent.getService(context, 0, locationIntent, PendingIntent.FLAG_UPDATE_CURRENT);
-            lm.removeUpdates(pi);
-        }
 
-        // Cancel fine location updates
-        {
-            Intent locationIntent = new Intent(context, BackgroundService.class);
-            locationIntent.setAction(BackgroundService.ACTION_LOCATION_FINE);
-            PendingIntent pi = PendingIntent.getService(context, 0, locationIntent, PendingIntent.FLAG_UPDATE_CURRENT);
-            lm.removeUpdates(pi);
-            context.stopService(new Intent(context, GpsStatusService.class));
-        }
+        // Cancel location updates
+        LocationSession.getInstance(context).stop();
+        context.stopService(new Intent(context, GpsStatusService.class));
 
         // Cancel check
         {
@@ -1437,8 +1695,8 @@ public class BackgroundService extends IntentService {
         SharedPreferences.Editor editor = prefs.edit();
         editor.putInt(SettingsFragment.PREF_STATE, STATE_IDLE);
         editor.remove(SettingsFragment.PREF_LOCATION_TYPE);
-        editor.remove(SettingsFragment.PREF_BEST_LOCATION);
         editor.apply();
+        TrackingState.getInstance(context).setBestLocation(null);
         showStateNotification(context);
     }
 
@@ -1549,21 +1807,25 @@ public class BackgroundService extends IntentService {
             intent.putExtra(EXTRA_TIME_TO, new DateTime((String) extras.get(EXTRA_TIME_TO)).getMillis());
     }
 
-    private boolean isBetterLocation(Location prev, Location current) {
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
-        boolean pref_altitude = prefs.getBoolean(SettingsFragment.PREF_ALTITUDE, SettingsFragment.DEFAULT_ALTITUDE);
-        return (prev == null ||
-                ((!pref_altitude || !prev.hasAltitude() || current.hasAltitude()) &&
-                        (current.hasAccuracy() ? current.getAccuracy() : Float.MAX_VALUE) <
-                                (prev.hasAccuracy() ? prev.getAccuracy() : Float.MAX_VALUE)));
-    }
-
     private void handleLocation(int locationType, Location location) {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
 
+        // Smooth location
+        boolean filter = ((locationType == LOCATION_TRACKPOINT &&
+                prefs.getBoolean(SettingsFragment.PREF_FILTER_TRACKPOINT, SettingsFragment.DEFAULT_FILTER_TRACKPOINT)) ||
+                (locationType == LOCATION_PERIODIC &&
+                        prefs.getBoolean(SettingsFragment.PREF_FILTER_PERIODIC, SettingsFragment.DEFAULT_FILTER_PERIODIC)));
+        if (filter) {
+            location = filterLocation(locationType, location, this);
+            if (location == null)
+                return;
+        }
+        if (locationType != LOCATION_WAYPOINT && locationType != LOCATION_AUTO)
+            SamplingScheduler.getInstance(this).onLocation(location);
+
         // Filter nearby locations
         int pref_nearby = Integer.parseInt(prefs.getString(SettingsFragment.PREF_NEARBY, SettingsFragment.DEFAULT_NEARBY));
-        Location lastLocation = LocationDeserializer.deserialize(prefs.getString(SettingsFragment.PREF_LAST_LOCATION, null));
+        Location lastLocation = TrackingState.getInstance(this).getLastLocation();
         if (locationType == LOCATION_TRACKPOINT || locationType == LOCATION_WAYPOINT || locationType == LOCATION_AUTO ||
                 lastLocation == null || Util.distance(lastLocation, location) >= pref_nearby ||
                 (lastLocation.hasAccuracy() ? lastLocation.getAccuracy() : Float.MAX_VALUE) >
@@ -1620,15 +1882,11 @@ public class BackgroundService extends IntentService {
             }
 
             // Persist new location
-            prefs.edit().putString(SettingsFragment.PREF_LAST_LOCATION, LocationSerializer.serialize(location)).apply();
-            DatabaseHelper dh = null;
-            try {
-                dh = new DatabaseHelper(this);
-                dh.insertLocation(location, altitude_type, waypointName).close();
-            } finally {
-                if (dh != null)
-                    dh.close();
-            }
+            TrackingState.getInstance(this).setLastLocation(location);
+            if (waypointName == null)
+                storeTrackpoint(location, altitude_type, locationType == LOCATION_PERIODIC);
+            else
+                DatabaseHelper.getInstance(this).insertLocation(location, altitude_type, waypointName);
 
             // Feedback
             showStateNotification(this);
@@ -1642,8 +1900,106 @@ public class BackgroundService extends IntentService {
 
             if (locationType == LOCATION_TRACKPOINT || locationType == LOCATION_PERIODIC)
                 handleStationary(location);
-        } else
+
+            // Use the new speed
+            if (locationType == LOCATION_PERIODIC)
+                schedulePeriodicLocating(this, false);
+        } else {
             Log.i(TAG, "Filtered location=" + location);
+            if (filter)
+                LocationFilter.getInstance(locationType).absorbed();
+        }
+    }
+
+    private void storePassiveTrackpoints() {
+        if (passiveBatch.size() == 0)
+            return;
+
+        try {
+            if (passiveBatch.size() == 1)
+                storeTrackpoint(passiveBatch.get(0), passiveAltitudeTypes.get(0), true);
+            else
+                storeTrackpoints(passiveBatch, passiveAltitudeTypes);
+        } finally {
+            passiveBatch.clear();
+            passiveAltitudeTypes.clear();
+        }
+    }
+
+    // Simplifies like storeTrackpoint, but inserts the remaining trackpoints in one batch;
+    // trackpoints not inserted yet are known to the simplifier by a provisional ID
+    private void storeTrackpoints(List<Location> locations, List<Integer> altitude_types) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        int tolerance = Integer.parseInt(prefs.getString(SettingsFragment.PREF_SIMPLIFY_TOLERANCE, SettingsFragment.DEFAULT_SIMPLIFY_TOLERANCE));
+        DatabaseHelper dh = DatabaseHelper.getInstance(this);
+        TrackSimplifier simplifier = TrackSimplifier.getInstance();
+
+        List<Location> batch = new ArrayList<>();
+        List<Integer> types = new ArrayList<>();
+        for (int i = 0; i < locations.size(); i++) {
+            Location location = locations.get(i);
+            int altitude_type = altitude_types.get(i);
+            long id = (tolerance > 0 ? simplifier.getRevisable(location, tolerance) : -1);
+            if (TrackSimplifier.isProvisional(id)) {
+                int index = TrackSimplifier.getProvisionalIndex(id);
+                batch.set(index, location);
+                types.set(index, altitude_type);
+                simplifier.stored(location, id, true);
+            } else if (id >= 0 && dh.reviseLocation(id, location, altitude_type)) {
+                Log.i(TAG, "Revised trackpoint id=" + id + " location=" + location);
+                simplifier.stored(location, id, true);
+            } else {
+                batch.add(location);
+                types.add(altitude_type);
+                if (tolerance > 0)
+                    simplifier.stored(location, TrackSimplifier.getProvisionalId(batch.size() - 1), false);
+                else
+                    simplifier.commit(location);
+            }
+        }
+
+        long[] ids = null;
+        try {
+            ids = dh.insertLocations(batch, types);
+        } finally {
+            if (ids == null)
+                simplifier.reset();
+            else
+                for (int i = 0; i < ids.length; i++)
+                    simplifier.resolve(TrackSimplifier.getProvisionalId(i), ids[i]);
+        }
+    }
+
+    // Revises the pending trackpoint instead of inserting when the track stays within tolerance
+    private void storeTrackpoint(Location location, int altitude_type, boolean simplify) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        int tolerance = Integer.parseInt(prefs.getString(SettingsFragment.PREF_SIMPLIFY_TOLERANCE, SettingsFragment.DEFAULT_SIMPLIFY_TOLERANCE));
+        DatabaseHelper dh = DatabaseHelper.getInstance(this);
+        TrackSimplifier simplifier = TrackSimplifier.getInstance();
+
+        if (simplify && tolerance > 0) {
+            long id = simplifier.getRevisable(location, tolerance);
+            if (id >= 0 && dh.reviseLocation(id, location, altitude_type)) {
+                Log.i(TAG, "Revised trackpoint id=" + id + " location=" + location);
+                simplifier.stored(location, id, true);
+            } else
+                simplifier.stored(location, dh.insertLocation(location, altitude_type, null), false);
+        } else {
+            dh.insertLocation(location, altitude_type, null);
+            simplifier.commit(location);
+        }
+    }
+
+    // Returns null for outliers
+    private static Location filterLocation(int type, Location location, Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        int speed = Integer.parseInt(prefs.getString(SettingsFragment.PREF_FILTER_SPEED, SettingsFragment.DEFAULT_FILTER_SPEED));
+        Location filtered = LocationFilter.getInstance(type).filter(location, speed);
+        if (filtered == null)
+            Log.i(TAG, "Rejected outlier location=" + location);
+        else if (filtered != location)
+            Log.i(TAG, "Smoothed location=" + filtered);
+        return filtered;
     }
 
     private void handleStationary(Location location) {
@@ -1657,41 +2013,29 @@ public class BackgroundService extends IntentService {
 
         if (enabled) {
             // Get last stationary
-            Location lastStationary = LocationDeserializer.deserialize(prefs.getString(SettingsFragment.PREF_LAST_STATIONARY, null));
+            TrackingState state = TrackingState.getInstance(this);
+            Location lastStationary = state.getLastStationary();
             if (lastStationary != null)
                 if (location.distanceTo(lastStationary) > distance) {
                     // Check stationary time
                     if (location.getTime() - lastStationary.getTime() >= time * 60 * 1000) {
                         // Use averages
-                        lastStationary.setLatitude(prefs.getFloat(SettingsFragment.PREF_LAST_STATIONARY_LAT, (float) lastStationary.getLatitude()));
-                        lastStationary.setLongitude(prefs.getFloat(SettingsFragment.PREF_LAST_STATIONARY_LON, (float) lastStationary.getLongitude()));
-                        lastStationary.setAltitude(prefs.getFloat(SettingsFragment.PREF_LAST_STATIONARY_ALT, (float) lastStationary.getAltitude()));
+                        state.applyStationaryAverage(lastStationary);
 
                         // Check if nearby waypoint
                         boolean exists = false;
                         if (duplicate > 0) {
-                            DatabaseHelper dh = null;
                             Cursor cursor = null;
                             try {
-                                dh = new DatabaseHelper(this);
-                                cursor = dh.getLocations(0, Long.MAX_VALUE, false, true, false, duplicate);
-                                int colLatitude = cursor.getColumnIndex("latitude");
-                                int colLongitude = cursor.getColumnIndex("longitude");
-                                while (cursor.moveToNext()) {
-                                    Location wpt = new Location("waypoint");
-                                    wpt.setLatitude(cursor.getDouble(colLatitude));
-                                    wpt.setLongitude(cursor.getDouble(colLongitude));
-                                    if (wpt.distanceTo(lastStationary) <= distance) {
-                                        Log.i(TAG, "Stationary exists name=" + cursor.getString(cursor.getColumnIndex("name")));
-                                        exists = true;
-                                        break;
-                                    }
+                                cursor = DatabaseHelper.getInstance(this).findWaypointsWithin(
+                                        lastStationary.getLatitude(), lastStationary.getLongitude(), distance);
+                                if (cursor.moveToFirst()) {
+                                    Log.i(TAG, "Stationary exists name=" + cursor.getString(cursor.getColumnIndex("name")));
+                                    exists = true;
                                 }
                             } finally {
                                 if (cursor != null)
                                     cursor.close();
-                                if (dh != null)
-                                    dh.close();
                             }
                         }
 
@@ -1701,28 +2045,9 @@ public class BackgroundService extends IntentService {
                     }
 
                     // Delete average
-                    SharedPreferences.Editor editor = prefs.edit();
-                    editor.remove(SettingsFragment.PREF_LAST_STATIONARY_AVG);
-                    editor.remove(SettingsFragment.PREF_LAST_STATIONARY_LAT);
-                    editor.remove(SettingsFragment.PREF_LAST_STATIONARY_LON);
-                    editor.remove(SettingsFragment.PREF_LAST_STATIONARY_ALT);
-                    editor.apply();
+                    state.clearStationaryAverage();
                 } else {
-                    int count = prefs.getInt(SettingsFragment.PREF_LAST_STATIONARY_AVG, 1);
-                    float lat = prefs.getFloat(SettingsFragment.PREF_LAST_STATIONARY_LAT, (float) lastStationary.getLatitude());
-                    float lon = prefs.getFloat(SettingsFragment.PREF_LAST_STATIONARY_LON, (float) lastStationary.getLongitude());
-                    float alt = prefs.getFloat(SettingsFragment.PREF_LAST_STATIONARY_ALT, (float) lastStationary.getAltitude());
-
-                    lat = (lat * count + (float) location.getLatitude()) / (count + 1);
-                    lon = (lon * count + (float) location.getLongitude()) / (count + 1);
-                    alt = (alt * count + (float) location.getAltitude()) / (count + 1);
-
-                    SharedPreferences.Editor editor = prefs.edit();
-                    editor.putInt(SettingsFragment.PREF_LAST_STATIONARY_AVG, count + 1);
-                    editor.putFloat(SettingsFragment.PREF_LAST_STATIONARY_LAT, lat);
-                    editor.putFloat(SettingsFragment.PREF_LAST_STATIONARY_LON, lon);
-                    editor.putFloat(SettingsFragment.PREF_LAST_STATIONARY_ALT, alt);
-                    editor.apply();
+                    state.addStationaryAverage(lastStationary, location);
 
                     location.setLatitude(lastStationary.getLatitude());
                     location.setLongitude(lastStationary.getLongitude());
@@ -1730,11 +2055,11 @@ public class BackgroundService extends IntentService {
                 }
 
             // Move on
-            prefs.edit().putString(SettingsFragment.PREF_LAST_STATIONARY, LocationSerializer.serialize(location)).apply();
+            state.setLastStationary(location);
         }
     }
 
-    private static void correctAltitude(Location location, Context context) {
+    static void correctAltitude(Location location, Context context) {
         if (LocationManager.GPS_PROVIDER.equals(location.getProvider())) {
             SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
             if (prefs.getBoolean(SettingsFragment.PREF_CORRECTION_ENABLED, SettingsFragment.DEFAULT_CORRECTION_ENABLED))
@@ -1787,7 +2112,7 @@ public class BackgroundService extends IntentService {
         }
     }
 
-    private static void showStateNotification(Context context) {
+    static void showStateNotification(Context context) {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
 
         // Check if tracking enabled
@@ -1799,7 +2124,7 @@ public class BackgroundService extends IntentService {
         // Get state
         int state = prefs.getInt(SettingsFragment.PREF_STATE, STATE_IDLE);
         int activityType = prefs.getInt(SettingsFragment.PREF_LAST_ACTIVITY, DetectedActivity.STILL);
-        Location lastLocation = LocationDeserializer.deserialize(prefs.getString(SettingsFragment.PREF_LAST_LOCATION, null));
+        Location lastLocation = TrackingState.getInstance(context).getLastLocation();
 
         // Get title
         String activity = getActivityName(activityType, context);
@@ -1811,15 +2136,8 @@ public class BackgroundService extends IntentService {
             if (lastLocation.hasAltitude())
                 altitude = Long.toString(Math.round(lastLocation.getAltitude()));
         }
-        long steps;
-        DatabaseHelper db = null;
-        try {
-            db = new DatabaseHelper(context);
-            steps = db.getSteps(new Date().getTime());
-        } finally {
-            if (db != null)
-                db.close();
-        }
+        long now = new Date().getTime();
+        long steps = DatabaseHelper.getInstance(context).getSteps(now) + StepCounterService.getPendingSteps(now);
         String title = context.getString(R.string.msg_notification, activity, bearing, altitude, steps);
 
         // Get text
@@ -1835,14 +2153,31 @@ public class BackgroundService extends IntentService {
             }
         else if (state == STATE_ACQUIRING)
             text = context.getString(R.string.msg_acquiring);
-        else if (state == STATE_ACQUIRED) {
-            Location bestLocation = LocationDeserializer.deserialize(prefs.getString(SettingsFragment.PREF_BEST_LOCATION, null));
+
+        Location bestLocation = null;
+        if (state != STATE_IDLE)
+            bestLocation = TrackingState.getInstance(context).getBestLocation();
+        if (state == STATE_ACQUIRED) {
             text = context.getString(R.string.msg_acquired,
                     SimpleDateFormat.getDateTimeInstance(SimpleDateFormat.SHORT, SimpleDateFormat.MEDIUM).format(new Date(bestLocation.getTime())),
                     getProviderName(bestLocation, context),
                     bestLocation.hasAccuracy() ? Math.round(bestLocation.getAccuracy()) : 0);
         }
 
+        // Get progress and accept action
+        int fixed = prefs.getInt(SettingsFragment.PREF_SATS_FIXED, 0);
+        int visible = prefs.getInt(SettingsFragment.PREF_SATS_VISIBLE, 0);
+        boolean pressure = prefs.getBoolean(SettingsFragment.PREF_PRESSURE_ENABLED, SettingsFragment.DEFAULT_PRESSURE_ENABLED);
+        pressure = (pressure ? prefs.getFloat(SettingsFragment.PREF_PRESSURE_VALUE, -1) >= 0 : true);
+        boolean accept = (bestLocation != null && pressure);
+
+        // Skip when nothing visible changed
+        String key = state + "|" + activityType + "|" + title + "|" + text + "|" +
+                (lastLocation == null ? "-" : lastLocation.getTime()) +
+                (state == STATE_IDLE ? "" : "|" + fixed + "/" + visible + "|" + accept);
+        if (!NotificationRenderer.isChanged(NOTIFICATION_LOCATION, key))
+            return;
+
         // Build main intent
         Intent riMain = new Intent(context, SettingsActivity.class);
         riMain.putExtra(SettingsFragment.EXTRA_ACTION, SettingsFragment.ACTION_LOCATION);
@@ -1851,8 +2186,8 @@ public class BackgroundService extends IntentService {
         // Build notification
         Notification.Builder notificationBuilder = new Notification.Builder(context);
 
-        Bitmap largeIcon = BitmapFactory.decodeResource(context.getResources(), Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP ? R.drawable.backpacker_white : R.drawable.backpacker_black);
-        notificationBuilder.setLargeIcon(largeIcon.copy(Bitmap.Config.ARGB_8888, true));
+        notificationBuilder.setLargeIcon(NotificationRenderer.getLargeIcon(
+                Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP ? R.drawable.backpacker_white : R.drawable.backpacker_black, context));
 
         if (activityType == DetectedActivity.STILL)
             notificationBuilder.setSmallIcon(R.drawable.pause);
@@ -1907,8 +2242,6 @@ public class BackgroundService extends IntentService {
 
         } else {
             // Indeterminate progress
-            int fixed = prefs.getInt(SettingsFragment.PREF_SATS_FIXED, 0);
-            int visible = prefs.getInt(SettingsFragment.PREF_SATS_VISIBLE, 0);
             if (visible == 0)
                 notificationBuilder.setProgress(0, 0, true);
             else
@@ -1931,10 +2264,7 @@ public class BackgroundService extends IntentService {
                 notificationBuilder.addAction(android.R.drawable.ic_menu_close_clear_cancel, context.getString(android.R.string.cancel), piStop);
 
             // Add accept action
-            Location bestLocation = LocationDeserializer.deserialize(prefs.getString(SettingsFragment.PREF_BEST_LOCATION, null));
-            boolean pressure = prefs.getBoolean(SettingsFragment.PREF_PRESSURE_ENABLED, SettingsFragment.DEFAULT_PRESSURE_ENABLED);
-            pressure = (pressure ? prefs.getFloat(SettingsFragment.PREF_PRESSURE_VALUE, -1) >= 0 : true);
-            if (bestLocation != null && pressure)
+            if (accept)
                 if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
                     notificationBuilder.addAction(new Notification.Action.Builder(Icon.createWithResource(context, android.R.drawable.ic_menu_save), context.getString(R.string.title_accept), piAccept).build());
                 else
@@ -1944,12 +2274,11 @@ public class BackgroundService extends IntentService {
         NotificationManager nm = (NotificationManager) context.getSystemService(NOTIFICATION_SERVICE);
         Notification.BigTextStyle notification = new Notification.BigTextStyle(notificationBuilder);
         notification.bigText(text);
-        nm.notify(NOTIFICATION_LOCATION, notification.build());
+        NotificationRenderer.notify(NOTIFICATION_LOCATION, key, notification.build(), context);
     }
 
     private static void removeStateNotification(Context context) {
-        NotificationManager nm = (NotificationManager) context.getSystemService(NOTIFICATION_SERVICE);
-        nm.cancel(NOTIFICATION_LOCATION);
+        NotificationRenderer.cancel(NOTIFICATION_LOCATION, context);
     }
 
     private static void showWeatherNotification(Weather weather, Context context) {
@@ -1998,8 +2327,7 @@ public class BackgroundService extends IntentService {
         }
 
         int resId = getWeatherIcon(weather, Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP, context);
-        Bitmap largeIcon = BitmapFactory.decodeResource(context.getResources(), resId);
-        notificationBuilder.setLargeIcon(largeIcon.copy(Bitmap.Config.ARGB_8888, true));
+        notificationBuilder.setLargeIcon(NotificationRenderer.getLargeIcon(resId, context));
         notificationBuilder.setSmallIcon(getTemperatureIcon((float) temperature, context));
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
@@ -2149,6 +2477,41 @@ public class BackgroundService extends IntentService {
         nm.notify(NOTIFICATION_WEATHER, notification.build());
     }
 
+    private static void showProgressNotification(ExecutionLane lane, int current, int total, Context context) {
+        Notification.Builder notificationBuilder = new Notification.Builder(context);
+        notificationBuilder.setSmallIcon(android.R.drawable.stat_sys_download);
+        notificationBuilder.setContentTitle(context.getString(R.string.app_name));
+        notificationBuilder.setContentText(context.getString(R.string.msg_progress, current, total));
+        notificationBuilder.setProgress(total, current, false);
+        notificationBuilder.setOnlyAlertOnce(true);
+        notificationBuilder.setAutoCancel(false);
+        notificationBuilder.setOngoing(true);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            notificationBuilder.setCategory(Notification.CATEGORY_PROGRESS);
+            notificationBuilder.setVisibility(Notification.VISIBILITY_PUBLIC);
+        }
+
+        // Build cancel intent
+        Intent riCancel = new Intent(context, BackgroundService.class);
+        riCancel.setAction(BackgroundService.ACTION_CANCEL);
+        riCancel.putExtra(EXTRA_LANE, lane.getName());
+        PendingIntent piCancel = PendingIntent.getService(context, REQUEST_CANCEL, riCancel, PendingIntent.FLAG_UPDATE_CURRENT);
+
+        // Add cancel action
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
+            notificationBuilder.addAction(new Notification.Action.Builder(Icon.createWithResource(context, android.R.drawable.ic_menu_close_clear_cancel), context.getString(android.R.string.cancel), piCancel).build());
+        else
+            notificationBuilder.addAction(android.R.drawable.ic_menu_close_clear_cancel, context.getString(android.R.string.cancel), piCancel);
+
+        NotificationManager nm = (NotificationManager) context.getSystemService(NOTIFICATION_SERVICE);
+        nm.notify(lane.getName(), NOTIFICATION_PROGRESS, notificationBuilder.build());
+    }
+
+    private static void removeProgressNotification(ExecutionLane lane, Context context) {
+        NotificationManager nm = (NotificationManager) context.getSystemService(NOTIFICATION_SERVICE);
+        nm.cancel(lane.getName(), NOTIFICATION_PROGRESS);
+    }
+
     private static void removeWeatherNotification(Context context) {
         NotificationManager nm = (NotificationManager) context.getSystemService(NOTIFICATION_SERVICE);
         nm.cancel(NOTIFICATION_WEATHER);
@@ -2178,8 +2541,8 @@ public class BackgroundService extends IntentService {
 
         Notification.Builder notificationBuilder = new Notification.Builder(context);
 
-        Bitmap largeIcon = BitmapFactory.decodeResource(context.getResources(), Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP ? R.drawable.umbrella_white : R.drawable.umbrella_black);
-        notificationBuilder.setLargeIcon(largeIcon.copy(Bitmap.Config.ARGB_8888, true));
+        notificationBuilder.setLargeIcon(NotificationRenderer.getLargeIcon(
+                Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP ? R.drawable.umbrella_white : R.drawable.umbrella_black, context));
         notificationBuilder.setSmallIcon(R.drawable.umbrella_white);
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
@@ -2324,11 +2687,10 @@ public class BackgroundService extends IntentService {
                 " extensions=" + extensions +
                 " from=" + SimpleDateFormat.getDateTimeInstance().format(new Date(from)) +
                 " to=" + SimpleDateFormat.getDateTimeInstance().format(new Date(to)));
-        DatabaseHelper dh = null;
+        DatabaseHelper dh = DatabaseHelper.getInstance(context);
         Cursor trackPoints = null;
         Cursor wayPoints = null;
         try {
-            dh = new DatabaseHelper(context);
             trackPoints = dh.getLocations(from, to, true, false, true, 0);
             wayPoints = dh.getLocations(from, to, false, true, true, 0);
             if (gpx)
@@ -2340,63 +2702,51 @@ public class BackgroundService extends IntentService {
                 wayPoints.close();
             if (trackPoints != null)
                 trackPoints.close();
-            if (dh != null)
-                dh.close();
         }
         return fileName;
     }
 
     public static void getAltitude(long from, long to, Context context) throws IOException, JSONException {
+        getAltitude(from, to, null, context);
+    }
+
+    // Lane is optional and used for cancellation and progress
+    private static void getAltitude(long from, long to, ExecutionLane lane, Context context) throws IOException, JSONException {
         Log.i(TAG, "Get altitude" +
                 " from=" + SimpleDateFormat.getDateTimeInstance().format(new Date(from)) +
                 " to=" + SimpleDateFormat.getDateTimeInstance().format(new Date(to)));
 
-        DatabaseHelper dh = null;
-        Cursor cursor = null;
+        DatabaseHelper dh = DatabaseHelper.getInstance(context);
+        TrackSlice slice = dh.getTrackSlice(from, to, true, true, TrackSlice.ID | TrackSlice.POSITION | TrackSlice.ALTITUDE);
         boolean first = true;
-        try {
-            dh = new DatabaseHelper(context);
-            cursor = dh.getLocations(from, to, true, true, true, 0);
-
-            int colID = cursor.getColumnIndex("ID");
-            int colTime = cursor.getColumnIndex("time");
-            int colProvider = cursor.getColumnIndex("provider");
-            int colLatitude = cursor.getColumnIndex("latitude");
-            int colLongitude = cursor.getColumnIndex("longitude");
-            int colAltitudeType = cursor.getColumnIndex("altitude_type");
-
-            while (cursor.moveToNext()) {
-                long id = cursor.getLong(colID);
-                long time = cursor.getLong(colTime);
-                final String provider = cursor.getString(colProvider);
-                double latitude = cursor.getDouble(colLatitude);
-                double longitude = cursor.getDouble(colLongitude);
-                int altitude_type = (cursor.isNull(colAltitudeType) ? ALTITUDE_NONE : cursor.getInt(colAltitudeType));
-
-                if ((altitude_type & ALTITUDE_KEEP) == 0 &&
-                        (altitude_type & ~ALTITUDE_KEEP) != ALTITUDE_LOOKUP) {
-                    Location location = new Location(provider);
-                    location.setLatitude(latitude);
-                    location.setLongitude(longitude);
-                    location.setTime(time);
-                    GoogleElevationApi.getElevation(location, context);
-                    if (first)
-                        first = false;
-                    else
-                        try {
-                            // Max. 5 requests/second
-                            Thread.sleep(200);
-                        } catch (InterruptedException ignored) {
-                        }
-                    Log.i(TAG, "New altitude for location=" + location);
-                    dh.updateLocationAltitude(id, location.getAltitude(), ALTITUDE_LOOKUP);
+        for (int i = 0; i < slice.count; i++) {
+            if (lane != null) {
+                if (lane.isCancelled()) {
+                    Log.i(TAG, "Get altitude cancelled at " + i + "/" + slice.count);
+                    break;
                 }
+                lane.progress(i, slice.count);
+            }
+
+            int altitude_type = slice.altitudeType[i];
+            if ((altitude_type & ALTITUDE_KEEP) == 0 &&
+                    (altitude_type & ~ALTITUDE_KEEP) != ALTITUDE_LOOKUP) {
+                Location location = new Location(LocationManager.GPS_PROVIDER);
+                location.setLatitude(slice.latitude[i]);
+                location.setLongitude(slice.longitude[i]);
+                location.setTime(slice.time[i]);
+                GoogleElevationApi.getElevation(location, context);
+                if (first)
+                    first = false;
+                else
+                    try {
+                        // Max. 5 requests/second
+                        Thread.sleep(200);
+                    } catch (InterruptedException ignored) {
+                    }
+                Log.i(TAG, "New altitude for location=" + location);
+                dh.updateLocationAltitude(slice.id[i], location.getAltitude(), ALTITUDE_LOOKUP);
             }
-        } finally {
-            if (cursor != null)
-                cursor.close();
-            if (dh != null)
-                dh.close();
         }
     }
 
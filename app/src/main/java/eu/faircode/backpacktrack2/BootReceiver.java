@@ -28,7 +28,7 @@ public class BootReceiver extends BroadcastReceiver {
         new Thread(new Runnable() {
             @Override
             public void run() {
-                synchronized (context.getApplicationContext()) {
+                synchronized (SettingsFragment.mLifecycleLock) {
                     SettingsFragment.firstRun(context);
                 }
             }
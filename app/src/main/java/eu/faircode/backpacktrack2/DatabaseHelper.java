@@ -6,11 +6,14 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.location.Location;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Message;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
@@ -20,32 +23,128 @@ import java.io.File;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
 import java.util.TimeZone;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class DatabaseHelper extends SQLiteOpenHelper {
     private static final String TAG = "BPT2.Database";
 
     private static final String DB_NAME = "BackPackTrackII";
-    private static final int DB_VERSION = 27;
+    private static final int DB_VERSION = 35;
 
     private static HandlerThread hthread = null;
     private static Handler handler = null;
 
-    private final static int MSG_LOCATION_UPDATED = 1;
-
-    private static List<LocationChangedListener> mLocationChangedListeners = new ArrayList<LocationChangedListener>();
-    private static List<ActivityTypeChangedListener> mActivityTypeChangedListeners = new ArrayList<ActivityTypeChangedListener>();
-    private static List<ActivityDurationChangedListener> mActivityDurationChangedListeners = new ArrayList<ActivityDurationChangedListener>();
-    private static List<ActivityLogChangedListener> mActivityLogChangedListeners = new ArrayList<ActivityLogChangedListener>();
-    private static List<StepCountChangedListener> mStepCountChangedListeners = new ArrayList<StepCountChangedListener>();
-    private static List<WeatherChangedListener> mWeatherChangedListeners = new ArrayList<WeatherChangedListener>();
+    private final static int MSG_CHANGED = 1;
+
+    // Change notifications
+    public static final int TABLE_LOCATION = 0;
+    public static final int TABLE_ACTIVITY_TYPE = 1;
+    public static final int TABLE_ACTIVITY_DURATION = 2;
+    public static final int TABLE_ACTIVITY_LOG = 3;
+    public static final int TABLE_STEP = 4;
+    public static final int TABLE_WEATHER = 5;
+    private static final int TABLES = 6;
+
+    public static final int CHANGE_ADDED = 1;
+    public static final int CHANGE_UPDATED = 1 << 1;
+    public static final int CHANGE_DELETED = 1 << 2;
+
+    private static final List<List<ChangeListener>> mChangeListeners = new ArrayList<List<ChangeListener>>();
+    private static final Change[] mPendingChanges = new Change[TABLES];
+    private static final long[] mChangeWindow = new long[]{2500, 1000, 1000, 1000, 1000, 1000};
+
+    private static DatabaseHelper mInstance = null;
+
+    // One writer at a time, per table locks would still wait for the single writer connection
+    private static final WriteLock mWriteLock = new WriteLock("database");
+
+    private static final long ACTIVITY_FLUSH_DELAY = 60 * 1000L;
+    private static final long ACTIVITY_JOURNAL_DELAY = 5 * 1000L;
+    private static final int VACUUM_FREE_PERCENTAGE = 10;
+    private static final int VACUUM_PAGES = 256;
+    private static final int PURGE_BATCH = 500;
+
+    // Explicit order, upgraded databases have the columns in a different order
+    private static final String LOCATION_COLUMNS =
+            "ID, time, provider, latitude, longitude, altitude, altitude_type, speed, bearing, accuracy" +
+                    ", name, proximity, hidden, deleted, sent";
+
+    // Waypoint grid of 0.01 degree cells, row major; the expression and getCell must match exactly
+    private static final double CELL_SIZE = 0.01; // degrees
+    private static final int CELL_ROW = 36001; // cells
+    private static final String CELL_EXPRESSION =
+            "CAST((latitude + 90) / " + CELL_SIZE + " AS INTEGER) * " + CELL_ROW +
+                    " + CAST((longitude + 180) / " + CELL_SIZE + " AS INTEGER)";
+    private static final double EARTH_RADIUS = 6371000; // meters
+
+    // Nearest location search, the radius grows by a factor until enough locations were found
+    private static final double NEAREST_RADIUS = 100; // meters
+    private static final double NEAREST_MAX_RADIUS = 20000000; // meters
 
     private Context mContext;
+    private ActivityAccumulator mActivityAccumulator;
+
+    // Step count of one day, guarded by the write lock
+    private long mStepDay = -1;
+    private int mStepCount;
+    static final String QUERY_WAYPOINTS = "SELECT ID AS _id, latitude, longitude, name FROM location" +
+            " WHERE name IS NOT NULL AND (hidden IS NULL OR hidden = 0) AND deleted IS NULL ORDER BY name";
+    // Archived trackpoints are unsent only as tombstones while the lifeline is enabled
+    static final String QUERY_UNSENT = "SELECT " + LOCATION_COLUMNS + " FROM location WHERE sent IS NULL" +
+            " UNION ALL SELECT " + LOCATION_COLUMNS + " FROM location_archive WHERE sent IS NULL AND deleted IS NOT NULL" +
+            " ORDER BY time DESC";
+    static final String QUERY_UNSENT_COUNT = "SELECT (SELECT COUNT(*) FROM location WHERE sent IS NULL)" +
+            " + (SELECT COUNT(*) FROM location_archive WHERE sent IS NULL AND deleted IS NOT NULL)";
+    private static final String INSERT_TRACKPOINT = "INSERT INTO location" +
+            " (time, provider, latitude, longitude, altitude, altitude_type, speed, bearing, accuracy, name)" +
+            " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, NULL)";
+    static final String QUERY_STEP_COUNT = "SELECT count FROM step WHERE time = ?";
+    static final String QUERY_ACTIVITY_CONTINUED = "SELECT ID, start FROM activitylog WHERE finish = ? AND activity = ?";
+    static final String QUERY_ACTIVITY_SEGMENT = "SELECT ID FROM activitylog WHERE start = ? AND activity = ?";
+
+    // Queries of the current thread, recorded by the query plan test
+    private static final ThreadLocal<Map<String, RecordedQuery>> mRecorded = new ThreadLocal<Map<String, RecordedQuery>>();
+
+    static class RecordedQuery {
+        String[] args;
+        boolean sorts; // orders a bounded result by a computed value
+    }
+
+    private volatile boolean mActivityFlushScheduled = false;
+    private volatile boolean mActivityJournalScheduled = false;
+    private boolean mActivitySequenced = false; // guarded by mActivityFlush
+    private final Object mActivityFlush = new Object();
+    private volatile int mRtree = -1;
+    private volatile long mArchiveUntil = -1;
+
+    private final Runnable mActivityFlusher = new Runnable() {
+        @Override
+        public void run() {
+            mActivityFlushScheduled = false;
+            flushActivity();
+        }
+    };
+
+    private final Runnable mActivityJournaler = new Runnable() {
+        @Override
+        public void run() {
+            mActivityJournalScheduled = false;
+            mActivityAccumulator.journal();
+        }
+    };
 
     static {
+        for (int table = 0; table < TABLES; table++)
+            mChangeListeners.add(new CopyOnWriteArrayList<ChangeListener>());
+
         hthread = new HandlerThread("DatabaseHelper");
         hthread.start();
         handler = new Handler(hthread.getLooper()) {
@@ -56,34 +155,95 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         };
     }
 
-    public DatabaseHelper(Context context) {
-        super(context, DB_NAME, null, DB_VERSION);
+    public static synchronized DatabaseHelper getInstance(Context context) {
+        if (mInstance == null)
+            mInstance = new DatabaseHelper(context.getApplicationContext(), DB_NAME);
+        return mInstance;
+    }
+
+    // Other names are for instrumented tests, with their own activity journal
+    DatabaseHelper(Context context, String name) {
+        super(context, name, null, DB_VERSION);
         mContext = context;
 
-        File oldName = context.getDatabasePath("BACKPACKTRACKII");
-        if (oldName.exists()) {
-            File newName = new File(oldName.getParentFile(), DB_NAME);
-            Log.i(TAG, "Renaming " + oldName.getAbsolutePath() + " to " + newName.getAbsolutePath());
-            oldName.renameTo(newName);
+        if (DB_NAME.equals(name)) {
+            File oldName = context.getDatabasePath("BACKPACKTRACKII");
+            if (oldName.exists()) {
+                File newName = new File(oldName.getParentFile(), DB_NAME);
+                Log.i(TAG, "Renaming " + oldName.getAbsolutePath() + " to " + newName.getAbsolutePath());
+                oldName.renameTo(newName);
+            }
+
+            oldName = context.getDatabasePath("BACKPACKTRACKII-journal");
+            if (oldName.exists()) {
+                File newName = new File(oldName.getParentFile(), DB_NAME + "-journal");
+                Log.i(TAG, "Renaming " + oldName.getAbsolutePath() + " to " + newName.getAbsolutePath());
+                oldName.renameTo(newName);
+            }
         }
 
-        oldName = context.getDatabasePath("BACKPACKTRACKII-journal");
-        if (oldName.exists()) {
-            File newName = new File(oldName.getParentFile(), DB_NAME + "-journal");
-            Log.i(TAG, "Renaming " + oldName.getAbsolutePath() + " to " + newName.getAbsolutePath());
-            oldName.renameTo(newName);
+        // New databases start with incremental vacuum
+        File file = context.getDatabasePath(name);
+        if (!file.exists())
+            createIncremental(file);
+
+        setWriteAheadLoggingEnabled(true);
+
+        // Flush activity left over by a previous process
+        mActivityAccumulator = new ActivityAccumulator(context,
+                DB_NAME.equals(name) ? ActivityAccumulator.JOURNAL : name + "." + ActivityAccumulator.JOURNAL);
+        if (mActivityAccumulator.isDirty())
+            handler.post(mActivityFlusher);
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        // Readers and writers share one connection pool in WAL mode;
+        // fsync at checkpoints only, which is safe with WAL
+        db.execSQL("PRAGMA synchronous = NORMAL");
+        db.execSQL("PRAGMA temp_store = MEMORY");
+        db.execSQL("PRAGMA cache_size = -2048");
+        // Returns a row and runs only when stepped; ignored before SQLite 3.7.17
+        Cursor c = db.rawQuery("PRAGMA mmap_size = 4194304", null);
+        try {
+            c.moveToFirst();
+        } finally {
+            c.close();
         }
+        Log.i(TAG, "Configured database " + DB_NAME + " wal=" + db.isWriteAheadLoggingEnabled());
     }
 
     @Override
     public void onCreate(SQLiteDatabase db) {
-        Log.i(TAG, "Creating database " + DB_NAME + ":" + DB_VERSION);
+        Log.i(TAG, "Creating database " + DB_NAME + ":" + DB_VERSION + " auto_vacuum=" + getPragma(db, "auto_vacuum"));
         createTableLocation(db);
+        createLocationIndexes(db);
+        createTableLocationArchive(db);
+        createTombstoneIndexes(db);
+        createWaypointCellIndex(db);
+        createLocationRtree(db);
         createTableActivityType(db);
         createTableActivityDuration(db);
         createTableActivityLog(db);
         createTableStep(db);
         createTableWeather(db);
+        createWeatherConstraint(db);
+        createTableAcquisition(db);
+    }
+
+    // auto_vacuum is fixed once the first table exists, and opening through the helper creates android_metadata
+    // before onConfigure; databases created otherwise are migrated by vacuum
+    private static void createIncremental(File file) {
+        file.getParentFile().mkdirs();
+        SQLiteDatabase db = SQLiteDatabase.openDatabase(file.getPath(), null,
+                SQLiteDatabase.CREATE_IF_NECESSARY | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+        try {
+            db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+            db.execSQL("CREATE TABLE IF NOT EXISTS android_metadata (locale TEXT)");
+        } finally {
+            db.close();
+        }
+        Log.i(TAG, "Created incremental database " + file);
     }
 
     private void createTableLocation(SQLiteDatabase db) {
@@ -103,12 +263,121 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 ", hidden INTEGER NULL" +
                 ", deleted INTEGER NULL" +
                 ", sent INTEGER NULL" +
+                ", cell INTEGER NULL" +
                 ");");
         db.execSQL("CREATE INDEX idx_location_time ON location(time)");
         db.execSQL("CREATE INDEX idx_location_name ON location(name)");
         db.execSQL("CREATE INDEX idx_location_sent ON location(sent)");
     }
 
+    private void createLocationIndexes(SQLiteDatabase db) {
+        // Indexes for the exact predicates of getLocations, getWaypoints and getUnsentLocations
+        db.execSQL("DROP INDEX IF EXISTS idx_location_name");
+        db.execSQL("DROP INDEX IF EXISTS idx_location_sent");
+        if (hasPartialIndexes(db)) {
+            Log.i(TAG, "Creating partial location indexes");
+            db.execSQL("CREATE INDEX idx_location_trackpoint ON location(time) WHERE deleted IS NULL AND name IS NULL");
+            db.execSQL("CREATE INDEX idx_location_waypoint ON location(time) WHERE deleted IS NULL AND name IS NOT NULL");
+            db.execSQL("CREATE INDEX idx_location_waypoint_name ON location(name, hidden, latitude, longitude)" +
+                    " WHERE deleted IS NULL AND name IS NOT NULL");
+            db.execSQL("CREATE INDEX idx_location_unsent ON location(time) WHERE sent IS NULL");
+        } else {
+            Log.i(TAG, "Creating composite location indexes");
+            db.execSQL("CREATE INDEX idx_location_deleted_name_time ON location(deleted, name, time)");
+            db.execSQL("CREATE INDEX idx_location_waypoint_name ON location(name, hidden, latitude, longitude, deleted)");
+            db.execSQL("CREATE INDEX idx_location_unsent ON location(sent, time)");
+        }
+    }
+
+    private void createTombstoneIndexes(SQLiteDatabase db) {
+        // Deleted locations waiting for purgeLocations
+        if (hasPartialIndexes(db)) {
+            db.execSQL("CREATE INDEX idx_location_tombstone ON location(sent) WHERE deleted IS NOT NULL");
+            db.execSQL("CREATE INDEX idx_location_archive_tombstone ON location_archive(sent) WHERE deleted IS NOT NULL");
+        } else
+            db.execSQL("CREATE INDEX idx_location_archive_deleted ON location_archive(deleted)");
+    }
+
+    private void createWaypointCellIndex(SQLiteDatabase db) {
+        // Nearby waypoints, see findWaypointsWithin
+        if (hasPartialIndexes(db))
+            db.execSQL("CREATE INDEX idx_location_waypoint_cell ON location(cell) WHERE deleted IS NULL AND name IS NOT NULL");
+        else
+            db.execSQL("CREATE INDEX idx_location_waypoint_cell ON location(cell)");
+    }
+
+    private void createLocationRtree(SQLiteDatabase db) {
+        // Points of the location and location_archive table, IDs are unique across both
+        try {
+            db.execSQL("CREATE VIRTUAL TABLE location_rtree USING rtree(id, min_lat, max_lat, min_lon, max_lon)");
+        } catch (SQLiteException ex) {
+            Log.w(TAG, "R*Tree not available: " + ex.toString());
+            return;
+        }
+        long start = SystemClock.elapsedRealtime();
+        for (String table : new String[]{"location", "location_archive"})
+            db.execSQL("INSERT INTO location_rtree SELECT ID, latitude, latitude, longitude, longitude FROM " + table);
+        Log.i(TAG, "Filled location R*Tree in " + (SystemClock.elapsedRealtime() - start) + " ms");
+    }
+
+    private boolean hasRtree(SQLiteDatabase db) {
+        if (mRtree < 0) {
+            Cursor cursor = null;
+            try {
+                cursor = db.rawQuery("SELECT COUNT(*) FROM sqlite_master WHERE type = 'table' AND name = 'location_rtree'", null);
+                mRtree = (cursor.moveToFirst() && cursor.getInt(0) > 0 ? 1 : 0);
+            } finally {
+                if (cursor != null)
+                    cursor.close();
+            }
+        }
+        return (mRtree > 0);
+    }
+
+    boolean hasPartialIndexes(SQLiteDatabase db) {
+        // Partial indexes require SQLite 3.8.0 (Android 5)
+        Cursor cursor = null;
+        try {
+            cursor = db.rawQuery("SELECT sqlite_version()", null);
+            if (!cursor.moveToFirst())
+                return false;
+            String[] version = cursor.getString(0).split("\\.");
+            int major = Integer.parseInt(version[0]);
+            int minor = (version.length > 1 ? Integer.parseInt(version[1]) : 0);
+            Log.i(TAG, "SQLite version " + cursor.getString(0));
+            return (major > 3 || (major == 3 && minor >= 8));
+        } catch (Throwable ex) {
+            Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+            return false;
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+    }
+
+    private void createTableLocationArchive(SQLiteDatabase db) {
+        // Trackpoints of closed months, moved by archiveLocations
+        Log.i(TAG, "Adding table location_archive");
+        db.execSQL("CREATE TABLE location_archive (" +
+                " ID INTEGER PRIMARY KEY" +
+                ", time INTEGER NOT NULL" +
+                ", provider INTEGER NOT NULL" +
+                ", latitude REAL NOT NULL" +
+                ", longitude REAL NOT NULL" +
+                ", altitude REAL NULL" +
+                ", altitude_type INTEGER NULL" +
+                ", speed REAL NULL" +
+                ", bearing REAL NULL" +
+                ", accuracy REAL NULL" +
+                ", name TEXT" +
+                ", proximity INTEGER NULL" +
+                ", hidden INTEGER NULL" +
+                ", deleted INTEGER NULL" +
+                ", sent INTEGER NULL" +
+                ");");
+        db.execSQL("CREATE INDEX idx_location_archive_time ON location_archive(time)");
+    }
+
     private void createTableActivityType(SQLiteDatabase db) {
         db.execSQL("CREATE TABLE activitytype (" +
                 " ID INTEGER PRIMARY KEY AUTOINCREMENT" +
@@ -128,7 +397,8 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 ", running INTEGER NOT NULL" +
                 ", onbicycle INTEGER NOT NULL" +
                 ", invehicle INTEGER NOT NULL" +
-                ", unknown INTEGER NOT NULL" + ");");
+                ", unknown INTEGER NOT NULL" +
+                ", sequence INTEGER NULL" + ");");
         db.execSQL("CREATE INDEX idx_activityduration_time ON activityduration(time)");
     }
 
@@ -184,6 +454,27 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("CREATE INDEX idx_weather_station_id ON weather(station_id)");
     }
 
+    private void createWeatherConstraint(SQLiteDatabase db) {
+        // One report per station and time, added separately because older upgrades copy duplicates
+        db.execSQL("CREATE UNIQUE INDEX idx_weather_time_station ON weather(time, station_id)");
+    }
+
+    private void createTableAcquisition(SQLiteDatabase db) {
+        Log.i(TAG, "Adding table acquisition");
+        db.execSQL("CREATE TABLE acquisition (" +
+                " ID INTEGER PRIMARY KEY AUTOINCREMENT" +
+                ", time INTEGER NOT NULL" +
+                ", cell INTEGER NULL" +
+                ", duration INTEGER NOT NULL" +
+                ", first_fix INTEGER NULL" +
+                ", fix INTEGER NULL" +
+                ", visible INTEGER NULL" +
+                ", fixed INTEGER NULL" +
+                ", accuracy REAL NULL" + ");");
+        db.execSQL("CREATE INDEX idx_acquisition_time ON acquisition(time)");
+        db.execSQL("CREATE INDEX idx_acquisition_cell_time ON acquisition(cell, time)");
+    }
+
     private boolean columnExists(SQLiteDatabase db, String table, String column) {
         Cursor cursor = null;
         try {
@@ -363,6 +654,53 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 oldVersion = 27;
             }
 
+            if (oldVersion < 28) {
+                createTableLocationArchive(db);
+                oldVersion = 28;
+            }
+
+            if (oldVersion < 29) {
+                createLocationIndexes(db);
+                oldVersion = 29;
+            }
+
+            if (oldVersion < 30) {
+                createTombstoneIndexes(db);
+                oldVersion = 30;
+            }
+
+            if (oldVersion < 31) {
+                // Keep the first report of duplicates
+                db.execSQL("DELETE FROM weather WHERE ID NOT IN" +
+                        " (SELECT MIN(ID) FROM weather GROUP BY time, station_id)");
+                createWeatherConstraint(db);
+                oldVersion = 31;
+            }
+
+            if (oldVersion < 32) {
+                createTableAcquisition(db);
+                oldVersion = 32;
+            }
+
+            if (oldVersion < 33) {
+                if (!columnExists(db, "location", "cell"))
+                    db.execSQL("ALTER TABLE location ADD COLUMN cell INTEGER NULL");
+                db.execSQL("UPDATE location SET cell = " + CELL_EXPRESSION + " WHERE name IS NOT NULL");
+                createWaypointCellIndex(db);
+                oldVersion = 33;
+            }
+
+            if (oldVersion < 34) {
+                createLocationRtree(db);
+                oldVersion = 34;
+            }
+
+            if (oldVersion < 35) {
+                if (!columnExists(db, "activityduration", "sequence"))
+                    db.execSQL("ALTER TABLE activityduration ADD COLUMN sequence INTEGER NULL");
+                oldVersion = 35;
+            }
+
             db.setVersion(DB_VERSION);
 
             db.setTransactionSuccessful();
@@ -375,49 +713,50 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 
     // Location
 
-    public DatabaseHelper insertLocation(Location location, int altitude_type, String name) {
+    // Returns the row ID or -1 on failure
+    public long insertLocation(Location location, int altitude_type, String name) {
         long id;
-        synchronized (mContext.getApplicationContext()) {
+        boolean scrolling = HistoryLoader.isScrolling();
+        long queued = SystemClock.elapsedRealtime();
+        mWriteLock.lock();
+        long started = SystemClock.elapsedRealtime();
+        try {
             SQLiteDatabase db = this.getWritableDatabase();
 
-            ContentValues cv = new ContentValues();
-            cv.put("time", location.getTime());
-            cv.put("provider", location.getProvider());
-            cv.put("latitude", location.getLatitude());
-            cv.put("longitude", location.getLongitude());
-
-            if (location.hasAltitude())
-                cv.put("altitude", location.getAltitude());
-            else
-                cv.putNull("altitude");
-
-            cv.put("altitude_type", altitude_type);
-
-            if (location.hasSpeed())
-                cv.put("speed", location.getSpeed());
-            else
-                cv.putNull("speed");
-
-            if (location.hasBearing())
-                cv.put("bearing", location.getBearing());
-            else
-                cv.putNull("bearing");
-
-            if (location.hasAccuracy())
-                cv.put("accuracy", location.getAccuracy());
-            else
-                cv.putNull("accuracy");
+            ContentValues cv = getLocationValues(location, altitude_type);
 
             if (name == null)
                 cv.putNull("name");
             else
                 cv.put("name", name);
 
-            id = db.insert("location", null, cv);
-            if (id == -1)
-                Log.e(TAG, "Insert location failed");
+            // The row, its cell and its R*Tree entry together
+            boolean rtree = hasRtree(db);
+            db.beginTransaction();
+            try {
+                id = db.insert("location", null, cv);
+                if (id == -1)
+                    Log.e(TAG, "Insert location failed");
+                else {
+                    if (name != null)
+                        db.execSQL("UPDATE location SET cell = " + CELL_EXPRESSION + " WHERE ID = ?", new Object[]{id});
+                    if (rtree)
+                        db.execSQL("INSERT INTO location_rtree VALUES (?, ?, ?, ?, ?)", new Object[]{
+                                id, location.getLatitude(), location.getLatitude(), location.getLongitude(), location.getLongitude()});
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } finally {
+            mWriteLock.unlock();
         }
 
+        // Insert latency, separately while a history list loads pages to compare against an idle reader
+        long finished = SystemClock.elapsedRealtime();
+        ActionMetrics.getInstance(mContext).record(scrolling ? "db:insert:scrolling" : "db:insert",
+                started - queued, finished - started, finished - queued);
+
         if (id != -1) {
             SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
             prefs.edit().putLong(SettingsFragment.PREF_LIFELINE_LAST, new Date().getTime()).apply();
@@ -427,25 +766,186 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             lifeline.putExtra(BackgroundService.EXTRA_ID, id);
             mContext.startService(lifeline);
 
-            for (LocationChangedListener listener : mLocationChangedListeners)
-                try {
-                    listener.onLocationAdded(location);
-                } catch (Throwable ex) {
-                    Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+            notifyChanged(TABLE_LOCATION, CHANGE_ADDED, id, location.getTime(), location.getTime());
+        }
+
+        return id;
+    }
+
+    // Moves a trackpoint to another location, returns false if it does not exist anymore
+    public boolean reviseLocation(long id, Location location, int altitude_type) {
+        int rows;
+        mWriteLock.lock();
+        try {
+            SQLiteDatabase db = this.getWritableDatabase();
+
+            ContentValues cv = getLocationValues(location, altitude_type);
+            cv.putNull("sent");
+
+            boolean rtree = hasRtree(db);
+            db.beginTransaction();
+            try {
+                rows = db.update("location", cv, "ID = ? AND name IS NULL AND deleted IS NULL", new String[]{Long.toString(id)});
+                if (rows == 1 && rtree)
+                    db.execSQL("UPDATE location_rtree SET min_lat = ?, max_lat = ?, min_lon = ?, max_lon = ? WHERE id = ?", new Object[]{
+                            location.getLatitude(), location.getLatitude(), location.getLongitude(), location.getLongitude(), id});
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } finally {
+            mWriteLock.unlock();
+        }
+
+        if (rows != 1)
+            return false;
+
+        notifyLocationUpdated(id);
+
+        return true;
+    }
+
+    private static ContentValues getLocationValues(Location location, int altitude_type) {
+        ContentValues cv = new ContentValues();
+        cv.put("time", location.getTime());
+        cv.put("provider", location.getProvider());
+        cv.put("latitude", location.getLatitude());
+        cv.put("longitude", location.getLongitude());
+
+        if (location.hasAltitude())
+            cv.put("altitude", location.getAltitude());
+        else
+            cv.putNull("altitude");
+
+        cv.put("altitude_type", altitude_type);
+
+        if (location.hasSpeed())
+            cv.put("speed", location.getSpeed());
+        else
+            cv.putNull("speed");
+
+        if (location.hasBearing())
+            cv.put("bearing", location.getBearing());
+        else
+            cv.putNull("bearing");
+
+        if (location.hasAccuracy())
+            cv.put("accuracy", location.getAccuracy());
+        else
+            cv.putNull("accuracy");
+
+        return cv;
+    }
+
+    // Binds the arguments of INSERT_TRACKPOINT
+    private static void bindLocation(SQLiteStatement stmt, Location location, int altitude_type) {
+        stmt.clearBindings();
+        stmt.bindLong(1, location.getTime());
+        stmt.bindString(2, location.getProvider());
+        stmt.bindDouble(3, location.getLatitude());
+        stmt.bindDouble(4, location.getLongitude());
+
+        if (location.hasAltitude())
+            stmt.bindDouble(5, location.getAltitude());
+        else
+            stmt.bindNull(5);
+
+        stmt.bindLong(6, altitude_type);
+
+        if (location.hasSpeed())
+            stmt.bindDouble(7, location.getSpeed());
+        else
+            stmt.bindNull(7);
+
+        if (location.hasBearing())
+            stmt.bindDouble(8, location.getBearing());
+        else
+            stmt.bindNull(8);
+
+        if (location.hasAccuracy())
+            stmt.bindDouble(9, location.getAccuracy());
+        else
+            stmt.bindNull(9);
+    }
+
+    // Returns the row IDs, -1 for failed inserts
+    public long[] insertLocations(List<Location> locations, List<Integer> altitude_types) {
+        if (locations.size() == 0)
+            return new long[0];
+
+        long start = new Date().getTime();
+        long[] ids = new long[locations.size()];
+        mWriteLock.lock();
+        try {
+            SQLiteDatabase db = this.getWritableDatabase();
+
+            db.beginTransaction();
+            SQLiteStatement stmt = null;
+            SQLiteStatement rtree = null;
+            try {
+                if (hasRtree(db))
+                    rtree = db.compileStatement("INSERT INTO location_rtree VALUES (?, ?, ?, ?, ?)");
+                stmt = db.compileStatement(INSERT_TRACKPOINT);
+
+                for (int i = 0; i < locations.size(); i++) {
+                    Location location = locations.get(i);
+                    bindLocation(stmt, location, altitude_types.get(i));
+                    ids[i] = stmt.executeInsert();
+                    if (ids[i] == -1)
+                        Log.e(TAG, "Insert location failed");
+                    else if (rtree != null) {
+                        rtree.bindLong(1, ids[i]);
+                        rtree.bindDouble(2, location.getLatitude());
+                        rtree.bindDouble(3, location.getLatitude());
+                        rtree.bindDouble(4, location.getLongitude());
+                        rtree.bindDouble(5, location.getLongitude());
+                        rtree.executeInsert();
+                    }
                 }
+
+                db.setTransactionSuccessful();
+            } finally {
+                if (stmt != null)
+                    stmt.close();
+                if (rtree != null)
+                    rtree.close();
+                db.endTransaction();
+            }
+        } finally {
+            mWriteLock.unlock();
         }
 
-        return this;
+        long elapsed = new Date().getTime() - start;
+        Log.i(TAG, "Inserted " + locations.size() + " locations in " + elapsed + " ms");
+
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        prefs.edit().putLong(SettingsFragment.PREF_LIFELINE_LAST, new Date().getTime()).apply();
+
+        Intent lifeline = new Intent(mContext, BackgroundService.class);
+        lifeline.setAction(BackgroundService.ACTION_LIFELINE);
+        lifeline.putExtra(BackgroundService.EXTRA_IDS, ids);
+        mContext.startService(lifeline);
+
+        for (int i = 0; i < ids.length; i++)
+            if (ids[i] != -1)
+                notifyChanged(TABLE_LOCATION, CHANGE_ADDED, ids[i], locations.get(i).getTime(), locations.get(i).getTime());
+
+        return ids;
     }
 
     public DatabaseHelper updateLocationName(long id, String name) {
-        synchronized (mContext.getApplicationContext()) {
+        mWriteLock.lock();
+        try {
             SQLiteDatabase db = this.getWritableDatabase();
+            restoreLocation(db, id);
             ContentValues cv = new ContentValues();
             cv.put("name", name);
             cv.putNull("sent");
-            if (db.update("location", cv, "ID = ?", new String[]{Long.toString(id)}) != 1)
+            if (updateLocation(db, id, cv) != 1)
                 Log.e(TAG, "Update location failed");
+            db.execSQL("UPDATE location SET cell = " + CELL_EXPRESSION + " WHERE ID = ?", new Object[]{id});
+        } finally {
+            mWriteLock.unlock();
         }
 
         notifyLocationUpdated(id);
@@ -454,13 +954,16 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     }
 
     public DatabaseHelper updateLocationTime(long id, long time) {
-        synchronized (mContext.getApplicationContext()) {
+        mWriteLock.lock();
+        try {
             SQLiteDatabase db = this.getWritableDatabase();
             ContentValues cv = new ContentValues();
             cv.put("time", time);
             cv.putNull("sent");
-            if (db.update("location", cv, "ID = ?", new String[]{Long.toString(id)}) != 1)
+            if (updateLocation(db, id, cv) != 1)
                 Log.e(TAG, "Update location failed");
+        } finally {
+            mWriteLock.unlock();
         }
 
         notifyLocationUpdated(id);
@@ -469,14 +972,17 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     }
 
     public DatabaseHelper updateLocationAltitude(long id, double altitude, int altitude_type) {
-        synchronized (mContext.getApplicationContext()) {
+        mWriteLock.lock();
+        try {
             SQLiteDatabase db = this.getWritableDatabase();
             ContentValues cv = new ContentValues();
             cv.put("altitude", altitude);
             cv.put("altitude_type", altitude_type);
             cv.putNull("sent");
-            if (db.update("location", cv, "ID = ?", new String[]{Long.toString(id)}) != 1)
+            if (updateLocation(db, id, cv) != 1)
                 Log.e(TAG, "Update location altitude failed");
+        } finally {
+            mWriteLock.unlock();
         }
 
         notifyLocationUpdated(id);
@@ -485,56 +991,55 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     }
 
     public DatabaseHelper hideLocation(long id, boolean hidden) {
-        synchronized (mContext.getApplicationContext()) {
+        mWriteLock.lock();
+        try {
             SQLiteDatabase db = this.getWritableDatabase();
             ContentValues cv = new ContentValues();
             cv.put("hidden", hidden ? 1 : 0);
-            if (db.update("location", cv, "ID = ?", new String[]{Long.toString(id)}) != 1)
+            if (updateLocation(db, id, cv) != 1)
                 Log.e(TAG, "Update location hidden failed");
+        } finally {
+            mWriteLock.unlock();
         }
 
-        for (LocationChangedListener listener : mLocationChangedListeners)
-            try {
-                listener.onLocationUpdated();
-            } catch (Throwable ex) {
-                Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
-            }
+        notifyChanged(TABLE_LOCATION, CHANGE_UPDATED, id, -1, -1);
 
         return this;
     }
 
     public DatabaseHelper sentLocation(long id, boolean sent) {
-        synchronized (mContext.getApplicationContext()) {
+        mWriteLock.lock();
+        try {
             SQLiteDatabase db = this.getWritableDatabase();
             ContentValues cv = new ContentValues();
             if (sent)
                 cv.put("sent", 1);
             else
                 cv.putNull("sent");
-            if (db.update("location", cv, "ID = ?", new String[]{Long.toString(id)}) != 1)
+            if (updateLocation(db, id, cv) != 1)
                 Log.e(TAG, "Update location sent failed");
+        } finally {
+            mWriteLock.unlock();
         }
 
-        for (LocationChangedListener listener : mLocationChangedListeners)
-            try {
-                listener.onLocationUpdated();
-            } catch (Throwable ex) {
-                Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
-            }
+        notifyChanged(TABLE_LOCATION, CHANGE_UPDATED, id, -1, -1);
 
         return this;
     }
 
     public DatabaseHelper setProximity(long id, long radius) {
-        synchronized (mContext.getApplicationContext()) {
+        mWriteLock.lock();
+        try {
             SQLiteDatabase db = this.getWritableDatabase();
             ContentValues cv = new ContentValues();
             if (radius <= 0)
                 cv.putNull("proximity");
             else
                 cv.put("proximity", radius);
-            if (db.update("location", cv, "ID = ?", new String[]{Long.toString(id)}) != 1)
+            if (updateLocation(db, id, cv) != 1)
                 Log.e(TAG, "Update location radius failed");
+        } finally {
+            mWriteLock.unlock();
         }
 
         notifyLocationUpdated(id);
@@ -543,91 +1048,685 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     }
 
     public DatabaseHelper deleteLocation(long id) {
-        synchronized (mContext.getApplicationContext()) {
+        // The tombstone is purged once the lifeline acknowledged the delete
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        boolean lifeline = prefs.getBoolean(SettingsFragment.PREF_LIFELINE_ENABLED, SettingsFragment.DEFAULT_LIFELINE_ENABLED);
+
+        mWriteLock.lock();
+        try {
             SQLiteDatabase db = this.getWritableDatabase();
             ContentValues cv = new ContentValues();
             cv.put("deleted", 1);
-            cv.putNull("sent");
-            if (db.update("location", cv, "ID = ?", new String[]{Long.toString(id)}) != 1)
+            if (lifeline)
+                cv.putNull("sent");
+            else
+                cv.put("sent", 1);
+            if (updateLocation(db, id, cv) != 1)
                 Log.e(TAG, "Update location deleted failed");
+        } finally {
+            mWriteLock.unlock();
         }
 
-        for (LocationChangedListener listener : mLocationChangedListeners)
-            try {
-                listener.onLocationDeleted(id);
-            } catch (Throwable ex) {
-                Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
-            }
+        notifyChanged(TABLE_LOCATION, CHANGE_DELETED, id, -1, -1);
 
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
         prefs.edit().putLong(SettingsFragment.PREF_LIFELINE_LAST, new Date().getTime()).apply();
 
-        Intent lifeline = new Intent(mContext, BackgroundService.class);
-        lifeline.setAction(BackgroundService.ACTION_LIFELINE);
-        lifeline.putExtra(BackgroundService.EXTRA_ID, id);
-        mContext.startService(lifeline);
+        Intent intent = new Intent(mContext, BackgroundService.class);
+        intent.setAction(BackgroundService.ACTION_LIFELINE);
+        intent.putExtra(BackgroundService.EXTRA_ID, id);
+        intent.putExtra(BackgroundService.EXTRA_DELETED, true);
+        mContext.startService(intent);
 
         return this;
     }
 
     public DatabaseHelper deleteTrackpoints(long from, long to) {
-        synchronized (mContext.getApplicationContext()) {
+        mWriteLock.lock();
+        try {
             Log.i(TAG, "Delete from=" + from + " to=" + to);
             SQLiteDatabase db = this.getWritableDatabase();
-            int rows = db.delete("location", "time >= ? AND time <= ? AND name IS NULL", new String[]{Long.toString(from), Long.toString(to)});
+            String[] args = new String[]{Long.toString(from), Long.toString(to)};
+            int rows;
+            boolean rtree = hasRtree(db);
+            db.beginTransaction();
+            try {
+                if (rtree)
+                    for (String table : new String[]{"location", "location_archive"})
+                        db.execSQL("DELETE FROM location_rtree WHERE id IN" +
+                                " (SELECT ID FROM " + table + " WHERE time >= ? AND time <= ? AND name IS NULL)", args);
+                rows = db.delete("location", "time >= ? AND time <= ? AND name IS NULL", args);
+                rows += db.delete("location_archive", "time >= ? AND time <= ? AND name IS NULL", args);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            mArchiveUntil = -1;
             Log.i(TAG, rows + " trackpoints deleted");
+        } finally {
+            mWriteLock.unlock();
         }
 
-        for (LocationChangedListener listener : mLocationChangedListeners)
-            try {
-                listener.onLocationDeleted(-1);
-            } catch (Throwable ex) {
-                Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
-            }
+        notifyChanged(TABLE_LOCATION, CHANGE_DELETED, -1, from, to);
 
         return this;
     }
 
-    public Cursor getLocations(long from, long to, boolean trackpoints, boolean waypoints, boolean asc, int limit) {
-        SQLiteDatabase db = this.getReadableDatabase();
-        String query = "SELECT *, ID AS _id FROM location";
-        query += " WHERE time >= ? AND time <= ? AND deleted IS NULL";
-        if (trackpoints && !waypoints)
-            query += " AND name IS NULL";
-        if (!trackpoints && waypoints)
-            query += " AND NOT name IS NULL";
-        query += " ORDER BY time";
-        if (!asc)
-            query += " DESC";
-        if (limit > 0)
-            query += " LIMIT " + limit;
-        return db.rawQuery(query, new String[]{Long.toString(from), Long.toString(to)});
-    }
+    public int purgeLocations(boolean unacknowledged) {
+        // Remove tombstones in batches, so that writers are not blocked for long
+        String where = "deleted IS NOT NULL";
+        if (!unacknowledged)
+            where += " AND NOT sent IS NULL";
+
+        long start = new Date().getTime();
+        int total = 0;
+        for (String table : new String[]{"location", "location_archive"})
+            while (true) {
+                int rows;
+                mWriteLock.lock();
+                try {
+                    SQLiteDatabase db = this.getWritableDatabase();
+                    String batch = "SELECT ID FROM " + table + " WHERE " + where + " LIMIT " + PURGE_BATCH;
+                    db.beginTransaction();
+                    try {
+                        if (hasRtree(db))
+                            db.execSQL("DELETE FROM location_rtree WHERE id IN (" + batch + ")");
+                        rows = db.delete(table, "ID IN (" + batch + ")", null);
+                        db.setTransactionSuccessful();
+                    } finally {
+                        db.endTransaction();
+                    }
+                } finally {
+                    mWriteLock.unlock();
+                }
+                total += rows;
+                if (rows < PURGE_BATCH)
+                    break;
+            }
 
-    public Cursor getWaypoints() {
-        SQLiteDatabase db = this.getReadableDatabase();
-        String query = "SELECT ID AS _id, latitude, longitude, name";
-        query += " FROM location";
-        query += " WHERE NOT name IS NULL AND (hidden IS NULL OR hidden = 0) AND deleted IS NULL";
-        query += " ORDER BY name";
-        return db.rawQuery(query, new String[0]);
+        Log.i(TAG, "Purged " + total + " deleted locations in " + (new Date().getTime() - start) + " ms");
+        return total;
     }
 
-    public Cursor getUnsentLocations() {
-        SQLiteDatabase db = this.getReadableDatabase();
-        String query = "SELECT * FROM location";
-        query += " WHERE sent IS NULL";
-        query += " ORDER BY time DESC";
-        return db.rawQuery(query, new String[]{});
+    public int archiveLocations(long before, boolean unsent) {
+        // Move trackpoints out of the location table one closed month at a time
+        String where = "time < ? AND name IS NULL AND deleted IS NULL";
+        if (!unsent)
+            where += " AND NOT sent IS NULL";
+
+        long start = new Date().getTime();
+        int total = 0;
+        while (true) {
+            mWriteLock.lock();
+            try {
+                SQLiteDatabase db = this.getWritableDatabase();
+
+                long first = -1;
+                Cursor cursor = null;
+                try {
+                    cursor = db.rawQuery("SELECT MIN(time) FROM location WHERE " + where, new String[]{Long.toString(before)});
+                    if (cursor.moveToFirst() && !cursor.isNull(0))
+                        first = cursor.getLong(0);
+                } finally {
+                    if (cursor != null)
+                        cursor.close();
+                }
+                if (first < 0)
+                    break;
+
+                Calendar month = Calendar.getInstance();
+                month.setTimeInMillis(getDay(first));
+                month.set(Calendar.DAY_OF_MONTH, 1);
+                month.add(Calendar.MONTH, 1);
+                String[] args = new String[]{Long.toString(Math.min(month.getTimeInMillis(), before))};
+
+                db.beginTransaction();
+                try {
+                    db.execSQL("INSERT INTO location_archive (" + LOCATION_COLUMNS + ")" +
+                            " SELECT " + LOCATION_COLUMNS + " FROM location WHERE " + where, args);
+                    int rows = db.delete("location", where, args);
+                    db.setTransactionSuccessful();
+                    total += rows;
+                    Log.i(TAG, "Archived " + rows + " trackpoints until " + SimpleDateFormat.getDateInstance().format(Long.parseLong(args[0]) - 1));
+                } finally {
+                    db.endTransaction();
+                }
+            } finally {
+                mWriteLock.unlock();
+            }
+        }
+
+        if (total > 0)
+            mArchiveUntil = -1;
+        Log.i(TAG, "Archived " + total + " trackpoints in " + (new Date().getTime() - start) + " ms");
+        return total;
+    }
+
+    private long getArchiveUntil(SQLiteDatabase db) {
+        if (mArchiveUntil < 0) {
+            Cursor cursor = null;
+            try {
+                cursor = rawQuery(db, "SELECT MAX(time) FROM location_archive", new String[0]);
+                if (cursor.moveToFirst() && !cursor.isNull(0))
+                    mArchiveUntil = cursor.getLong(0);
+                else
+                    mArchiveUntil = 0;
+            } finally {
+                if (cursor != null)
+                    cursor.close();
+            }
+        }
+        return (mArchiveUntil == 0 ? Long.MIN_VALUE : mArchiveUntil);
+    }
+
+    private int updateLocation(SQLiteDatabase db, long id, ContentValues cv) {
+        String[] args = new String[]{Long.toString(id)};
+        int rows = db.update("location", cv, "ID = ?", args);
+        if (rows == 0)
+            rows = db.update("location_archive", cv, "ID = ?", args);
+        return rows;
+    }
+
+    private void restoreLocation(SQLiteDatabase db, long id) {
+        // Waypoints always live in the location table
+        String[] args = new String[]{Long.toString(id)};
+        db.beginTransaction();
+        try {
+            db.execSQL("INSERT INTO location (" + LOCATION_COLUMNS + ")" +
+                    " SELECT " + LOCATION_COLUMNS + " FROM location_archive WHERE ID = ?", args);
+            if (db.delete("location_archive", "ID = ?", args) > 0)
+                Log.i(TAG, "Restored archived location id=" + id);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    public Cursor getLocations(long from, long to, boolean trackpoints, boolean waypoints, boolean asc, int limit) {
+        SQLiteDatabase db = this.getReadableDatabase();
+        List<String> args = new ArrayList<String>();
+        String columns = LOCATION_COLUMNS + ", ID AS _id";
+        String query = getLocationsQuery(db, columns, from, to, trackpoints, waypoints, asc, limit, args);
+        return rawQuery(db, query, args.toArray(new String[0]));
+    }
+
+    public Cursor getLocationsPage(long from, long to, long toId, boolean trackpoints, boolean waypoints, int limit) {
+        SQLiteDatabase db = this.getReadableDatabase();
+        List<String> args = new ArrayList<String>();
+        String[] pageArgs = new String[]{Long.toString(from), Long.toString(to), Long.toString(to), Long.toString(toId)};
+        String columns = LOCATION_COLUMNS + ", ID AS _id, " + getMaxId("location");
+        String where = " WHERE time >= ? AND " + getKeyset("time") + " AND deleted IS NULL";
+        if (trackpoints && !waypoints)
+            where += " AND name IS NULL";
+        if (!trackpoints && waypoints)
+            where += " AND name IS NOT NULL";
+        String order = " ORDER BY time DESC, ID DESC LIMIT " + limit;
+
+        String query = "SELECT " + columns + " FROM location" + where + order;
+        args.addAll(Arrays.asList(pageArgs));
+        if (trackpoints && from <= getArchiveUntil(db)) {
+            // Limit both sides so that only two pages are merged
+            query = "SELECT * FROM (" + query + ")" +
+                    " UNION ALL SELECT * FROM (SELECT " + columns + " FROM location_archive" + where + order + ")" + order;
+            args.addAll(Arrays.asList(pageArgs));
+        }
+
+        return rawQuery(db, query, args.toArray(new String[0]));
+    }
+
+    public static int getCell(double latitude, double longitude) {
+        return (int) ((latitude + 90) / CELL_SIZE) * CELL_ROW + (int) ((longitude + 180) / CELL_SIZE);
+    }
+
+    // Waypoints, including hidden waypoints, within the distance in meters, nearest first
+    public Cursor findWaypointsWithin(double latitude, double longitude, int meters) {
+        // Bounding box in cells
+        double cos = Math.max(Math.cos(Math.toRadians(latitude)), 1e-6);
+        double dlat = Math.toDegrees(meters / EARTH_RADIUS);
+        double dlon = Math.min(Math.toDegrees(meters / (EARTH_RADIUS * cos)), 180);
+        int latFrom = (int) ((Math.max(latitude - dlat, -90) + 90) / CELL_SIZE);
+        int latTo = (int) ((Math.min(latitude + dlat, 90) + 90) / CELL_SIZE);
+        int lonFrom = (int) ((Math.max(longitude - dlon, -180) + 180) / CELL_SIZE);
+        int lonTo = (int) ((Math.min(longitude + dlon, 180) + 180) / CELL_SIZE);
+
+        // One index range per row of cells
+        List<String> args = new ArrayList<String>();
+        String cells = "";
+        for (int row = latFrom; row <= latTo; row++) {
+            cells += (cells.length() == 0 ? "" : " OR ") + "cell BETWEEN ? AND ?";
+            args.add(Integer.toString(row * CELL_ROW + lonFrom));
+            args.add(Integer.toString(row * CELL_ROW + lonTo));
+        }
+
+        String distance = getDistanceExpression(latitude, longitude);
+
+        SQLiteDatabase db = this.getReadableDatabase();
+        String query = "SELECT " + LOCATION_COLUMNS + ", ID AS _id FROM location";
+        query += " WHERE (" + cells + ") AND deleted IS NULL AND name IS NOT NULL";
+        query += " AND " + distance + " <= " + ((long) meters * meters);
+        query += " ORDER BY " + distance;
+        return rawQuery(db, query, args.toArray(new String[0]), true);
+    }
+
+    // Equirectangular distance squared in meters, numbers inline because bound arguments are compared as text
+    private static String getDistanceExpression(double latitude, double longitude) {
+        double cos = Math.max(Math.cos(Math.toRadians(latitude)), 1e-6);
+        double k = Math.toRadians(1) * EARTH_RADIUS;
+        String dy = String.format(Locale.ROOT, "((latitude - %f) * %f)", latitude, k);
+        String dx = String.format(Locale.ROOT, "((longitude - %f) * %f)", longitude, k * cos);
+        return dy + " * " + dy + " + " + dx + " * " + dx;
+    }
+
+    // Condition for locations within the box in degrees, through the R*Tree if available
+    private String getBoxWhere(SQLiteDatabase db, double south, double west, double north, double east, boolean trackpoints, boolean waypoints) {
+        String where = String.format(Locale.ROOT,
+                "latitude >= %s AND latitude <= %s AND longitude >= %s AND longitude <= %s AND deleted IS NULL",
+                Double.toString(south), Double.toString(north), Double.toString(west), Double.toString(east));
+        if (trackpoints && !waypoints)
+            where += " AND name IS NULL";
+        if (!trackpoints && waypoints)
+            where += " AND name IS NOT NULL";
+        if (hasRtree(db))
+            where += String.format(Locale.ROOT,
+                    " AND ID IN (SELECT id FROM location_rtree WHERE max_lat >= %s AND min_lat <= %s AND max_lon >= %s AND min_lon <= %s)",
+                    Double.toString(south), Double.toString(north), Double.toString(west), Double.toString(east));
+        return where;
+    }
+
+    // Locations within the box in degrees, including archived trackpoints, ordered by time
+    public Cursor getLocationsInBox(double south, double west, double north, double east, boolean trackpoints, boolean waypoints) {
+        SQLiteDatabase db = this.getReadableDatabase();
+        String where = getBoxWhere(db, south, west, north, east, trackpoints, waypoints);
+        String query = "SELECT " + LOCATION_COLUMNS + ", ID AS _id FROM location WHERE " + where;
+        if (trackpoints)
+            query += " UNION ALL SELECT " + LOCATION_COLUMNS + ", ID AS _id FROM location_archive WHERE " + where;
+        query += " ORDER BY time";
+        return rawQuery(db, query, new String[0], true);
+    }
+
+    // The k nearest locations, including archived trackpoints, nearest first; boxes do not wrap around the date line
+    public Cursor getNearestLocations(double latitude, double longitude, int k, boolean trackpoints, boolean waypoints) {
+        SQLiteDatabase db = this.getReadableDatabase();
+        String distance = getDistanceExpression(latitude, longitude);
+        double cos = Math.max(Math.cos(Math.toRadians(latitude)), 1e-6);
+
+        // Grow the circle until it contains k locations
+        String where;
+        double radius = NEAREST_RADIUS;
+        while (true) {
+            double dlat = Math.toDegrees(radius / EARTH_RADIUS);
+            double dlon = Math.min(Math.toDegrees(radius / (EARTH_RADIUS * cos)), 360);
+            where = getBoxWhere(db,
+                    Math.max(latitude - dlat, -90), Math.max(longitude - dlon, -180),
+                    Math.min(latitude + dlat, 90), Math.min(longitude + dlon, 180),
+                    trackpoints, waypoints);
+            if (radius >= NEAREST_MAX_RADIUS)
+                break;
+
+            where += " AND " + distance + " <= " + (long) (radius * radius);
+            String count = "SELECT (SELECT COUNT(*) FROM (SELECT ID FROM location WHERE " + where + " LIMIT " + k + "))";
+            if (trackpoints)
+                count += " + (SELECT COUNT(*) FROM (SELECT ID FROM location_archive WHERE " + where + " LIMIT " + k + "))";
+            Cursor cursor = null;
+            try {
+                cursor = rawQuery(db, count, new String[0]);
+                if (cursor.moveToFirst() && cursor.getInt(0) >= k)
+                    break;
+            } finally {
+                if (cursor != null)
+                    cursor.close();
+            }
+            radius *= 4;
+        }
+        Log.i(TAG, "Nearest k=" + k + " radius=" + Math.round(radius) + "m rtree=" + hasRtree(db));
+
+        String query = "SELECT " + LOCATION_COLUMNS + ", ID AS _id, " + distance + " AS distance FROM location WHERE " + where;
+        if (trackpoints)
+            query += " UNION ALL SELECT " + LOCATION_COLUMNS + ", ID AS _id, " + distance + " AS distance FROM location_archive WHERE " + where;
+        query += " ORDER BY distance LIMIT " + k;
+        return rawQuery(db, query, new String[0], true);
+    }
+
+    // Compares inserting trackpoints one by one with inserting them in one batch, development builds only
+    public String benchmarkInserts(int rows) {
+        File file = new File(mContext.getCacheDir(), "inserts.db");
+        SQLiteDatabase.deleteDatabase(file);
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(file, null);
+        try {
+            // Same schema and settings as the real database
+            db.enableWriteAheadLogging();
+            db.execSQL("PRAGMA synchronous = NORMAL");
+            createTableLocation(db);
+            createLocationIndexes(db);
+
+            Random random = new Random(1);
+            List<Location> locations = new ArrayList<Location>();
+            for (int i = 0; i < rows; i++) {
+                Location location = new Location("network");
+                location.setTime(i * 1000L);
+                location.setLatitude(random.nextDouble() * 0.01);
+                location.setLongitude(random.nextDouble() * 0.01);
+                location.setAccuracy(20);
+                locations.add(location);
+            }
+
+            // Per row, each in its own transaction
+            long start = SystemClock.elapsedRealtime();
+            for (Location location : locations) {
+                ContentValues cv = getLocationValues(location, BackgroundService.ALTITUDE_NONE);
+                cv.putNull("name");
+                db.insert("location", null, cv);
+            }
+            long single = Math.max(SystemClock.elapsedRealtime() - start, 1);
+
+            // One transaction with a compiled statement
+            start = SystemClock.elapsedRealtime();
+            SQLiteStatement stmt = db.compileStatement(INSERT_TRACKPOINT);
+            db.beginTransaction();
+            try {
+                for (Location location : locations) {
+                    bindLocation(stmt, location, BackgroundService.ALTITUDE_NONE);
+                    stmt.executeInsert();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+                stmt.close();
+            }
+            long batch = Math.max(SystemClock.elapsedRealtime() - start, 1);
+
+            String result = "Inserts rows=" + rows +
+                    " single=" + (rows * 1000L / single) + "/s" +
+                    " batch=" + (rows * 1000L / batch) + "/s";
+            Log.i(TAG, result);
+            return result;
+        } finally {
+            db.close();
+            SQLiteDatabase.deleteDatabase(file);
+        }
+    }
+
+    // Compares box queries through the R*Tree with a full scan and times the box and nearest location queries
+    // on a separate database of random walks, development builds only
+    public static String benchmarkSpatial(Context context, int points, int queries) {
+        String name = "spatial";
+        context.deleteDatabase(name);
+        DatabaseHelper dh = new DatabaseHelper(context, name);
+        try {
+            SQLiteDatabase db = dh.getWritableDatabase();
+            if (!dh.hasRtree(db))
+                return "R*Tree not available";
+
+            // Random walks of about 10 meters per step from random starting points, one second apart
+            Random random = new Random(1);
+            double[] latitudes = new double[queries];
+            double[] longitudes = new double[queries];
+            int every = Math.max(points / queries, 1);
+            long start = SystemClock.elapsedRealtime();
+            SQLiteStatement location = db.compileStatement("INSERT INTO location" +
+                    " (ID, time, provider, latitude, longitude, accuracy) VALUES (?, ?, 'gps', ?, ?, 10)");
+            SQLiteStatement rtree = db.compileStatement("INSERT INTO location_rtree (id, min_lat, max_lat, min_lon, max_lon) VALUES (?, ?, ?, ?, ?)");
+            db.beginTransaction();
+            try {
+                double latitude = 0;
+                double longitude = 0;
+                for (int i = 1; i <= points; i++) {
+                    if ((i - 1) % 10000 == 0) {
+                        latitude = random.nextDouble() * 120 - 60;
+                        longitude = random.nextDouble() * 360 - 180;
+                    } else {
+                        latitude += (random.nextDouble() - 0.5) * 0.0002;
+                        longitude += (random.nextDouble() - 0.5) * 0.0002;
+                    }
+                    int q = (i - 1) / every;
+                    if ((i - 1) % every == every / 2 && q < queries) {
+                        latitudes[q] = latitude;
+                        longitudes[q] = longitude;
+                    }
+
+                    location.clearBindings();
+                    location.bindLong(1, i);
+                    location.bindLong(2, i * 1000L);
+                    location.bindDouble(3, latitude);
+                    location.bindDouble(4, longitude);
+                    location.executeInsert();
+
+                    rtree.clearBindings();
+                    rtree.bindLong(1, i);
+                    rtree.bindDouble(2, latitude);
+                    rtree.bindDouble(3, latitude);
+                    rtree.bindDouble(4, longitude);
+                    rtree.bindDouble(5, longitude);
+                    rtree.executeInsert();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+                location.close();
+                rtree.close();
+            }
+            long fill = SystemClock.elapsedRealtime() - start;
+
+            // Boxes of about one kilometer around points of the walks, counted through the R*Tree and by a scan
+            long found = 0;
+            long[] elapsed = new long[2];
+            for (int method = 0; method < 2; method++) {
+                start = SystemClock.elapsedRealtime();
+                for (int i = 0; i < queries; i++) {
+                    String s = Double.toString(latitudes[i] - 0.005);
+                    String n = Double.toString(latitudes[i] + 0.005);
+                    String w = Double.toString(longitudes[i] - 0.005);
+                    String e = Double.toString(longitudes[i] + 0.005);
+                    String query = "SELECT COUNT(*) FROM location" +
+                            " WHERE latitude BETWEEN " + s + " AND " + n + " AND longitude BETWEEN " + w + " AND " + e;
+                    if (method == 0)
+                        query += " AND ID IN (SELECT id FROM location_rtree" +
+                                " WHERE max_lat >= " + s + " AND min_lat <= " + n + " AND max_lon >= " + w + " AND min_lon <= " + e + ")";
+                    Cursor cursor = db.rawQuery(query, null);
+                    try {
+                        if (cursor.moveToFirst() && method == 0)
+                            found += cursor.getLong(0);
+                    } finally {
+                        cursor.close();
+                    }
+                }
+                elapsed[method] = SystemClock.elapsedRealtime() - start;
+            }
+
+            // The same boxes and the ten nearest locations through the helper, reading all rows
+            long rows = 0;
+            start = SystemClock.elapsedRealtime();
+            for (int i = 0; i < queries; i++) {
+                Cursor cursor = dh.getLocationsInBox(
+                        latitudes[i] - 0.005, longitudes[i] - 0.005, latitudes[i] + 0.005, longitudes[i] + 0.005, true, true);
+                try {
+                    while (cursor.moveToNext())
+                        rows++;
+                } finally {
+                    cursor.close();
+                }
+            }
+            long box = SystemClock.elapsedRealtime() - start;
+
+            long nearest = 0;
+            start = SystemClock.elapsedRealtime();
+            for (int i = 0; i < queries; i++) {
+                Cursor cursor = dh.getNearestLocations(latitudes[i], longitudes[i], 10, true, true);
+                try {
+                    while (cursor.moveToNext())
+                        nearest++;
+                } finally {
+                    cursor.close();
+                }
+            }
+            long knn = SystemClock.elapsedRealtime() - start;
+
+            String result = "Spatial points=" + points + " fill=" + fill + "ms" +
+                    " queries=" + queries + " found=" + found +
+                    " rtree=" + elapsed[0] + "ms scan=" + elapsed[1] + "ms" +
+                    (elapsed[0] > 0 ? " speedup=" + elapsed[1] / elapsed[0] + "x" : "") +
+                    "\nbox=" + box + "ms rows=" + rows +
+                    " nearest=" + knn + "ms rows=" + nearest;
+            Log.i(TAG, result);
+            return result;
+        } finally {
+            dh.close();
+            context.deleteDatabase(name);
+        }
+    }
+
+    public Cursor getLocationsSince(long id, boolean trackpoints, boolean waypoints) {
+        // New locations are never archived
+        SQLiteDatabase db = this.getReadableDatabase();
+        String query = "SELECT " + LOCATION_COLUMNS + ", ID AS _id, " + getMaxId("location") + " FROM location";
+        query += " WHERE ID > ? AND deleted IS NULL";
+        if (trackpoints && !waypoints)
+            query += " AND name IS NULL";
+        if (!trackpoints && waypoints)
+            query += " AND name IS NOT NULL";
+        query += " ORDER BY time DESC";
+        return rawQuery(db, query, new String[]{Long.toString(id)});
+    }
+
+    public TrackSlice getTrackSlice(long from, long to, boolean trackpoints, boolean waypoints, int projection) {
+        // Fixed column order: time, waypoint, then the projected columns
+        String columns = "time, name IS NOT NULL";
+        if ((projection & TrackSlice.ID) != 0)
+            columns += ", ID";
+        if ((projection & TrackSlice.POSITION) != 0)
+            columns += ", latitude, longitude";
+        if ((projection & TrackSlice.ALTITUDE) != 0)
+            columns += ", altitude, altitude_type";
+        if ((projection & TrackSlice.ACCURACY) != 0)
+            columns += ", accuracy";
+        if ((projection & TrackSlice.SPEED) != 0)
+            columns += ", speed";
+        if ((projection & TrackSlice.BEARING) != 0)
+            columns += ", bearing";
+        if ((projection & TrackSlice.PROXIMITY) != 0)
+            columns += ", proximity";
+
+        SQLiteDatabase db = this.getReadableDatabase();
+        List<String> args = new ArrayList<String>();
+        String query = getLocationsQuery(db, columns, from, to, trackpoints, waypoints, true, 0, args);
+
+        long start = new Date().getTime();
+        Cursor cursor = null;
+        try {
+            cursor = rawQuery(db, query, args.toArray(new String[0]));
+            TrackSlice slice = new TrackSlice(projection, cursor.getCount());
+            while (cursor.moveToNext()) {
+                int i = slice.count++;
+                int col = 0;
+                int flags = 0;
+
+                slice.time[i] = cursor.getLong(col++);
+                if (cursor.getInt(col++) != 0)
+                    flags |= TrackSlice.WAYPOINT;
+
+                if (slice.id != null)
+                    slice.id[i] = cursor.getLong(col++);
+
+                if (slice.latitude != null) {
+                    slice.latitude[i] = cursor.getDouble(col++);
+                    slice.longitude[i] = cursor.getDouble(col++);
+                }
+
+                if (slice.altitude != null) {
+                    if (cursor.isNull(col))
+                        flags |= TrackSlice.NULL_ALTITUDE;
+                    else
+                        slice.altitude[i] = cursor.getDouble(col);
+                    col++;
+                    slice.altitudeType[i] = (cursor.isNull(col) ? BackgroundService.ALTITUDE_NONE : cursor.getInt(col));
+                    col++;
+                }
+
+                if (slice.accuracy != null) {
+                    if (cursor.isNull(col))
+                        flags |= TrackSlice.NULL_ACCURACY;
+                    else
+                        slice.accuracy[i] = cursor.getFloat(col);
+                    col++;
+                }
+
+                if (slice.speed != null) {
+                    if (cursor.isNull(col))
+                        flags |= TrackSlice.NULL_SPEED;
+                    else
+                        slice.speed[i] = cursor.getFloat(col);
+                    col++;
+                }
+
+                if (slice.bearing != null) {
+                    if (cursor.isNull(col))
+                        flags |= TrackSlice.NULL_BEARING;
+                    else
+                        slice.bearing[i] = cursor.getFloat(col);
+                    col++;
+                }
+
+                if (slice.proximity != null) {
+                    if (cursor.isNull(col))
+                        flags |= TrackSlice.NULL_PROXIMITY;
+                    else
+                        slice.proximity[i] = cursor.getLong(col);
+                    col++;
+                }
+
+                slice.flags[i] = flags;
+            }
+
+            Log.i(TAG, "Loaded track slice points=" + slice.count + " in " + (new Date().getTime() - start) + " ms");
+            return slice;
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+    }
+
+    private String getLocationsQuery(SQLiteDatabase db, String columns, long from, long to, boolean trackpoints, boolean waypoints, boolean asc, int limit, List<String> args) {
+        String where = " WHERE time >= ? AND time <= ? AND deleted IS NULL";
+        if (trackpoints && !waypoints)
+            where += " AND name IS NULL";
+        if (!trackpoints && waypoints)
+            where += " AND name IS NOT NULL";
+
+        args.add(Long.toString(from));
+        args.add(Long.toString(to));
+        String query = "SELECT " + columns + " FROM location" + where;
+
+        // Route to the archive only when the range reaches into it
+        if (trackpoints && from <= getArchiveUntil(db)) {
+            query += " UNION ALL SELECT " + columns + " FROM location_archive" + where;
+            args.add(Long.toString(from));
+            args.add(Long.toString(to));
+        }
+
+        query += " ORDER BY time";
+        if (!asc)
+            query += " DESC";
+        if (limit > 0)
+            query += " LIMIT " + limit;
+        return query;
+    }
+
+    public Cursor getWaypoints() {
+        SQLiteDatabase db = this.getReadableDatabase();
+        return rawQuery(db, QUERY_WAYPOINTS, new String[0]);
+    }
+
+    public Cursor getUnsentLocations() {
+        SQLiteDatabase db = this.getReadableDatabase();
+        // The few archived tombstones are sorted into the unsent locations
+        return rawQuery(db, QUERY_UNSENT, new String[]{}, true);
     }
 
     public int getUnsentLocationCount() {
         SQLiteDatabase db = this.getReadableDatabase();
-        String query = "SELECT COUNT(*) FROM location";
-        query += " WHERE sent IS NULL";
+        String query = QUERY_UNSENT_COUNT;
         Cursor cursor = null;
         try {
-            cursor = db.rawQuery(query, new String[]{});
+            cursor = rawQuery(db, query, new String[]{});
             if (cursor.moveToNext())
                 return cursor.getInt(0);
             else
@@ -640,12 +1739,14 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 
     public Location getLocation(long id) {
         SQLiteDatabase db = this.getReadableDatabase();
-        String query = "SELECT * FROM location";
-        query += " WHERE ID = " + id;
+        String query = "SELECT " + LOCATION_COLUMNS + " FROM location";
+        query += " WHERE ID = " + id + " AND deleted IS NULL";
+        query += " UNION ALL SELECT " + LOCATION_COLUMNS + " FROM location_archive";
+        query += " WHERE ID = " + id + " AND deleted IS NULL";
 
         Cursor cursor = null;
         try {
-            cursor = db.rawQuery(query, new String[0]);
+            cursor = rawQuery(db, query, new String[0]);
             if (cursor.moveToNext()) {
                 int colTime = cursor.getColumnIndex("time");
                 int colLatitude = cursor.getColumnIndex("latitude");
@@ -653,10 +1754,9 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 int colAltitude = cursor.getColumnIndex("altitude");
                 int colAccuracy = cursor.getColumnIndex("accuracy");
                 int colName = cursor.getColumnIndex("name");
-                int colDeleted = cursor.getColumnIndex("deleted");
 
                 Location location = new Location(cursor.getString(colName)); // hack
-                location.setTime(cursor.isNull(colDeleted) ? cursor.getLong(colTime) : Long.MAX_VALUE);
+                location.setTime(cursor.getLong(colTime));
                 location.setLatitude(cursor.getDouble(colLatitude));
                 location.setLongitude(cursor.getDouble(colLongitude));
                 if (!cursor.isNull(colAltitude))
@@ -675,7 +1775,8 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     // Activity
 
     public DatabaseHelper insertActivityType(long time, int activity, int confidence) {
-        synchronized (mContext.getApplicationContext()) {
+        mWriteLock.lock();
+        try {
             SQLiteDatabase db = this.getWritableDatabase();
 
             ContentValues cv = new ContentValues();
@@ -685,30 +1786,65 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 
             if (db.insert("activitytype", null, cv) == -1)
                 Log.e(TAG, "Insert activity type failed");
+        } finally {
+            mWriteLock.unlock();
         }
 
-        for (ActivityTypeChangedListener listener : mActivityTypeChangedListeners)
+        notifyChanged(TABLE_ACTIVITY_TYPE, CHANGE_ADDED, -1, time, time);
+
+        return this;
+    }
+
+    public DatabaseHelper insertActivityTypes(long time, List<DetectedActivity> activities) {
+        if (activities.size() == 0)
+            return this;
+
+        long start = new Date().getTime();
+        mWriteLock.lock();
+        try {
+            SQLiteDatabase db = this.getWritableDatabase();
+
+            db.beginTransaction();
+            SQLiteStatement stmt = null;
             try {
-                listener.onActivityAdded(time, activity, confidence);
-            } catch (Throwable ex) {
-                Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+                stmt = db.compileStatement("INSERT INTO activitytype (time, activity, confidence) VALUES (?, ?, ?)");
+                for (DetectedActivity activity : activities) {
+                    stmt.clearBindings();
+                    stmt.bindLong(1, time);
+                    stmt.bindLong(2, activity.getType());
+                    stmt.bindLong(3, activity.getConfidence());
+                    if (stmt.executeInsert() == -1)
+                        Log.e(TAG, "Insert activity type failed");
+                }
+
+                db.setTransactionSuccessful();
+            } finally {
+                if (stmt != null)
+                    stmt.close();
+                db.endTransaction();
             }
+        } finally {
+            mWriteLock.unlock();
+        }
+
+        long elapsed = new Date().getTime() - start;
+        Log.i(TAG, "Inserted " + activities.size() + " activity types in " + elapsed + " ms");
+
+        notifyChanged(TABLE_ACTIVITY_TYPE, CHANGE_ADDED, -1, time, time);
 
         return this;
     }
 
     public DatabaseHelper deleteActivityTypes() {
-        synchronized (mContext.getApplicationContext()) {
+        mWriteLock.lock();
+        try {
             SQLiteDatabase db = this.getWritableDatabase();
             db.delete("activitytype", null, new String[]{});
+        } finally {
+            mWriteLock.unlock();
         }
 
-        for (ActivityTypeChangedListener listener : mActivityTypeChangedListeners)
-            try {
-                listener.onActivityDeleted(-1);
-            } catch (Throwable ex) {
-                Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
-            }
+        notifyChanged(TABLE_ACTIVITY_TYPE, CHANGE_DELETED, -1, -1, -1);
 
         return this;
     }
@@ -718,174 +1854,246 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         String query = "SELECT *, ID AS _id FROM activitytype";
         query += " WHERE time >= ? AND time <= ?";
         query += " ORDER BY time DESC";
-        return db.rawQuery(query, new String[]{Long.toString(from), Long.toString(to)});
+        return rawQuery(db, query, new String[]{Long.toString(from), Long.toString(to)});
+    }
+
+    public Cursor getActivityTypesPage(long from, long to, long toId, int limit) {
+        return getPage("activitytype", "time", "time >= ?", new String[]{Long.toString(from)}, to, toId, limit);
+    }
+
+    public Cursor getActivityTypesSince(long id) {
+        SQLiteDatabase db = this.getReadableDatabase();
+        String query = "SELECT *, ID AS _id, " + getMaxId("activitytype") + " FROM activitytype";
+        query += " WHERE ID > ?";
+        query += " ORDER BY time DESC";
+        return rawQuery(db, query, new String[]{Long.toString(id)});
     }
 
     // Activity duration
 
     public DatabaseHelper updateActivity(long time, int activity, long duration) {
-        // Activity duration
-        int prev = -1;
-        long day = getDay(time);
-        synchronized (mContext.getApplicationContext()) {
-            SQLiteDatabase db = this.getWritableDatabase();
-
-            String column;
-            switch (activity) {
-                case DetectedActivity.STILL:
-                    column = "still";
-                    break;
-                case DetectedActivity.ON_FOOT:
-                case DetectedActivity.WALKING:
-                    column = "walking";
-                    break;
-                case DetectedActivity.RUNNING:
-                    column = "running";
-                    break;
-                case DetectedActivity.ON_BICYCLE:
-                    column = "onbicycle";
-                    break;
-                case DetectedActivity.IN_VEHICLE:
-                    column = "invehicle";
-                    break;
-                default:
-                    column = "unknown";
-                    break;
+        // Accumulated in memory, persisted by flushActivity
+        boolean started = mActivityAccumulator.add(getDay(time), time, activity, duration);
+        if (started) {
+            handler.removeCallbacks(mActivityFlusher);
+            handler.post(mActivityFlusher);
+        } else {
+            if (!mActivityFlushScheduled) {
+                mActivityFlushScheduled = true;
+                handler.postDelayed(mActivityFlusher, ACTIVITY_FLUSH_DELAY);
             }
-
-            Cursor c = null;
-            try {
-                c = db.query("activityduration", new String[]{column}, "time = ?", new String[]{Long.toString(day)}, null, null, null, null);
-                if (c.moveToFirst())
-                    prev = c.getInt(c.getColumnIndex(column));
-            } finally {
-                if (c != null)
-                    c.close();
+            if (!mActivityJournalScheduled) {
+                mActivityJournalScheduled = true;
+                handler.postDelayed(mActivityJournaler, ACTIVITY_JOURNAL_DELAY);
             }
+        }
+        return this;
+    }
 
-            if (prev < 0) {
-                Log.i(TAG, "Creating new day time=" + day);
-                ContentValues cv = new ContentValues();
-                cv.put("time", day);
-                cv.put("still", 0);
-                cv.put("walking", 0);
-                cv.put("running", 0);
-                cv.put("onbicycle", 0);
-                cv.put("invehicle", 0);
-                cv.put("unknown", 0);
-                if (db.insert("activityduration", null, cv) == -1)
-                    Log.e(TAG, "Insert activity duration failed");
-            }
+    public DatabaseHelper flushActivity() {
+        // Flushes a snapshot, so activity updates do not wait for the database
+        synchronized (mActivityFlush) {
+            if (!mActivityAccumulator.isDirty())
+                return this;
 
-            if (duration > 0) {
-                ContentValues cv = new ContentValues();
-                cv.put(column, prev + duration);
-                if (db.update("activityduration", cv, "time = ?", new String[]{Long.toString(day)}) != 1)
-                    Log.e(TAG, "Update activity duration failed");
+            long begin = new Date().getTime();
+            if (!mActivitySequenced) {
+                mActivityAccumulator.ensureSequence(getActivitySequence());
+                mActivitySequenced = true;
             }
-        }
 
-        if (prev < 0)
-            for (ActivityDurationChangedListener listener : mActivityDurationChangedListeners)
-                try {
-                    listener.onActivityAdded(day);
-                } catch (Throwable ex) {
-                    Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
-                }
-        else if (duration > 0)
-            for (ActivityDurationChangedListener listener : mActivityDurationChangedListeners)
-                try {
-                    listener.onActivityUpdated(day, activity, prev + duration);
-                } catch (Throwable ex) {
-                    Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
-                }
+            // The durations in flight are journaled with their sequence before the database applies them
+            ActivityAccumulator.Snapshot snapshot = mActivityAccumulator.snapshot();
+            mActivityAccumulator.journal();
 
-        // Activity log
-        long start = -1;
-        synchronized (mContext.getApplicationContext()) {
-            SQLiteDatabase db = this.getWritableDatabase();
+            Map<Long, long[]> durations = snapshot.durations;
+            List<ActivityAccumulator.Segment> segments = snapshot.segments;
+            long[] ids = new long[segments.size()];
+            long[] starts = new long[segments.size()];
+            List<long[]> changes = new ArrayList<long[]>(); // table, kind, id, from, to
 
-            Cursor c = null;
+            mWriteLock.lock();
             try {
-                c = db.query("activitylog", new String[]{"start"}, "finish = ? AND activity = ?",
-                        new String[]{Long.toString(time), Integer.toString(activity)}, null, null, null, null);
-                if (c.moveToFirst())
-                    start = c.getLong(c.getColumnIndex("start"));
+                SQLiteDatabase db = this.getWritableDatabase();
+                db.beginTransaction();
+                SQLiteStatement create = null;
+                SQLiteStatement update = null;
+                try {
+                    // Activity duration, days which have the sequence already are skipped
+                    create = db.compileStatement("INSERT INTO activityduration" +
+                            " (time, still, walking, running, onbicycle, invehicle, unknown)" +
+                            " SELECT ?, 0, 0, 0, 0, 0, 0" +
+                            " WHERE NOT EXISTS (SELECT * FROM activityduration WHERE time = ?)");
+                    update = db.compileStatement("UPDATE activityduration SET" +
+                            " still = still + ?, walking = walking + ?, running = running + ?" +
+                            ", onbicycle = onbicycle + ?, invehicle = invehicle + ?, unknown = unknown + ?" +
+                            ", sequence = ?" +
+                            " WHERE time = ? AND (sequence IS NULL OR sequence < ?)");
+                    for (Map.Entry<Long, long[]> entry : durations.entrySet()) {
+                        long day = entry.getKey();
+                        long[] delta = entry.getValue();
+
+                        create.bindLong(1, day);
+                        create.bindLong(2, day);
+                        if (create.executeInsert() != -1) {
+                            Log.i(TAG, "Creating new day time=" + day);
+                            changes.add(new long[]{TABLE_ACTIVITY_DURATION, CHANGE_ADDED, -1, day, day});
+                        }
+
+                        for (int i = 0; i < delta.length; i++)
+                            update.bindLong(i + 1, delta[i]);
+                        update.bindLong(delta.length + 1, snapshot.sequence);
+                        update.bindLong(delta.length + 2, day);
+                        update.bindLong(delta.length + 3, snapshot.sequence);
+                        if (update.executeUpdateDelete() == 1)
+                            changes.add(new long[]{TABLE_ACTIVITY_DURATION, CHANGE_UPDATED, -1, day, day});
+                        else
+                            Log.i(TAG, "Activity duration time=" + day + " has sequence=" + snapshot.sequence + " already");
+                    }
+
+                    // Activity log
+                    for (int i = 0; i < segments.size(); i++) {
+                        ActivityAccumulator.Segment segment = segments.get(i);
+                        ids[i] = segment.id;
+                        starts[i] = segment.start;
+                        if (!segment.dirty)
+                            continue;
+
+                        if (segment.lookup && ids[i] < 0) {
+                            Cursor c = null;
+                            try {
+                                c = rawQuery(db, QUERY_ACTIVITY_CONTINUED,
+                                        new String[]{Long.toString(segment.start), Integer.toString(segment.activity)});
+                                if (c.moveToFirst()) {
+                                    ids[i] = c.getLong(0);
+                                    starts[i] = c.getLong(1);
+                                }
+                            } finally {
+                                if (c != null)
+                                    c.close();
+                            }
+                        }
+
+                        // A flush committed before the journal was rewritten inserted the segment already
+                        if (ids[i] < 0) {
+                            Cursor c = null;
+                            try {
+                                c = rawQuery(db, QUERY_ACTIVITY_SEGMENT,
+                                        new String[]{Long.toString(segment.start), Integer.toString(segment.activity)});
+                                if (c.moveToFirst())
+                                    ids[i] = c.getLong(0);
+                            } finally {
+                                if (c != null)
+                                    c.close();
+                            }
+                        }
+
+                        ContentValues cv = new ContentValues();
+                        cv.put("finish", segment.finish);
+                        if (ids[i] < 0) {
+                            cv.put("start", segment.start);
+                            cv.put("activity", segment.activity);
+                            ids[i] = db.insert("activitylog", null, cv);
+                            if (ids[i] == -1)
+                                throw new IllegalStateException("Insert activity log failed");
+                            changes.add(new long[]{TABLE_ACTIVITY_LOG, CHANGE_ADDED, ids[i], segment.start, segment.finish});
+                        } else {
+                            if (db.update("activitylog", cv, "ID = ?", new String[]{Long.toString(ids[i])}) != 1)
+                                Log.e(TAG, "Update activity log failed");
+                            changes.add(new long[]{TABLE_ACTIVITY_LOG, CHANGE_UPDATED, ids[i], starts[i], segment.finish});
+                        }
+                    }
+
+                    db.setTransactionSuccessful();
+                } finally {
+                    if (create != null)
+                        create.close();
+                    if (update != null)
+                        update.close();
+                    db.endTransaction();
+                }
+            } catch (Throwable ex) {
+                Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+                mActivityAccumulator.journal();
+                return this;
             } finally {
-                if (c != null)
-                    c.close();
+                mWriteLock.unlock();
             }
 
-            DateFormat df = SimpleDateFormat.getTimeInstance();
+            mActivityAccumulator.flushed(snapshot, ids, starts);
+            mActivityAccumulator.journal();
 
-            if (start < 0) {
-                ContentValues cv = new ContentValues();
-                cv.put("start", time);
-                cv.put("finish", time + duration);
-                cv.put("activity", activity);
-                if (db.insert("activitylog", null, cv) == -1)
-                    Log.e(TAG, "Insert activity log failed");
-            } else {
-                ContentValues cv = new ContentValues();
-                cv.put("finish", time + duration);
-                if (db.update("activitylog", cv, "start = ?", new String[]{Long.toString(start)}) != 1)
-                    Log.e(TAG, "Update activity log failed");
-            }
-        }
+            // Listeners reload only committed rows
+            for (long[] change : changes)
+                notifyChanged((int) change[0], (int) change[1], change[2], change[3], change[4]);
 
-        if (start < 0)
-            for (ActivityLogChangedListener listener : mActivityLogChangedListeners)
-                try {
-                    listener.onActivityAdded(time, time + duration, activity);
-                } catch (Throwable ex) {
-                    Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
-                }
-        else
-            for (ActivityLogChangedListener listener : mActivityLogChangedListeners)
-                try {
-                    listener.onActivityUpdated(start, time + duration, activity);
-                } catch (Throwable ex) {
-                    Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
-                }
+            Log.i(TAG, "Flushed activity days=" + durations.size() + " segments=" + segments.size() +
+                    " sequence=" + snapshot.sequence + " in " + (new Date().getTime() - begin) + " ms");
+        }
 
         return this;
     }
 
+    // Highest flush sequence applied, once per process; one row per day
+    private long getActivitySequence() {
+        SQLiteDatabase db = this.getReadableDatabase();
+        Cursor cursor = null;
+        try {
+            cursor = db.rawQuery("SELECT MAX(sequence) FROM activityduration", null);
+            return (cursor.moveToFirst() && !cursor.isNull(0) ? cursor.getLong(0) : 0);
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+    }
+
     public DatabaseHelper deleteActivity(long id) {
         // This will not delete the activity log
-        synchronized (mContext.getApplicationContext()) {
+        mWriteLock.lock();
+        try {
             SQLiteDatabase db = this.getWritableDatabase();
             if (db.delete("activityduration", "ID = ?", new String[]{Long.toString(id)}) != 1)
                 Log.e(TAG, "Delete activity duration failed");
+        } finally {
+            mWriteLock.unlock();
         }
 
-        for (ActivityDurationChangedListener listener : mActivityDurationChangedListeners)
-            try {
-                listener.onActivityDeleted(id);
-            } catch (Throwable ex) {
-                Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
-            }
+        notifyChanged(TABLE_ACTIVITY_DURATION, CHANGE_DELETED, id, -1, -1);
 
         return this;
     }
 
     public Cursor getActivityDurations(long from, long to, boolean asc) {
+        flushActivity();
         SQLiteDatabase db = this.getReadableDatabase();
         String query = "SELECT *, ID AS _id FROM activityduration";
+        query += " WHERE time >= ? AND time <= ?";
         query += " ORDER BY time";
         if (!asc)
             query += " DESC";
-        return db.rawQuery(query, new String[]{});
+        return rawQuery(db, query, new String[]{Long.toString(from), Long.toString(to)});
+    }
+
+    public Cursor getActivityDurationsPage(long from, long to, long toId, int limit) {
+        flushActivity();
+        return getPage("activityduration", "time", "time >= ?", new String[]{Long.toString(from)}, to, toId, limit);
     }
 
     public Cursor getActivityLog(long from, long to, boolean asc) {
+        flushActivity();
         SQLiteDatabase db = this.getReadableDatabase();
         String query = "SELECT *, ID AS _id FROM activitylog";
         query += " WHERE start <= ? AND finish >= ?";
         query += " ORDER BY start";
         if (!asc)
             query += " DESC";
-        return db.rawQuery(query, new String[]{Long.toString(to), Long.toString(from)});
+        return rawQuery(db, query, new String[]{Long.toString(to), Long.toString(from)});
+    }
+
+    public Cursor getActivityLogPage(long from, long to, long toId, int limit) {
+        // Segments overlapping the range, paged by start
+        flushActivity();
+        return getPage("activitylog", "start", "finish >= ?", new String[]{Long.toString(from)}, to, toId, limit);
     }
 
     // Steps
@@ -894,12 +2102,13 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         int count = -1;
         long day = getDay(time);
 
-        synchronized (mContext.getApplicationContext()) {
+        mWriteLock.lock();
+        try {
             SQLiteDatabase db = this.getWritableDatabase();
 
             Cursor c = null;
             try {
-                c = db.query("step", new String[]{"count"}, "time = ?", new String[]{Long.toString(day)}, null, null, null, null);
+                c = rawQuery(db, QUERY_STEP_COUNT, new String[]{Long.toString(day)});
                 if (c.moveToFirst())
                     count = c.getInt(c.getColumnIndex("count"));
             } finally {
@@ -920,248 +2129,411 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 if (db.update("step", cv, "time = ?", new String[]{Long.toString(day)}) != 1)
                     Log.e(TAG, "Update step failed");
             }
+            mStepDay = -1;
+        } finally {
+            mWriteLock.unlock();
         }
 
-        for (StepCountChangedListener listener : mStepCountChangedListeners)
-            try {
-                if (count < 0)
-                    listener.onStepCountAdded(day, delta);
-                else
-                    listener.onStepCountUpdated(day, count + delta);
-            } catch (Throwable ex) {
-                Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
-            }
+        notifyChanged(TABLE_STEP, count < 0 ? CHANGE_ADDED : CHANGE_UPDATED, -1, day, day);
 
         return this;
     }
 
     public DatabaseHelper updateSteps(long id, long time, int value) {
-        synchronized (mContext.getApplicationContext()) {
+        mWriteLock.lock();
+        try {
             SQLiteDatabase db = this.getWritableDatabase();
             ContentValues cv = new ContentValues();
             cv.put("count", value);
             if (db.update("step", cv, "ID = ?", new String[]{Long.toString(id)}) != 1)
                 Log.e(TAG, "Update step failed");
+            mStepDay = -1;
+        } finally {
+            mWriteLock.unlock();
         }
 
-        for (StepCountChangedListener listener : mStepCountChangedListeners)
-            try {
-                listener.onStepCountUpdated(time, value);
-            } catch (Throwable ex) {
-                Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
-            }
+        notifyChanged(TABLE_STEP, CHANGE_UPDATED, id, time, time);
 
         return this;
     }
 
     public DatabaseHelper deleteStep(long id) {
-        synchronized (mContext.getApplicationContext()) {
+        mWriteLock.lock();
+        try {
             SQLiteDatabase db = this.getWritableDatabase();
             if (db.delete("step", "ID = ?", new String[]{Long.toString(id)}) != 1)
                 Log.e(TAG, "Delete step failed");
+            mStepDay = -1;
+        } finally {
+            mWriteLock.unlock();
         }
 
-        for (StepCountChangedListener listener : mStepCountChangedListeners)
-            try {
-                listener.onStepDeleted(id);
-            } catch (Throwable ex) {
-                Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
-            }
+        notifyChanged(TABLE_STEP, CHANGE_DELETED, id, -1, -1);
 
         return this;
     }
 
-    public Cursor getSteps(boolean asc) {
+    public Cursor getSteps(long from, long to, boolean asc) {
         SQLiteDatabase db = this.getReadableDatabase();
         String query = "SELECT *, ID AS _id FROM step";
+        query += " WHERE time >= ? AND time <= ?";
         query += " ORDER BY time";
         if (!asc)
             query += " DESC";
-        return db.rawQuery(query, new String[]{});
+        return rawQuery(db, query, new String[]{Long.toString(from), Long.toString(to)});
+    }
+
+    public Cursor getStepsPage(long from, long to, long toId, int limit) {
+        return getPage("step", "time", "time >= ?", new String[]{Long.toString(from)}, to, toId, limit);
     }
 
     public int getSteps(long time) {
         long day = getDay(time);
-        SQLiteDatabase db = this.getReadableDatabase();
-        Cursor c = null;
+        mWriteLock.lock();
         try {
-            c = db.query("step", new String[]{"count"}, "time = ?", new String[]{Long.toString(day)}, null, null, "time DESC", null);
-            if (c.moveToFirst())
-                return c.getInt(c.getColumnIndex("count"));
-            else
-                return 0;
+            if (day == mStepDay)
+                return mStepCount;
+
+            SQLiteDatabase db = this.getReadableDatabase();
+            Cursor c = null;
+            try {
+                c = rawQuery(db, QUERY_STEP_COUNT, new String[]{Long.toString(day)});
+                mStepCount = (c.moveToFirst() ? c.getInt(c.getColumnIndex("count")) : 0);
+                mStepDay = day;
+                return mStepCount;
+            } finally {
+                if (c != null)
+                    c.close();
+            }
         } finally {
-            if (c != null)
-                c.close();
+            mWriteLock.unlock();
         }
     }
 
     // Weather
 
     public boolean insertWeather(Weather weather, Location location) {
-        synchronized (mContext.getApplicationContext()) {
+        return (insertWeather(Arrays.asList(weather), location) > 0);
+    }
+
+    public int insertWeather(List<Weather> listWeather, Location location) {
+        // Reports already stored are ignored by the unique index on time and station
+        int inserted = 0;
+        long[] times = new long[listWeather.size()];
+        mWriteLock.lock();
+        try {
             SQLiteDatabase db = this.getWritableDatabase();
 
-            Cursor c = null;
+            db.beginTransaction();
+            SQLiteStatement stmt = null;
             try {
-                c = db.query("weather", new String[]{"ID"}, "time = ? AND station_id = ?",
-                        new String[]{Long.toString(weather.time), Long.toString(weather.station_id)}, null, null, null, null);
-                if (c.getCount() != 0)
-                    return false;
+                stmt = db.compileStatement("INSERT OR IGNORE INTO weather" +
+                        " (time, provider, station_id, station_type, station_name, station_latitude, station_longitude" +
+                        ", latitude, longitude, temperature, humidity, pressure, wind_speed, wind_gust, wind_direction" +
+                        ", visibility, rain_1h, rain_today, rain_probability, clouds, ozone, icon, summary, created)" +
+                        " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+
+                long created = new Date().getTime();
+                for (int i = 0; i < listWeather.size(); i++) {
+                    Weather weather = listWeather.get(i);
+                    stmt.clearBindings();
+                    stmt.bindLong(1, weather.time);
+                    bindString(stmt, 2, weather.provider);
+                    stmt.bindLong(3, weather.station_id);
+                    stmt.bindLong(4, weather.station_type);
+                    bindString(stmt, 5, weather.station_name);
+                    if (weather.station_location != null) {
+                        stmt.bindDouble(6, weather.station_location.getLatitude());
+                        stmt.bindDouble(7, weather.station_location.getLongitude());
+                    }
+                    if (location != null) {
+                        stmt.bindDouble(8, location.getLatitude());
+                        stmt.bindDouble(9, location.getLongitude());
+                    }
+                    bindDouble(stmt, 10, weather.temperature);
+                    bindDouble(stmt, 11, weather.humidity);
+                    bindDouble(stmt, 12, weather.pressure);
+                    bindDouble(stmt, 13, weather.wind_speed);
+                    bindDouble(stmt, 14, weather.wind_gust);
+                    bindDouble(stmt, 15, weather.wind_direction);
+                    bindDouble(stmt, 16, weather.visibility);
+                    bindDouble(stmt, 17, weather.rain_1h);
+                    bindDouble(stmt, 18, weather.rain_today);
+                    bindDouble(stmt, 19, weather.rain_probability);
+                    bindDouble(stmt, 20, weather.clouds);
+                    bindDouble(stmt, 21, weather.ozone);
+                    bindString(stmt, 22, weather.icon);
+                    bindString(stmt, 23, weather.summary);
+                    stmt.bindLong(24, created);
+
+                    if (stmt.executeInsert() == -1)
+                        times[i] = -1;
+                    else {
+                        times[i] = weather.time;
+                        inserted++;
+                        Log.i(TAG, "Stored " + weather);
+                    }
+                }
+
+                db.setTransactionSuccessful();
             } finally {
-                if (c != null)
-                    c.close();
+                if (stmt != null)
+                    stmt.close();
+                db.endTransaction();
             }
+        } finally {
+            mWriteLock.unlock();
+        }
 
-            ContentValues cv = new ContentValues();
-            cv.put("time", weather.time);
-            cv.put("provider", weather.provider);
-            cv.put("station_id", weather.station_id);
-            cv.put("station_type", weather.station_type);
-            cv.put("station_name", weather.station_name);
-
-            if (weather.station_location == null) {
-                cv.putNull("station_latitude");
-                cv.putNull("station_longitude");
-            } else {
-                cv.put("station_latitude", weather.station_location.getLatitude());
-                cv.put("station_longitude", weather.station_location.getLongitude());
-            }
+        for (long time : times)
+            if (time != -1)
+                notifyChanged(TABLE_WEATHER, CHANGE_ADDED, -1, time, time);
 
-            if (location == null) {
-                cv.putNull("latitude");
-                cv.putNull("longitude");
-            } else {
-                cv.put("latitude", location.getLatitude());
-                cv.put("longitude", location.getLongitude());
-            }
+        return inserted;
+    }
 
-            if (Double.isNaN(weather.temperature))
-                cv.putNull("temperature");
-            else
-                cv.put("temperature", weather.temperature);
+    private static void bindString(SQLiteStatement stmt, int index, String value) {
+        if (value == null)
+            stmt.bindNull(index);
+        else
+            stmt.bindString(index, value);
+    }
 
-            if (Double.isNaN(weather.humidity))
-                cv.putNull("humidity");
-            else
-                cv.put("humidity", weather.humidity);
+    private static void bindDouble(SQLiteStatement stmt, int index, double value) {
+        if (Double.isNaN(value))
+            stmt.bindNull(index);
+        else
+            stmt.bindDouble(index, value);
+    }
 
-            if (Double.isNaN(weather.pressure))
-                cv.putNull("pressure");
-            else
-                cv.put("pressure", weather.pressure);
+    public DatabaseHelper deleteWeather(long id) {
+        mWriteLock.lock();
+        try {
+            SQLiteDatabase db = this.getWritableDatabase();
+            if (db.delete("weather", "ID = ?", new String[]{Long.toString(id)}) != 1)
+                Log.e(TAG, "Delete weather failed");
+        } finally {
+            mWriteLock.unlock();
+        }
 
-            if (Double.isNaN(weather.wind_speed))
-                cv.putNull("wind_speed");
-            else
-                cv.put("wind_speed", weather.wind_speed);
+        notifyChanged(TABLE_WEATHER, CHANGE_DELETED, id, -1, -1);
 
-            if (Double.isNaN(weather.wind_gust))
-                cv.putNull("wind_gust");
-            else
-                cv.put("wind_gust", weather.wind_gust);
+        return this;
+    }
 
-            if (Double.isNaN(weather.wind_direction))
-                cv.putNull("wind_direction");
-            else
-                cv.put("wind_direction", weather.wind_direction);
+    public Cursor getWeather(long from, long to, boolean asc) {
+        SQLiteDatabase db = this.getReadableDatabase();
+        String query = "SELECT *, ID AS _id FROM weather";
+        query += " WHERE time >= ? AND time <= ?";
+        query += " ORDER BY time";
+        if (!asc)
+            query += " DESC";
+        return rawQuery(db, query, new String[]{Long.toString(from), Long.toString(to)});
+    }
 
-            if (Double.isNaN(weather.visibility))
-                cv.putNull("visibility");
-            else
-                cv.put("visibility", weather.visibility);
+    public Cursor getWeatherPage(long from, long to, long toId, int limit) {
+        return getPage("weather", "time", "time >= ?", new String[]{Long.toString(from)}, to, toId, limit);
+    }
 
-            if (Double.isNaN(weather.rain_1h))
-                cv.putNull("rain_1h");
-            else
-                cv.put("rain_1h", weather.rain_1h);
+    public Cursor getWeatherSince(long id) {
+        SQLiteDatabase db = this.getReadableDatabase();
+        String query = "SELECT *, ID AS _id, " + getMaxId("weather") + " FROM weather";
+        query += " WHERE ID > ?";
+        query += " ORDER BY time DESC";
+        return rawQuery(db, query, new String[]{Long.toString(id)});
+    }
 
-            if (Double.isNaN(weather.rain_today))
-                cv.putNull("rain_today");
-            else
-                cv.put("rain_today", weather.rain_today);
+    // Acquisition
 
-            if (Double.isNaN(weather.rain_probability))
-                cv.putNull("rain_probability");
-            else
-                cv.put("rain_probability", weather.rain_probability);
+    public DatabaseHelper insertAcquisition(FixPredictor.Acquisition acquisition) {
+        mWriteLock.lock();
+        try {
+            SQLiteDatabase db = this.getWritableDatabase();
 
-            if (Double.isNaN(weather.clouds))
-                cv.putNull("clouds");
-            else
-                cv.put("clouds", weather.clouds);
+            ContentValues cv = new ContentValues();
+            cv.put("time", acquisition.time);
 
-            if (Double.isNaN(weather.ozone))
-                cv.putNull("ozone");
+            if (acquisition.cell < 0)
+                cv.putNull("cell");
             else
-                cv.put("ozone", weather.ozone);
+                cv.put("cell", acquisition.cell);
 
-            if (weather.icon == null)
-                cv.putNull("icon");
+            cv.put("duration", acquisition.duration);
+
+            if (acquisition.firstFix < 0)
+                cv.putNull("first_fix");
             else
-                cv.put("icon", weather.icon);
+                cv.put("first_fix", acquisition.firstFix);
 
-            if (weather.summary == null)
-                cv.putNull("summary");
+            if (acquisition.fix < 0)
+                cv.putNull("fix");
             else
-                cv.put("summary", weather.summary);
+                cv.put("fix", acquisition.fix);
 
-            cv.put("created", new Date().getTime());
+            cv.put("visible", acquisition.visible);
+            cv.put("fixed", acquisition.fixed);
 
-            if (db.insert("weather", null, cv) == -1)
-                Log.e(TAG, "Insert weather failed");
+            if (Float.isNaN(acquisition.accuracy))
+                cv.putNull("accuracy");
             else
-                Log.i(TAG, "Stored " + weather);
+                cv.put("accuracy", acquisition.accuracy);
+
+            if (db.insert("acquisition", null, cv) == -1)
+                Log.e(TAG, "Insert acquisition failed");
+        } finally {
+            mWriteLock.unlock();
         }
 
-        for (WeatherChangedListener listener : mWeatherChangedListeners)
-            try {
-                listener.onWeatherAdded(weather.time, weather.station_id);
-            } catch (Throwable ex) {
-                Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
-            }
+        return this;
+    }
 
-        return true;
+    // Newest first, cell -1 for all cells
+    public Cursor getAcquisitions(int cell, long from, int limit) {
+        SQLiteDatabase db = this.getReadableDatabase();
+        String query = "SELECT * FROM acquisition";
+        if (cell < 0)
+            query += " WHERE time >= ?";
+        else
+            query += " WHERE cell = ? AND time >= ?";
+        query += " ORDER BY time DESC LIMIT " + limit;
+        if (cell < 0)
+            return rawQuery(db, query, new String[]{Long.toString(from)});
+        else
+            return rawQuery(db, query, new String[]{Integer.toString(cell), Long.toString(from)});
     }
 
-    public DatabaseHelper deleteWeather(long id) {
-        synchronized (mContext.getApplicationContext()) {
+    public int purgeAcquisitions(long before) {
+        int rows;
+        mWriteLock.lock();
+        try {
             SQLiteDatabase db = this.getWritableDatabase();
-            if (db.delete("weather", "ID = ?", new String[]{Long.toString(id)}) != 1)
-                Log.e(TAG, "Delete weather failed");
+            rows = db.delete("acquisition", "time < ?", new String[]{Long.toString(before)});
+        } finally {
+            mWriteLock.unlock();
         }
+        Log.i(TAG, "Purged acquisitions=" + rows);
+        return rows;
+    }
 
-        for (WeatherChangedListener listener : mWeatherChangedListeners)
-            try {
-                listener.onWeatherDeleted(id);
-            } catch (Throwable ex) {
-                Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
-            }
+    // Newest first rows before the keyset (to, toId), continue with the time and ID of the last row
+    private Cursor getPage(String table, String time, String where, String[] whereArgs, long to, long toId, int limit) {
+        SQLiteDatabase db = this.getReadableDatabase();
+        List<String> args = new ArrayList<String>(Arrays.asList(whereArgs));
+        args.add(Long.toString(to));
+        args.add(Long.toString(to));
+        args.add(Long.toString(toId));
+        String query = "SELECT *, ID AS _id, " + getMaxId(table) + " FROM " + table;
+        query += " WHERE " + where + " AND " + getKeyset(time);
+        query += " ORDER BY " + time + " DESC, ID DESC LIMIT " + limit;
+        return rawQuery(db, query, args.toArray(new String[0]));
+    }
 
-        return this;
+    // Arguments to, to, toId; written so that the time index can be used as a range
+    private static String getKeyset(String time) {
+        return time + " <= ? AND (" + time + " < ? OR ID < ?)";
     }
 
-    public Cursor getWeather(boolean asc) {
-        SQLiteDatabase db = this.getReadableDatabase();
-        String query = "SELECT *, ID AS _id FROM weather";
-        query += " ORDER BY time";
-        if (!asc)
-            query += " DESC";
-        return db.rawQuery(query, new String[]{});
+    // Highest ID of the table as seen by the same statement, for continuing with a since query
+    private static String getMaxId(String table) {
+        return "(SELECT IFNULL(MAX(ID), 0) FROM " + table + ") AS max_id";
     }
 
     // Utility
 
-    public DatabaseHelper vacuum() {
+    public long vacuum(long budget) {
+        // Returns time spent on maintenance in milliseconds
+        long start = new Date().getTime();
         SQLiteDatabase db = this.getWritableDatabase();
-        Log.i(TAG, "Running vacuum");
-        db.execSQL("VACUUM");
-        return this;
+
+        // One time migration, auto_vacuum can only be changed by a full vacuum
+        if (getPragma(db, "auto_vacuum") != 2) {
+            mWriteLock.lock();
+            try {
+                Log.i(TAG, "Enabling incremental vacuum");
+                db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+                db.execSQL("VACUUM");
+            } finally {
+                mStepDay = -1;
+                mWriteLock.unlock();
+            }
+        }
+
+        long pages = getPragma(db, "page_count");
+        long free = getPragma(db, "freelist_count");
+        Log.i(TAG, "Database pages=" + pages + " free=" + free);
+
+        // Reclaim free pages in small steps, so writers can continue in between
+        if (pages > 0 && free * 100 / pages >= VACUUM_FREE_PERCENTAGE)
+            while (free > 0 && new Date().getTime() - start < budget) {
+                mWriteLock.lock();
+                try {
+                    Cursor cursor = db.rawQuery("PRAGMA incremental_vacuum(" + VACUUM_PAGES + ")", null);
+                    try {
+                        cursor.getCount(); // steps the pragma to completion
+                    } finally {
+                        cursor.close();
+                    }
+                } finally {
+                    mWriteLock.unlock();
+                }
+
+                long left = getPragma(db, "freelist_count");
+                if (left >= free)
+                    break;
+                free = left;
+            }
+
+        long elapsed = new Date().getTime() - start;
+        Log.i(TAG, "Vacuum free=" + free + " in " + elapsed + " ms");
+        return elapsed;
+    }
+
+    private long getPragma(SQLiteDatabase db, String name) {
+        Cursor cursor = null;
+        try {
+            cursor = db.rawQuery("PRAGMA " + name, null);
+            return (cursor.moveToFirst() ? cursor.getLong(0) : -1);
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+    }
+
+    public static String getLockStatistics(boolean reset) {
+        String statistics = mWriteLock.toString();
+        if (reset)
+            mWriteLock.reset();
+        return statistics;
+    }
+
+    // Records the queries of the current thread until called with null
+    static void recordQueries(Map<String, RecordedQuery> queries) {
+        if (queries == null)
+            mRecorded.remove();
+        else
+            mRecorded.set(queries);
+    }
+
+    // All queries of the helper go through here, so that the query plan test sees the actual query strings
+    private static Cursor rawQuery(SQLiteDatabase db, String query, String[] args) {
+        return rawQuery(db, query, args, false);
+    }
+
+    // sorts: a temporary B-tree for ORDER BY is expected, the result being bounded by a spatial filter
+    private static Cursor rawQuery(SQLiteDatabase db, String query, String[] args, boolean sorts) {
+        Map<String, RecordedQuery> recorded = mRecorded.get();
+        if (recorded != null) {
+            RecordedQuery record = new RecordedQuery();
+            record.args = args;
+            record.sorts = sorts;
+            recorded.put(query, record);
+        }
+        return db.rawQuery(query, args);
     }
 
     // Helper methods
 
-    private long getDay(long ms) {
+    public static long getDay(long ms) {
         Calendar calendar = Calendar.getInstance();
         calendar.setTimeInMillis(ms);
         calendar.set(Calendar.HOUR_OF_DAY, 0);
@@ -1173,59 +2545,75 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 
     // Changes
 
-    public static void addLocationChangedListener(LocationChangedListener listener) {
-        mLocationChangedListeners.add(listener);
+    public static void addLocationChangedListener(ChangeListener listener) {
+        mChangeListeners.get(TABLE_LOCATION).add(listener);
     }
 
-    public static void removeLocationChangedListener(LocationChangedListener listener) {
-        mLocationChangedListeners.remove(listener);
+    public static void removeLocationChangedListener(ChangeListener listener) {
+        mChangeListeners.get(TABLE_LOCATION).remove(listener);
     }
 
-    public static void addActivityTypeChangedListener(ActivityTypeChangedListener listener) {
-        mActivityTypeChangedListeners.add(listener);
+    public static void addActivityTypeChangedListener(ChangeListener listener) {
+        mChangeListeners.get(TABLE_ACTIVITY_TYPE).add(listener);
     }
 
-    public static void removeActivityTypeChangedListener(ActivityTypeChangedListener listener) {
-        mActivityTypeChangedListeners.remove(listener);
+    public static void removeActivityTypeChangedListener(ChangeListener listener) {
+        mChangeListeners.get(TABLE_ACTIVITY_TYPE).remove(listener);
     }
 
-    public static void addActivityDurationChangedListener(ActivityDurationChangedListener listener) {
-        mActivityDurationChangedListeners.add(listener);
+    public static void addActivityDurationChangedListener(ChangeListener listener) {
+        mChangeListeners.get(TABLE_ACTIVITY_DURATION).add(listener);
     }
 
-    public static void removeActivityDurationChangedListener(ActivityDurationChangedListener listener) {
-        mActivityDurationChangedListeners.remove(listener);
+    public static void removeActivityDurationChangedListener(ChangeListener listener) {
+        mChangeListeners.get(TABLE_ACTIVITY_DURATION).remove(listener);
     }
 
-    public static void addActivityLogChangedListener(ActivityLogChangedListener listener) {
-        mActivityLogChangedListeners.add(listener);
+    public static void addActivityLogChangedListener(ChangeListener listener) {
+        mChangeListeners.get(TABLE_ACTIVITY_LOG).add(listener);
     }
 
-    public static void removeActivityLogChangedListener(ActivityLogChangedListener listener) {
-        mActivityLogChangedListeners.remove(listener);
+    public static void removeActivityLogChangedListener(ChangeListener listener) {
+        mChangeListeners.get(TABLE_ACTIVITY_LOG).remove(listener);
     }
 
-    public static void addStepCountChangedListener(StepCountChangedListener listener) {
-        mStepCountChangedListeners.add(listener);
+    public static void addStepCountChangedListener(ChangeListener listener) {
+        mChangeListeners.get(TABLE_STEP).add(listener);
     }
 
-    public static void removeStepCountChangedListener(StepCountChangedListener listener) {
-        mStepCountChangedListeners.remove(listener);
+    public static void removeStepCountChangedListener(ChangeListener listener) {
+        mChangeListeners.get(TABLE_STEP).remove(listener);
     }
 
-    public static void addWeatherChangedListener(WeatherChangedListener listener) {
-        mWeatherChangedListeners.add(listener);
+    public static void addWeatherChangedListener(ChangeListener listener) {
+        mChangeListeners.get(TABLE_WEATHER).add(listener);
     }
 
-    public static void removeWeatherChangedListener(WeatherChangedListener listener) {
-        mWeatherChangedListeners.remove(listener);
+    public static void removeWeatherChangedListener(ChangeListener listener) {
+        mChangeListeners.get(TABLE_WEATHER).remove(listener);
+    }
+
+    // Changes arriving within the window of a table are delivered as one
+    public static void setChangeWindow(int table, long window) {
+        synchronized (mPendingChanges) {
+            mChangeWindow[table] = window;
+        }
+    }
+
+    private static void notifyChanged(int table, int kind, long id, long fromTime, long toTime) {
+        synchronized (mPendingChanges) {
+            if (mPendingChanges[table] == null) {
+                if (mChangeListeners.get(table).size() == 0)
+                    return;
+                mPendingChanges[table] = new Change(table);
+                handler.sendMessageDelayed(handler.obtainMessage(MSG_CHANGED, table, 0), mChangeWindow[table]);
+            }
+            mPendingChanges[table].add(kind, id, fromTime, toTime);
+        }
     }
 
     private void notifyLocationUpdated(long id) {
-        Message msg = handler.obtainMessage();
-        msg.what = MSG_LOCATION_UPDATED;
-        msg.obj = (Long) id;
-        handler.sendMessage(msg);
+        notifyChanged(TABLE_LOCATION, CHANGE_UPDATED, id, -1, -1);
 
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
         prefs.edit().putLong(SettingsFragment.PREF_LIFELINE_LAST, new Date().getTime()).apply();
@@ -1237,65 +2625,78 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     }
 
     private static void handleChangedNotification(Message msg) {
-        // Batch notifications
-        try {
-            Thread.sleep(2500);
-            if (handler.hasMessages(msg.what))
-                handler.removeMessages(msg.what);
-        } catch (InterruptedException ignored) {
-        }
-
-        // Notify listeners
-        if (msg.what == MSG_LOCATION_UPDATED) {
-            for (LocationChangedListener listener : mLocationChangedListeners)
-                try {
-                    listener.onLocationUpdated();
-                } catch (Throwable ex) {
-                    Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
-                }
+        if (msg.what != MSG_CHANGED)
+            return;
 
+        Change change;
+        synchronized (mPendingChanges) {
+            change = mPendingChanges[msg.arg1];
+            mPendingChanges[msg.arg1] = null;
         }
-    }
+        if (change == null)
+            return;
 
-    public interface LocationChangedListener {
-        void onLocationAdded(Location location);
-
-        void onLocationUpdated();
-
-        void onLocationDeleted(long id);
-    }
-
-    public interface ActivityTypeChangedListener {
-        void onActivityAdded(long time, int activity, int confidence);
-
-        void onActivityDeleted(long id);
+        Log.i(TAG, "Notify " + change);
+        for (ChangeListener listener : mChangeListeners.get(change.table))
+            try {
+                listener.onChanged(change);
+            } catch (Throwable ex) {
+                Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+            }
     }
 
-    public interface ActivityDurationChangedListener {
-        void onActivityAdded(long day);
-
-        void onActivityUpdated(long day, int activity, long duration);
-
-        void onActivityDeleted(long id);
-    }
+    // Coalesced changes of one table, ID and time ranges are -1 when unknown
+    public static class Change {
+        public int table;
+        public int kinds = 0;
+        public int count = 0;
+        public long fromId = Long.MAX_VALUE;
+        public long toId = Long.MIN_VALUE;
+        public long fromTime = Long.MAX_VALUE;
+        public long toTime = Long.MIN_VALUE;
+
+        private boolean unknownId = false;
+        private boolean unknownTime = false;
+
+        public Change(int table) {
+            this.table = table;
+        }
 
-    public interface ActivityLogChangedListener {
-        void onActivityAdded(long start, long finish, int activity);
+        private void add(int kind, long id, long from, long to) {
+            kinds |= kind;
+            count++;
 
-        void onActivityUpdated(long start, long finish, int activity);
-    }
+            if (unknownId || id < 0) {
+                unknownId = true;
+                fromId = -1;
+                toId = -1;
+            } else {
+                fromId = Math.min(fromId, id);
+                toId = Math.max(toId, id);
+            }
 
-    public interface StepCountChangedListener {
-        void onStepCountAdded(long time, int count);
+            if (unknownTime || from < 0 || to < 0) {
+                unknownTime = true;
+                fromTime = -1;
+                toTime = -1;
+            } else {
+                fromTime = Math.min(fromTime, from);
+                toTime = Math.max(toTime, to);
+            }
+        }
 
-        void onStepCountUpdated(long time, int count);
+        public boolean has(int kind) {
+            return ((kinds & kind) != 0);
+        }
 
-        void onStepDeleted(long id);
+        @Override
+        public String toString() {
+            return "table=" + table + " kinds=" + kinds + " count=" + count +
+                    " id=" + fromId + ".." + toId + " time=" + fromTime + ".." + toTime;
+        }
     }
 
-    public interface WeatherChangedListener {
-        void onWeatherAdded(long time, long station_id);
-
-        void onWeatherDeleted(long id);
+    public interface ChangeListener {
+        void onChanged(Change change);
     }
 }
\ No newline at end of file
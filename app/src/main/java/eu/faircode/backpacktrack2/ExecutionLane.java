@@ -0,0 +1,121 @@
+package eu.faircode.backpacktrack2;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+// Serial queue of jobs on its own thread, holding its own wake lock while jobs are queued or running
+public class ExecutionLane {
+    private static final String TAG = "BPT2.Lane";
+
+    public interface Listener {
+        // Called on the lane thread
+        void onProgress(ExecutionLane lane, int current, int total);
+
+        // Called on the lane thread after each job, including skipped jobs
+        void onFinished(ExecutionLane lane);
+    }
+
+    private String name;
+    private Listener listener;
+    private HandlerThread thread;
+    private Handler handler;
+    private PowerManager.WakeLock wakeLock;
+    private ActionMetrics metrics;
+    private long heldSince;
+
+    private int generation = 0;
+    private int pending = 0;
+    private volatile boolean cancelled = false;
+
+    public ExecutionLane(Context context, String name, int priority, Listener listener) {
+        this.name = name;
+        this.listener = listener;
+
+        thread = new HandlerThread(name, priority);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+
+        PowerManager pm = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        wakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG + "." + name);
+        wakeLock.setReferenceCounted(true);
+
+        metrics = ActionMetrics.getInstance(context);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    // Label identifies the job in the metrics
+    public void execute(final String label, final Runnable job) {
+        final int gen;
+        final long queued = SystemClock.elapsedRealtime();
+        synchronized (this) {
+            gen = generation;
+            if (pending++ == 0)
+                heldSince = queued;
+            wakeLock.acquire();
+        }
+
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                long started = SystemClock.elapsedRealtime();
+                try {
+                    synchronized (ExecutionLane.this) {
+                        cancelled = (gen != generation);
+                    }
+                    if (cancelled)
+                        Log.i(TAG, name + " skipping cancelled job");
+                    else
+                        job.run();
+                } catch (Throwable ex) {
+                    Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+                } finally {
+                    long finished = SystemClock.elapsedRealtime();
+                    metrics.record(label, started - queued, finished - started, finished - queued);
+                    synchronized (ExecutionLane.this) {
+                        if (--pending == 0)
+                            metrics.recordWakeLock(name, finished - heldSince);
+                        wakeLock.release();
+                    }
+                    listener.onFinished(ExecutionLane.this);
+                }
+            }
+        });
+    }
+
+    // Cancels the running job cooperatively and skips the queued jobs
+    public synchronized void cancel() {
+        Log.i(TAG, name + " cancel pending=" + pending);
+        generation++;
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public void progress(int current, int total) {
+        listener.onProgress(this, current, total);
+    }
+
+    public synchronized boolean isIdle() {
+        return (pending == 0);
+    }
+
+    // Jobs queued or running, including the calling job
+    public synchronized int getPending() {
+        return pending;
+    }
+
+    public synchronized void quit() {
+        thread.quit();
+        while (wakeLock.isHeld())
+            wakeLock.release();
+    }
+}
@@ -0,0 +1,183 @@
+package eu.faircode.backpacktrack2;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.location.Location;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+// Predicts the location time-out and the satellite check from recent acquisitions,
+// preferably those in the same coarse cell, to give up early where GPS rarely gets a fix
+public class FixPredictor {
+    private static final String TAG = "BPT2.Predictor";
+
+    private static final int MIN_SAMPLES = 3;
+    private static final int MAX_SAMPLES = 20;
+    private static final long HISTORY = 30 * 24 * 3600 * 1000L; // milliseconds
+    private static final int MIN_TIMEOUT = 20; // seconds
+    private static final int MIN_CHECK = 10; // seconds
+    private static final int POOR_CHECK_SAT = 3; // satellites
+    private static final int EXPLORE_INTERVAL = 10; // predictions
+
+    private static FixPredictor mInstance = null;
+
+    private Context mContext;
+    private int mCheckSat = -1;
+    private int mPredictions = 0;
+
+    public static class Acquisition {
+        public long time;
+        public int cell = -1;
+        public boolean gps;
+        public long duration; // milliseconds
+        public long firstFix = -1; // milliseconds to the first GPS fix
+        public long fix = -1; // milliseconds to a location meeting the criteria
+        public int visible = 0;
+        public int fixed = 0;
+        public float accuracy = Float.NaN;
+    }
+
+    public static class Prediction {
+        public int timeout; // seconds
+        public int checkTime; // seconds
+        public int checkSat;
+        public int samples;
+    }
+
+    public static synchronized FixPredictor getInstance(Context context) {
+        if (mInstance == null)
+            mInstance = new FixPredictor(context.getApplicationContext());
+        return mInstance;
+    }
+
+    private FixPredictor(Context context) {
+        mContext = context;
+    }
+
+    // Coarse cell of about one kilometer
+    public static int getCell(Location location) {
+        if (location == null)
+            return -1;
+        return DatabaseHelper.getCell(location.getLatitude(), location.getLongitude());
+    }
+
+    public synchronized Prediction predict(Location location) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        Prediction prediction = new Prediction();
+        prediction.timeout = Integer.parseInt(prefs.getString(SettingsFragment.PREF_TIMEOUT, SettingsFragment.DEFAULT_TIMEOUT));
+        prediction.checkTime = Integer.parseInt(prefs.getString(SettingsFragment.PREF_CHECK_TIME, SettingsFragment.DEFAULT_CHECK_TIME));
+        prediction.checkSat = Integer.parseInt(prefs.getString(SettingsFragment.PREF_CHECK_SAT, SettingsFragment.DEFAULT_CHECK_SAT));
+
+        // A fix never takes longer than the time-out, so a shortened time-out can only grow slowly;
+        // now and then acquire with the configured time-out to find out whether a longer wait helps
+        boolean predicting = prefs.getBoolean(SettingsFragment.PREF_FIX_PREDICT, SettingsFragment.DEFAULT_FIX_PREDICT);
+        boolean explore = (++mPredictions % EXPLORE_INTERVAL == 0);
+        if (predicting && explore)
+            Log.i(TAG, "Exploring with timeout=" + prediction.timeout + "s");
+
+        if (predicting && !explore) {
+            // Same cell, else anywhere
+            List<Acquisition> samples = getSamples(getCell(location), prediction.timeout);
+            if (samples.size() < MIN_SAMPLES)
+                samples = getSamples(-1, prediction.timeout);
+
+            if (samples.size() >= MIN_SAMPLES) {
+                List<Long> fixes = new ArrayList<>();
+                List<Long> firstFixes = new ArrayList<>();
+                for (Acquisition sample : samples) {
+                    if (sample.fix >= 0)
+                        fixes.add(sample.fix);
+                    if (sample.firstFix >= 0)
+                        firstFixes.add(sample.firstFix);
+                }
+                float success = fixes.size() / (float) samples.size();
+
+                // Wait half again as long as most successful acquisitions took, never longer than configured
+                if (fixes.size() > 0)
+                    prediction.timeout = clamp(Math.round(percentile(fixes, 90) * 1.5f / 1000), MIN_TIMEOUT, prediction.timeout);
+                else
+                    prediction.timeout = Math.min(MIN_TIMEOUT, prediction.timeout);
+
+                // Check satellites shortly after the first GPS fix usually arrives
+                if (firstFixes.size() > 0)
+                    prediction.checkTime = clamp(Math.round(percentile(firstFixes, 90) * 1.2f / 1000), MIN_CHECK, prediction.checkTime);
+                else
+                    prediction.checkTime = Math.min(MIN_CHECK, prediction.checkTime);
+
+                // Require more satellites where most acquisitions failed
+                if (success < 0.5f)
+                    prediction.checkSat = Math.max(POOR_CHECK_SAT, prediction.checkSat);
+
+                prediction.samples = samples.size();
+                Log.i(TAG, "Predicted samples=" + samples.size() + " success=" + Math.round(success * 100) + "%" +
+                        " timeout=" + prediction.timeout + "s check=" + prediction.checkTime + "s sats=" + prediction.checkSat);
+            }
+        }
+
+        mCheckSat = prediction.checkSat;
+        return prediction;
+    }
+
+    // Satellites required by the last prediction
+    public synchronized int getCheckSat() {
+        if (mCheckSat < 0) {
+            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+            return Integer.parseInt(prefs.getString(SettingsFragment.PREF_CHECK_SAT, SettingsFragment.DEFAULT_CHECK_SAT));
+        }
+        return mCheckSat;
+    }
+
+    public void record(Acquisition acquisition) {
+        Log.i(TAG, "Acquisition gps=" + acquisition.gps + " duration=" + acquisition.duration + "ms" +
+                " first=" + acquisition.firstFix + "ms fix=" + acquisition.fix + "ms" +
+                " sats=" + acquisition.fixed + "/" + acquisition.visible + " accuracy=" + acquisition.accuracy);
+        if (acquisition.gps)
+            DatabaseHelper.getInstance(mContext).insertAcquisition(acquisition);
+    }
+
+    public void purge() {
+        DatabaseHelper.getInstance(mContext).purgeAcquisitions(new Date().getTime() - HISTORY);
+    }
+
+    // Failures which were given less than most of the configured time-out in seconds tell nothing and are skipped
+    private List<Acquisition> getSamples(int cell, int timeout) {
+        List<Acquisition> samples = new ArrayList<>();
+        Cursor cursor = null;
+        try {
+            cursor = DatabaseHelper.getInstance(mContext).getAcquisitions(cell, new Date().getTime() - HISTORY, MAX_SAMPLES);
+            int colDuration = cursor.getColumnIndex("duration");
+            int colFirstFix = cursor.getColumnIndex("first_fix");
+            int colFix = cursor.getColumnIndex("fix");
+            while (cursor.moveToNext()) {
+                Acquisition sample = new Acquisition();
+                sample.duration = cursor.getLong(colDuration);
+                sample.firstFix = (cursor.isNull(colFirstFix) ? -1 : cursor.getLong(colFirstFix));
+                sample.fix = (cursor.isNull(colFix) ? -1 : cursor.getLong(colFix));
+                if (sample.fix >= 0 || sample.duration * 10 >= timeout * 1000L * 9)
+                    samples.add(sample);
+            }
+        } catch (Throwable ex) {
+            Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+        return samples;
+    }
+
+    private static long percentile(List<Long> values, int percentile) {
+        Collections.sort(values);
+        int index = (int) Math.ceil(percentile / 100f * values.size()) - 1;
+        return values.get(Math.max(0, Math.min(values.size() - 1, index)));
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(Math.min(min, max), Math.min(max, value));
+    }
+}
@@ -37,6 +37,7 @@ public class GpsStatusService extends Service {
                 editor.putInt(SettingsFragment.PREF_SATS_FIXED, fixed);
                 editor.putInt(SettingsFragment.PREF_SATS_VISIBLE, visible);
                 editor.apply();
+                LocationSession.getInstance(GpsStatusService.this).onSatellites(fixed, visible);
 
                 // Send state changed intent
                 Intent intent = new Intent(GpsStatusService.this, BackgroundService.class);
@@ -0,0 +1,215 @@
+package eu.faircode.backpacktrack2;
+
+import android.app.Activity;
+import android.database.Cursor;
+import android.database.MergeCursor;
+import android.os.AsyncTask;
+import android.util.Log;
+import android.widget.AbsListView;
+import android.widget.CursorAdapter;
+import android.widget.ListView;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Keeps a newest first history list current by loading pages while scrolling
+// and by splicing in the rows added since the last load
+public class HistoryLoader {
+    private static final String TAG = "BPT2.History";
+
+    public static final int PAGE_SIZE = 100;
+
+    // Bounds the number of small cursors in front of the pages
+    private static final int MAX_SPLICES = 32;
+
+    // Pages being loaded while scrolling, by all loaders
+    private static AtomicInteger mScrolling = new AtomicInteger();
+
+    public interface Source {
+        // Newest first rows before the keyset (to, toId), including the column max_id
+        Cursor getPage(long to, long toId, int limit);
+
+        // Newest first rows with an ID above id, null when not supported
+        Cursor getSince(long id);
+    }
+
+    private Source source;
+    private String time;
+    private List<Cursor> pages = new ArrayList<Cursor>();
+    private List<Cursor> stale = new ArrayList<Cursor>();
+    private int generation = 0;
+    private int rows = 0;
+    private int splices = 0;
+    private boolean loading = false;
+    private boolean exhausted = false;
+
+    private long lastId = 0;
+    private long headTime = Long.MIN_VALUE;
+    private long tailTime = Long.MAX_VALUE;
+    private long tailId = Long.MAX_VALUE;
+
+    public HistoryLoader(Source source) {
+        this(source, "time");
+    }
+
+    // time is the name of the column the pages are ordered by
+    public HistoryLoader(Source source, String time) {
+        this.source = source;
+        this.time = time;
+    }
+
+    public static boolean isScrolling() {
+        return (mScrolling.get() > 0);
+    }
+
+    // Initial cursor for the adapter
+    public synchronized Cursor load() {
+        reload(PAGE_SIZE);
+        return getCursor();
+    }
+
+    public void attach(final Activity activity, ListView lv, final CursorAdapter adapter) {
+        lv.setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+                if (totalItemCount > 0 && firstVisibleItem + visibleItemCount >= totalItemCount - PAGE_SIZE / 4)
+                    more(activity, adapter);
+            }
+        });
+    }
+
+    // Called on the notifying thread
+    public void update(Activity activity, CursorAdapter adapter, DatabaseHelper.Change change, Runnable after) {
+        synchronized (this) {
+            Cursor delta = null;
+            if (change.kinds == DatabaseHelper.CHANGE_ADDED && splices < MAX_SPLICES)
+                delta = source.getSince(lastId);
+
+            if (delta == null)
+                reload(Math.max(PAGE_SIZE, rows));
+            else if (!delta.moveToLast()) {
+                delta.close();
+                return;
+            } else if (delta.getLong(delta.getColumnIndex(time)) < headTime) {
+                // Prepending keeps the order only when nothing older was added
+                delta.close();
+                reload(Math.max(PAGE_SIZE, rows));
+            } else {
+                delta.moveToFirst();
+                lastId = delta.getLong(delta.getColumnIndex("max_id"));
+                headTime = delta.getLong(delta.getColumnIndex(time));
+                pages.add(0, delta);
+                rows += delta.getCount();
+                splices++;
+                Log.i(TAG, "Splicing rows=" + delta.getCount() + " splices=" + splices);
+            }
+        }
+
+        publish(activity, adapter, after);
+    }
+
+    private void more(final Activity activity, final CursorAdapter adapter) {
+        final int gen;
+        final long to;
+        final long toId;
+        synchronized (this) {
+            if (loading || exhausted)
+                return;
+            loading = true;
+            gen = generation;
+            to = tailTime;
+            toId = tailId;
+        }
+
+        new AsyncTask<Object, Object, Cursor>() {
+            @Override
+            protected Cursor doInBackground(Object... objects) {
+                mScrolling.incrementAndGet();
+                try {
+                    Cursor page = source.getPage(to, toId, PAGE_SIZE);
+                    page.getCount(); // execute query
+                    return page;
+                } finally {
+                    mScrolling.decrementAndGet();
+                }
+            }
+
+            @Override
+            protected void onPostExecute(Cursor page) {
+                synchronized (HistoryLoader.this) {
+                    loading = false;
+                    if (gen != generation) {
+                        // Reloaded in the meantime
+                        page.close();
+                        return;
+                    }
+                    append(page, PAGE_SIZE);
+                    Log.i(TAG, "Loaded page rows=" + page.getCount() + " total=" + rows);
+                }
+                publish(activity, adapter, null);
+            }
+        }.execute();
+    }
+
+    private void reload(int limit) {
+        stale.addAll(pages);
+        pages.clear();
+        generation++;
+        rows = 0;
+        splices = 0;
+        exhausted = false;
+        lastId = 0;
+        headTime = Long.MIN_VALUE;
+        tailTime = Long.MAX_VALUE;
+        tailId = Long.MAX_VALUE;
+
+        Cursor page = source.getPage(tailTime, tailId, limit);
+        if (page.moveToFirst()) {
+            lastId = page.getLong(page.getColumnIndex("max_id"));
+            headTime = page.getLong(page.getColumnIndex(time));
+        }
+        append(page, limit);
+    }
+
+    private void append(Cursor page, int limit) {
+        pages.add(page);
+        rows += page.getCount();
+        if (page.getCount() < limit)
+            exhausted = true;
+        else if (page.moveToLast()) {
+            tailTime = page.getLong(page.getColumnIndex(time));
+            tailId = page.getLong(page.getColumnIndex("_id"));
+        }
+    }
+
+    private synchronized Cursor getCursor() {
+        return (pages.size() == 1 ? pages.get(0) : new MergeCursor(pages.toArray(new Cursor[0])));
+    }
+
+    private void publish(Activity activity, final CursorAdapter adapter, final Runnable after) {
+        if (activity == null)
+            return;
+
+        activity.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                // Always show the current pages, the cursors are shared, so swap instead of change
+                List<Cursor> closing;
+                synchronized (HistoryLoader.this) {
+                    adapter.swapCursor(getCursor());
+                    closing = stale;
+                    stale = new ArrayList<Cursor>();
+                }
+                for (Cursor cursor : closing)
+                    cursor.close();
+                if (after != null)
+                    after.run();
+            }
+        });
+    }
+}
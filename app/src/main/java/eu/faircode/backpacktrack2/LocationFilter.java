@@ -0,0 +1,217 @@
+package eu.faircode.backpacktrack2;
+
+import android.location.Location;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Constant velocity Kalman filter on the position, with speed based outlier rejection,
+// one independent position/velocity filter per axis in meters around a reference point,
+// one filter per location type, since passive, trackpoint and periodic fixes are different tracks
+public class LocationFilter {
+    private static final String TAG = "BPT2.Filter";
+
+    private static final double EARTH_RADIUS = 6371000; // meters
+    private static final double ACCELERATION = 2; // meters/second^2, process noise
+    private static final int MAX_REJECTED = 3; // consecutive outliers before restarting
+    private static final double MAX_GAP = 5 * 60; // seconds, the velocity means nothing anymore after that
+    private static final double MAX_OFFSET = 10000; // meters from the reference point before moving it
+
+    public static final int PASSIVE = 0; // next to BackgroundService.LOCATION_*
+
+    private static final Map<Integer, LocationFilter> mInstances = new HashMap<>();
+
+    private final int type;
+    private boolean initialized = false;
+    private long time;
+    private double lat0;
+    private double lon0;
+    private double cos0;
+
+    // Per axis state: position, velocity and covariance
+    private double[] x = new double[2];
+    private double[] y = new double[2];
+    private double[] px = new double[3];
+    private double[] py = new double[3];
+    private int rejected = 0;
+
+    private int statFixes = 0;
+    private int statSmoothed = 0;
+    private int statRejected = 0;
+    private int statAbsorbed = 0;
+    private int statStale = 0;
+
+    private LocationFilter(int type) {
+        this.type = type;
+    }
+
+    public static LocationFilter getInstance(int type) {
+        synchronized (mInstances) {
+            LocationFilter filter = mInstances.get(type);
+            if (filter == null) {
+                filter = new LocationFilter(type);
+                mInstances.put(type, filter);
+            }
+            return filter;
+        }
+    }
+
+    // Returns a smoothed copy of the location or null when rejected as outlier, maxSpeed in meters/second
+    public synchronized Location filter(Location location, float maxSpeed) {
+        statFixes++;
+        if (!location.hasAccuracy())
+            return location;
+
+        if (!initialized) {
+            reset(location);
+            return location;
+        }
+
+        // Out of order
+        double dt = (location.getTime() - time) / 1000d;
+        if (dt <= 0)
+            return location;
+
+        // Restart after a gap
+        if (dt > MAX_GAP) {
+            Log.i(TAG, "Restarting type=" + type + " after dt=" + dt + "s");
+            statStale++;
+            reset(location);
+            return location;
+        }
+
+        // Reject implausible jumps
+        double mx = getX(location);
+        double my = getY(location);
+        double dx = mx - x[0];
+        double dy = my - y[0];
+        double distance = Math.sqrt(dx * dx + dy * dy);
+        double uncertainty = location.getAccuracy() + Math.sqrt((px[0] + py[0]) / 2);
+        if (distance > uncertainty && (distance - uncertainty) / dt > maxSpeed) {
+            statRejected++;
+            if (++rejected < MAX_REJECTED) {
+                Log.i(TAG, "Rejected distance=" + Math.round(distance) + "m dt=" + dt + "s location=" + location);
+                return null;
+            }
+            Log.i(TAG, "Restarting after " + rejected + " rejected locations");
+            reset(location);
+            return location;
+        }
+        rejected = 0;
+
+        double r = location.getAccuracy() * location.getAccuracy();
+        update(x, px, mx, r, dt);
+        update(y, py, my, r, dt);
+        time = location.getTime();
+        statSmoothed++;
+
+        // Keep the projection local
+        if (Math.abs(x[0]) > MAX_OFFSET || Math.abs(y[0]) > MAX_OFFSET)
+            rebase();
+
+        Location smoothed = new Location(location);
+        smoothed.setLatitude(lat0 + Math.toDegrees(y[0] / EARTH_RADIUS));
+        smoothed.setLongitude(lon0 + Math.toDegrees(x[0] / (EARTH_RADIUS * cos0)));
+        return smoothed;
+    }
+
+    // Counts a smoothed location that was not stored
+    public synchronized void absorbed() {
+        statAbsorbed++;
+    }
+
+    public static String getStatistics(boolean reset) {
+        List<LocationFilter> filters;
+        synchronized (mInstances) {
+            List<Integer> types = new ArrayList<>(mInstances.keySet());
+            Collections.sort(types);
+            filters = new ArrayList<>();
+            for (int key : types)
+                filters.add(mInstances.get(key));
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (LocationFilter filter : filters) {
+            if (sb.length() > 0)
+                sb.append("\n");
+            sb.append(filter.getInstanceStatistics(reset));
+        }
+        return (sb.length() == 0 ? "Filter unused" : sb.toString());
+    }
+
+    private synchronized String getInstanceStatistics(boolean reset) {
+        String statistics = "Filter type=" + type + " fixes=" + statFixes + " smoothed=" + statSmoothed +
+                " rejected=" + statRejected + " absorbed=" + statAbsorbed + " stale=" + statStale;
+        if (reset) {
+            statFixes = 0;
+            statSmoothed = 0;
+            statRejected = 0;
+            statAbsorbed = 0;
+            statStale = 0;
+        }
+        return statistics;
+    }
+
+    private void reset(Location location) {
+        initialized = true;
+        time = location.getTime();
+        lat0 = location.getLatitude();
+        lon0 = location.getLongitude();
+        cos0 = Math.max(Math.cos(Math.toRadians(lat0)), 1e-6);
+        rejected = 0;
+
+        double r = location.getAccuracy() * location.getAccuracy();
+        x[0] = 0;
+        x[1] = 0;
+        y[0] = 0;
+        y[1] = 0;
+        px[0] = r;
+        px[1] = 0;
+        px[2] = 100; // unknown velocity, (10 m/s)^2
+        py[0] = r;
+        py[1] = 0;
+        py[2] = 100;
+    }
+
+    // Moves the reference point to the current position, velocities and covariances stay in meters
+    private void rebase() {
+        lat0 = lat0 + Math.toDegrees(y[0] / EARTH_RADIUS);
+        lon0 = lon0 + Math.toDegrees(x[0] / (EARTH_RADIUS * cos0));
+        cos0 = Math.max(Math.cos(Math.toRadians(lat0)), 1e-6);
+        x[0] = 0;
+        y[0] = 0;
+    }
+
+    private double getX(Location location) {
+        return Math.toRadians(location.getLongitude() - lon0) * EARTH_RADIUS * cos0;
+    }
+
+    private double getY(Location location) {
+        return Math.toRadians(location.getLatitude() - lat0) * EARTH_RADIUS;
+    }
+
+    // State s = [position, velocity], covariance p = [pp, pv, vv], measurement z with variance r
+    private static void update(double[] s, double[] p, double z, double r, double dt) {
+        // Predict
+        double q = ACCELERATION * ACCELERATION;
+        double dt2 = dt * dt;
+        s[0] += s[1] * dt;
+        double pp = p[0] + 2 * dt * p[1] + dt2 * p[2] + q * dt2 * dt2 / 4;
+        double pv = p[1] + dt * p[2] + q * dt2 * dt / 2;
+        double vv = p[2] + q * dt2;
+
+        // Correct
+        double k0 = pp / (pp + r);
+        double k1 = pv / (pp + r);
+        double innovation = z - s[0];
+        s[0] += k0 * innovation;
+        s[1] += k1 * innovation;
+        p[0] = (1 - k0) * pp;
+        p[1] = (1 - k0) * pv;
+        p[2] = vv - k1 * pv;
+    }
+}
@@ -0,0 +1,289 @@
+package eu.faircode.backpacktrack2;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.location.Location;
+import android.location.LocationListener;
+import android.location.LocationManager;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import java.util.Date;
+
+// Acquires one location in process: fixes are evaluated in memory on a dedicated thread
+// and only the chosen fix is handed to the service
+public class LocationSession implements LocationListener {
+    private static final String TAG = "BPT2.Session";
+
+    // Wake lock margin beyond the location time-out
+    private static final long WAKELOCK_MARGIN = 10 * 1000L; // milliseconds
+
+    private static LocationSession mInstance = null;
+
+    private Context mContext;
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private PowerManager.WakeLock mWakeLock;
+
+    private boolean mActive = false;
+    private int mGeneration = 0;
+    private int mFixes = 0;
+    private boolean mGps = false;
+    private long mGpsStart;
+    private FixPredictor.Acquisition mAcquisition;
+
+    // Criteria, read once per session
+    private int mLocationType;
+    private int mInaccurate;
+    private int mAccuracy;
+    private boolean mAltitude;
+    private boolean mPressure;
+
+    public static synchronized LocationSession getInstance(Context context) {
+        if (mInstance == null)
+            mInstance = new LocationSession(context.getApplicationContext());
+        return mInstance;
+    }
+
+    private LocationSession(Context context) {
+        mContext = context;
+        mThread = new HandlerThread("LocationSession");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        PowerManager pm = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        mWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
+        mWakeLock.setReferenceCounted(false);
+    }
+
+    public synchronized void start(boolean network, boolean gps, int minTime, int minDist, int timeout) {
+        stop();
+
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        mLocationType = prefs.getInt(SettingsFragment.PREF_LOCATION_TYPE, -1);
+        mInaccurate = Integer.parseInt(prefs.getString(SettingsFragment.PREF_INACCURATE, SettingsFragment.DEFAULT_INACCURATE));
+        if (mLocationType == BackgroundService.LOCATION_WAYPOINT)
+            mAccuracy = Integer.parseInt(prefs.getString(SettingsFragment.PREF_WP_ACCURACY, SettingsFragment.DEFAULT_WP_ACCURACY));
+        else
+            mAccuracy = Integer.parseInt(prefs.getString(SettingsFragment.PREF_TP_ACCURACY, SettingsFragment.DEFAULT_TP_ACCURACY));
+        mAltitude = prefs.getBoolean(SettingsFragment.PREF_ALTITUDE, SettingsFragment.DEFAULT_ALTITUDE);
+        mPressure = prefs.getBoolean(SettingsFragment.PREF_PRESSURE_ENABLED, SettingsFragment.DEFAULT_PRESSURE_ENABLED);
+
+        mGeneration++;
+        mFixes = 0;
+        mActive = true;
+        mGps = gps;
+        mGpsStart = SystemClock.elapsedRealtime();
+        mAcquisition = new FixPredictor.Acquisition();
+        mAcquisition.time = new Date().getTime();
+        mAcquisition.cell = FixPredictor.getCell(TrackingState.getInstance(mContext).getLastLocation());
+        mAcquisition.gps = gps;
+        mWakeLock.acquire(timeout * 1000L + WAKELOCK_MARGIN);
+
+        LocationManager lm = (LocationManager) mContext.getSystemService(Context.LOCATION_SERVICE);
+        if (network)
+            lm.requestLocationUpdates(LocationManager.NETWORK_PROVIDER, minTime * 1000, minDist, this, mThread.getLooper());
+        if (gps)
+            lm.requestLocationUpdates(LocationManager.GPS_PROVIDER, minTime * 1000, minDist, this, mThread.getLooper());
+        Log.i(TAG, "Started session=" + mGeneration + " type=" + mLocationType + " network=" + network + " gps=" + gps);
+    }
+
+    // Continue with the network provider only
+    public synchronized void stopGps() {
+        if (!mActive || !mGps)
+            return;
+        mGps = false;
+        SamplingScheduler.getInstance(mContext).addGpsTime(SystemClock.elapsedRealtime() - mGpsStart);
+
+        // Removing the listener removes both providers
+        LocationManager lm = (LocationManager) mContext.getSystemService(Context.LOCATION_SERVICE);
+        lm.removeUpdates(this);
+        if (lm.isProviderEnabled(LocationManager.NETWORK_PROVIDER))
+            try {
+                SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+                int minTime = Integer.parseInt(prefs.getString(SettingsFragment.PREF_MINTIME, SettingsFragment.DEFAULT_MINTIME));
+                int minDist = Integer.parseInt(prefs.getString(SettingsFragment.PREF_MINDIST, SettingsFragment.DEFAULT_MINDIST));
+                if (prefs.getBoolean(SettingsFragment.PREF_USE_NETWORK, SettingsFragment.DEFAULT_USE_NETWORK))
+                    lm.requestLocationUpdates(LocationManager.NETWORK_PROVIDER, minTime * 1000, minDist, this, mThread.getLooper());
+            } catch (SecurityException ex) {
+                Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+            }
+        Log.i(TAG, "Stopped GPS session=" + mGeneration);
+    }
+
+    public synchronized void stop() {
+        if (!mActive)
+            return;
+        mActive = false;
+        if (mGps)
+            SamplingScheduler.getInstance(mContext).addGpsTime(SystemClock.elapsedRealtime() - mGpsStart);
+
+        // Record outcome, only acquisitions which started GPS are predicted
+        final FixPredictor.Acquisition acquisition = mAcquisition;
+        if (acquisition.gps) {
+            acquisition.duration = SystemClock.elapsedRealtime() - mGpsStart;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    FixPredictor.getInstance(mContext).record(acquisition);
+                }
+            });
+        }
+
+        LocationManager lm = (LocationManager) mContext.getSystemService(Context.LOCATION_SERVICE);
+        lm.removeUpdates(this);
+        if (mWakeLock.isHeld())
+            mWakeLock.release();
+        Log.i(TAG, "Stopped session=" + mGeneration + " fixes=" + mFixes);
+    }
+
+    public synchronized void onSatellites(int fixed, int visible) {
+        if (mActive) {
+            mAcquisition.fixed = Math.max(mAcquisition.fixed, fixed);
+            mAcquisition.visible = Math.max(mAcquisition.visible, visible);
+        }
+    }
+
+    public synchronized boolean isActive() {
+        return mActive;
+    }
+
+    public synchronized boolean isCurrent(int generation) {
+        return (mGeneration == generation);
+    }
+
+    @Override
+    public void onLocationChanged(Location location) {
+        // Only the session is updated under the monitor, which isActive shares with the main thread
+        int generation;
+        long elapsed;
+        int inaccurate;
+        int accuracy;
+        boolean altitude;
+        boolean pressure;
+        synchronized (this) {
+            if (!mActive) {
+                Log.i(TAG, "Not acquiring anymore");
+                return;
+            }
+            mFixes++;
+            generation = mGeneration;
+            elapsed = SystemClock.elapsedRealtime() - mGpsStart;
+            if (location != null && LocationManager.GPS_PROVIDER.equals(location.getProvider()) && mAcquisition.firstFix < 0)
+                mAcquisition.firstFix = elapsed;
+            if (location != null && location.hasAccuracy() &&
+                    (Float.isNaN(mAcquisition.accuracy) || location.getAccuracy() < mAcquisition.accuracy))
+                mAcquisition.accuracy = location.getAccuracy();
+            inaccurate = mInaccurate;
+            accuracy = mAccuracy;
+            altitude = mAltitude;
+            pressure = mPressure;
+        }
+
+        if (!evaluate(location, generation, inaccurate, accuracy, altitude, pressure))
+            return;
+
+        synchronized (this) {
+            if (!mActive || mGeneration != generation) {
+                Log.i(TAG, "Session ended, location=" + location);
+                return;
+            }
+            mAcquisition.fix = elapsed;
+            stop();
+        }
+
+        // Hand off the chosen location
+        Intent intent = new Intent(mContext, BackgroundService.class);
+        intent.setAction(BackgroundService.ACTION_LOCATION_ACQUIRED);
+        intent.putExtra(BackgroundService.EXTRA_LOCATION, location);
+        intent.putExtra(BackgroundService.EXTRA_SESSION, generation);
+        mContext.startService(intent);
+    }
+
+    // Returns true when the location meets all criteria, called on the session thread without the monitor
+    private boolean evaluate(Location location, int generation, int inaccurate, int accuracy, boolean altitude, boolean pressure) {
+        Log.i(TAG, "Update location=" + location + " type=" + mLocationType + " session=" + generation);
+        if (location == null || (location.getLatitude() == 0.0 && location.getLongitude() == 0.0))
+            return false;
+
+        // Filter inaccurate location
+        if (!location.hasAccuracy() || location.getAccuracy() > inaccurate) {
+            Log.i(TAG, "Filtering inaccurate location=" + location);
+            return false;
+        }
+
+        // Filter old locations
+        TrackingState state = TrackingState.getInstance(mContext);
+        Location lastLocation = state.getLastLocation();
+        if (lastLocation != null && location.getTime() <= lastLocation.getTime()) {
+            Log.i(TAG, "Location is older than last location, location=" + location);
+            return false;
+        }
+
+        // Correct altitude
+        BackgroundService.correctAltitude(location, mContext);
+
+        // Persist better location, only while the session is still current
+        if (isBetterLocation(state.getBestLocation(), location, altitude)) {
+            boolean better = false;
+            synchronized (this) {
+                if (mActive && mGeneration == generation) {
+                    Log.i(TAG, "Better location=" + location);
+                    state.setBestLocation(location);
+                    SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+                    prefs.edit().putInt(SettingsFragment.PREF_STATE, BackgroundService.STATE_ACQUIRED).apply();
+                    better = true;
+                }
+            }
+            if (better)
+                BackgroundService.showStateNotification(mContext);
+        }
+
+        // Check altitude
+        if (!location.hasAltitude() && altitude) {
+            Log.i(TAG, "No altitude, but preferred, location=" + location);
+            return false;
+        }
+
+        // Check accuracy
+        if (!location.hasAccuracy() || location.getAccuracy() > accuracy) {
+            Log.i(TAG, "Accuracy not reached, location=" + location);
+            return false;
+        }
+
+        // Check pressure
+        if (pressure) {
+            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+            if (prefs.getFloat(SettingsFragment.PREF_PRESSURE_VALUE, -1) < 0) {
+                Log.i(TAG, "Pressure not available yet");
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static boolean isBetterLocation(Location prev, Location current, boolean altitude) {
+        return (prev == null ||
+                ((!altitude || !prev.hasAltitude() || current.hasAltitude()) &&
+                        (current.hasAccuracy() ? current.getAccuracy() : Float.MAX_VALUE) <
+                                (prev.hasAccuracy() ? prev.getAccuracy() : Float.MAX_VALUE)));
+    }
+
+    @Override
+    public void onStatusChanged(String provider, int status, Bundle extras) {
+    }
+
+    @Override
+    public void onProviderEnabled(String provider) {
+    }
+
+    @Override
+    public void onProviderDisabled(String provider) {
+    }
+}
@@ -16,7 +16,7 @@ public class MyPackageChangedReceiver extends BroadcastReceiver {
         new Thread(new Runnable() {
             @Override
             public void run() {
-                synchronized (context.getApplicationContext()) {
+                synchronized (SettingsFragment.mLifecycleLock) {
                     SettingsFragment.firstRun(context);
                 }
             }
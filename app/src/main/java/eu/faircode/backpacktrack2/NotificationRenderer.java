@@ -0,0 +1,104 @@
+package eu.faircode.backpacktrack2;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// Posts a notification only when its visible content changed and not more often than once per interval,
+// the latest content within the interval is posted when the interval ends
+public class NotificationRenderer {
+    private static final long MIN_INTERVAL = 1000; // milliseconds
+
+    // Decoded large icons by resource ID
+    private static final Map<Integer, Bitmap> mBitmaps = new HashMap<>();
+
+    // Content key, last post time and deferred notification by notification ID
+    private static final Map<Integer, String> mKeys = new HashMap<>();
+    private static final Map<Integer, Long> mPosted = new HashMap<>();
+    private static final Map<Integer, Notification> mPending = new HashMap<>();
+
+    private static final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private static int mRendered = 0;
+    private static int mUnchanged = 0;
+    private static int mDeferred = 0;
+
+    public static synchronized Bitmap getLargeIcon(int resId, Context context) {
+        Bitmap bitmap = mBitmaps.get(resId);
+        if (bitmap == null) {
+            Bitmap decoded = BitmapFactory.decodeResource(context.getResources(), resId);
+            bitmap = decoded.copy(Bitmap.Config.ARGB_8888, true);
+            decoded.recycle();
+            mBitmaps.put(resId, bitmap);
+        }
+        return bitmap;
+    }
+
+    // Key describes everything visible, returns false when it equals the last rendered key
+    public static synchronized boolean isChanged(int id, String key) {
+        if (key.equals(mKeys.get(id))) {
+            mUnchanged++;
+            return false;
+        }
+        return true;
+    }
+
+    public static synchronized void notify(final int id, String key, Notification notification, final Context context) {
+        mKeys.put(id, key);
+
+        long now = SystemClock.uptimeMillis();
+        Long posted = mPosted.get(id);
+        if (posted == null || now - posted >= MIN_INTERVAL) {
+            mPending.remove(id);
+            post(id, notification, now, context);
+            return;
+        }
+
+        // Replace the deferred notification by the latest
+        mDeferred++;
+        if (mPending.put(id, notification) == null)
+            mHandler.postAtTime(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (NotificationRenderer.class) {
+                        Notification pending = mPending.remove(id);
+                        if (pending != null)
+                            post(id, pending, SystemClock.uptimeMillis(), context);
+                    }
+                }
+            }, posted + MIN_INTERVAL);
+    }
+
+    public static synchronized void cancel(int id, Context context) {
+        mKeys.remove(id);
+        mPosted.remove(id);
+        mPending.remove(id);
+        NotificationManager nm = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+        nm.cancel(id);
+    }
+
+    private static void post(int id, Notification notification, long now, Context context) {
+        mRendered++;
+        mPosted.put(id, now);
+        NotificationManager nm = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+        nm.notify(id, notification);
+    }
+
+    public static synchronized String getStatistics(boolean reset) {
+        String statistics = "Notifications rendered=" + mRendered + " unchanged=" + mUnchanged + " deferred=" + mDeferred;
+        if (reset) {
+            mRendered = 0;
+            mUnchanged = 0;
+            mDeferred = 0;
+        }
+        return statistics;
+    }
+}
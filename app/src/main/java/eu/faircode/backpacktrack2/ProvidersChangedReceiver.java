@@ -14,7 +14,7 @@ public class ProvidersChangedReceiver extends BroadcastReceiver {
         new Thread(new Runnable() {
             @Override
             public void run() {
-                synchronized (context.getApplicationContext()) {
+                synchronized (SettingsFragment.mLifecycleLock) {
                     BackgroundService.stopTracking(context);
                     BackgroundService.startTracking(context);
                 }
@@ -4,7 +4,6 @@ import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
-import android.database.Cursor;
 import android.location.LocationManager;
 import android.os.Build;
 import android.util.Log;
@@ -33,7 +32,7 @@ public class Proximity {
             } else
                 lm.addProximityAlert(latitude, longitude, radius, -1, pi);
 
-            new DatabaseHelper(context).setProximity(id, radius).close();
+            DatabaseHelper.getInstance(context).setProximity(id, radius);
         }
     }
 
@@ -42,37 +41,19 @@ public class Proximity {
                 context.checkSelfPermission(android.Manifest.permission.ACCESS_FINE_LOCATION) == PackageManager.PERMISSION_GRANTED) {
             Log.i(TAG, "Restoring proximity alerts");
             LocationManager lm = (LocationManager) context.getSystemService(Context.LOCATION_SERVICE);
-            DatabaseHelper db = null;
-            try {
-                db = new DatabaseHelper(context);
-                Cursor cursor = null;
-                try {
-                    cursor = db.getLocations(0, Long.MAX_VALUE, false, true, true, 0);
-                    int colID = cursor.getColumnIndex("ID");
-                    int colLatitude = cursor.getColumnIndex("latitude");
-                    int colLongitude = cursor.getColumnIndex("longitude");
-                    int colProximity = cursor.getColumnIndex("proximity");
-                    while (cursor.moveToNext()) {
-                        long id = cursor.getLong(colID);
-                        double latitude = cursor.getDouble(colLatitude);
-                        double longitude = cursor.getDouble(colLongitude);
-                        long radius = cursor.getLong(colProximity);
-                        if (radius > 0) {
-                            Intent proximity = new Intent(context, BackgroundService.class);
-                            proximity.setAction(BackgroundService.ACTION_PROXIMITY);
-                            proximity.putExtra(BackgroundService.EXTRA_WAYPOINT, id);
-                            PendingIntent pi = PendingIntent.getService(context, 100 + (int) id, proximity, PendingIntent.FLAG_UPDATE_CURRENT);
-                            Log.i(TAG, "Restoring proximity alert waypoint=" + id);
-                            lm.addProximityAlert(latitude, longitude, radius, -1, pi);
-                        }
-                    }
-                } finally {
-                    if (cursor != null)
-                        cursor.close();
+            TrackSlice slice = DatabaseHelper.getInstance(context).getTrackSlice(
+                    0, Long.MAX_VALUE, false, true, TrackSlice.ID | TrackSlice.POSITION | TrackSlice.PROXIMITY);
+            for (int i = 0; i < slice.count; i++) {
+                long id = slice.id[i];
+                long radius = (slice.isNull(i, TrackSlice.NULL_PROXIMITY) ? 0 : slice.proximity[i]);
+                if (radius > 0) {
+                    Intent proximity = new Intent(context, BackgroundService.class);
+                    proximity.setAction(BackgroundService.ACTION_PROXIMITY);
+                    proximity.putExtra(BackgroundService.EXTRA_WAYPOINT, id);
+                    PendingIntent pi = PendingIntent.getService(context, 100 + (int) id, proximity, PendingIntent.FLAG_UPDATE_CURRENT);
+                    Log.i(TAG, "Restoring proximity alert waypoint=" + id);
+                    lm.addProximityAlert(slice.latitude[i], slice.longitude[i], radius, -1, pi);
                 }
-            } finally {
-                if (db != null)
-                    db.close();
             }
         }
     }
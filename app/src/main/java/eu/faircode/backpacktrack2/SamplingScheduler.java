@@ -0,0 +1,147 @@
+package eu.faircode.backpacktrack2;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.location.Location;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import com.google.android.gms.location.DetectedActivity;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+// Chooses the time to the next periodic fix, so that a fix is acquired about every sampling distance:
+// the interval follows from the measured speed or the nominal speed of the activity
+public class SamplingScheduler {
+    private static final String TAG = "BPT2.Sampling";
+
+    private static final int MAX_DECISIONS = 20;
+
+    private static SamplingScheduler mInstance = null;
+
+    private Context mContext;
+
+    // Last fix
+    private Location mLast = null;
+    private float mSpeed = -1; // meters/second
+
+    // GPS on-time against distance
+    private long mGpsTime = 0; // milliseconds
+    private double mDistance = 0; // meters
+
+    private List<String> mDecisions = new ArrayList<>();
+
+    public static synchronized SamplingScheduler getInstance(Context context) {
+        if (mInstance == null)
+            mInstance = new SamplingScheduler(context.getApplicationContext());
+        return mInstance;
+    }
+
+    private SamplingScheduler(Context context) {
+        mContext = context;
+        mLast = TrackingState.getInstance(context).getLastLocation();
+    }
+
+    // Nominal speed in meters/second or -1 if not known
+    private static float getNominalSpeed(int activity) {
+        switch (activity) {
+            case DetectedActivity.STILL:
+                return 0;
+            case DetectedActivity.ON_FOOT:
+            case DetectedActivity.WALKING:
+                return 1.4f;
+            case DetectedActivity.RUNNING:
+                return 3f;
+            case DetectedActivity.ON_BICYCLE:
+                return 5f;
+            case DetectedActivity.IN_VEHICLE:
+                return 15f;
+            default:
+                return -1;
+        }
+    }
+
+    // Returns the interval to the next fix in seconds
+    public synchronized int getInterval() {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        int interval = Integer.parseInt(prefs.getString(SettingsFragment.PREF_INTERVAL, SettingsFragment.DEFAULT_INTERVAL));
+        int distance = Integer.parseInt(prefs.getString(SettingsFragment.PREF_SAMPLING_DISTANCE, SettingsFragment.DEFAULT_SAMPLING_DISTANCE));
+        int min = Integer.parseInt(prefs.getString(SettingsFragment.PREF_SAMPLING_MIN, SettingsFragment.DEFAULT_SAMPLING_MIN));
+        int max = Integer.parseInt(prefs.getString(SettingsFragment.PREF_SAMPLING_MAX, SettingsFragment.DEFAULT_SAMPLING_MAX));
+        boolean recognition = prefs.getBoolean(SettingsFragment.PREF_RECOGNITION_ENABLED, SettingsFragment.DEFAULT_RECOGNITION_ENABLED);
+        int activity = (recognition ? prefs.getInt(SettingsFragment.PREF_LAST_ACTIVITY, DetectedActivity.UNKNOWN) : DetectedActivity.UNKNOWN);
+
+        // Measured speed is stale after the maximum interval
+        float measured = mSpeed;
+        if (mLast == null || new Date().getTime() - mLast.getTime() > 2 * max * 1000L)
+            measured = -1;
+        float nominal = getNominalSpeed(activity);
+        float speed = Math.max(measured, nominal);
+
+        int result;
+        String reason;
+        if (speed < 0) {
+            result = interval;
+            reason = "fixed";
+        } else if (speed == 0) {
+            result = max;
+            reason = "still";
+        } else {
+            result = Math.round(distance / speed);
+            reason = (measured > nominal ? "measured" : "activity");
+        }
+        result = Math.max(min, Math.min(max, result));
+
+        DateFormat df = SimpleDateFormat.getTimeInstance();
+        String decision = df.format(new Date()) +
+                " " + BackgroundService.getActivityName(activity, mContext) +
+                String.format(Locale.getDefault(), " %.1f/%.1f m/s", measured, nominal) +
+                " " + reason + " " + result + "s";
+        mDecisions.add(decision);
+        while (mDecisions.size() > MAX_DECISIONS)
+            mDecisions.remove(0);
+        Log.i(TAG, "Decision " + decision);
+
+        return result;
+    }
+
+    // Called for every stored location
+    public synchronized void onLocation(Location location) {
+        if (mLast != null && location.getTime() > mLast.getTime()) {
+            float distance = mLast.distanceTo(location);
+            mDistance += distance;
+            if (location.hasSpeed())
+                mSpeed = location.getSpeed();
+            else
+                mSpeed = distance * 1000f / (location.getTime() - mLast.getTime());
+        }
+        mLast = new Location(location);
+    }
+
+    // Called for every acquisition which used GPS
+    public synchronized void addGpsTime(long ms) {
+        mGpsTime += ms;
+    }
+
+    public synchronized String getDecisions() {
+        StringBuilder sb = new StringBuilder();
+        for (String decision : mDecisions)
+            sb.append(decision).append("\n");
+        return sb.toString();
+    }
+
+    public synchronized String getStatistics(boolean reset) {
+        String statistics = "Sampling GPS=" + mGpsTime / 1000 + "s distance=" + Math.round(mDistance) + "m" +
+                (mDistance > 0 ? " GPS/km=" + Math.round(mGpsTime / mDistance) + "s" : "");
+        if (reset) {
+            mGpsTime = 0;
+            mDistance = 0;
+        }
+        return statistics;
+    }
+}
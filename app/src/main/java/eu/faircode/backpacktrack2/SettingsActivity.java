@@ -100,7 +100,7 @@ public class SettingsActivity extends Activity {
         new Thread(new Runnable() {
             @Override
             public void run() {
-                synchronized (getApplicationContext()) {
+                synchronized (SettingsFragment.mLifecycleLock) {
                     SettingsFragment.firstRun(SettingsActivity.this);
                 }
             }
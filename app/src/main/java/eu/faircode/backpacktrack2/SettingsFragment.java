@@ -110,16 +110,26 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
     public static final String PREF_USE_NETWORK = "pref_use_network";
     public static final String PREF_USE_GPS = "pref_use_gps";
     public static final String PREF_INTERVAL = "pref_interval";
+    public static final String PREF_SAMPLING_ADAPTIVE = "pref_sampling_adaptive";
+    public static final String PREF_SAMPLING_DISTANCE = "pref_sampling_distance";
+    public static final String PREF_SAMPLING_MIN = "pref_sampling_min";
+    public static final String PREF_SAMPLING_MAX = "pref_sampling_max";
     public static final String PREF_ALTITUDE = "pref_altitude";
     public static final String PREF_TP_ACCURACY = "pref_accuracy";
     public static final String PREF_WP_ACCURACY = "pref_wp_accuracy";
     public static final String PREF_TIMEOUT = "pref_timeout";
     public static final String PREF_CHECK_TIME = "pref_check_time";
     public static final String PREF_CHECK_SAT = "pref_check_sat";
+    public static final String PREF_FIX_PREDICT = "pref_fix_predict";
     public static final String PREF_INACCURATE = "pref_inaccurate";
     public static final String PREF_NEARBY = "pref_nearby";
     public static final String PREF_MINTIME = "pref_mintime";
     public static final String PREF_MINDIST = "pref_mindist";
+    public static final String PREF_FILTER_TRACKPOINT = "pref_filter_trackpoint";
+    public static final String PREF_FILTER_PERIODIC = "pref_filter_periodic";
+    public static final String PREF_FILTER_SPEED = "pref_filter_speed";
+    public static final String PREF_SIMPLIFY_TOLERANCE = "pref_simplify_tolerance";
+    public static final String PREF_ARCHIVE_MONTHS = "pref_archive_months";
 
     public static final String PREF_PASSIVE_ENABLED = "pref_passive_enabled";
     public static final String PREF_PASSIVE_BEARING = "pref_passive_bearing";
@@ -128,6 +138,7 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
     public static final String PREF_PASSIVE_NEARBY = "pref_passive_nearby";
     public static final String PREF_PASSIVE_MINTIME = "pref_passive_mintime";
     public static final String PREF_PASSIVE_MINDIST = "pref_passive_mindist";
+    public static final String PREF_PASSIVE_FILTER = "pref_passive_filter";
 
     public static final String PREF_CORRECTION_ENABLED = "pref_correction_enabled";
     public static final String PREF_ALTITUDE_WAYPOINT = "pref_altitude_waypoint";
@@ -164,6 +175,7 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
 
     public static final String PREF_STEP_DELTA = "pref_step_delta";
     public static final String PREF_STEP_SIZE = "pref_step_size";
+    public static final String PREF_STEP_FLUSH = "pref_step_flush";
     public static final String PREF_WEIGHT = "pref_weight";
 
     public static final String PREF_WEATHER_ENABLED = "pref_weather_enabled";
@@ -204,6 +216,7 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
     public static final String PREF_CONNECTIVITY_CHECK_INTERVAL = "pref_connectivity_check_interval";
     public static final String PREF_DEBUG = "pref_debug";
     public static final String PREF_LOGCAT = "pref_logcat";
+    public static final String PREF_METRICS = "pref_metrics";
 
     public static final String PREF_VERSION = "pref_version";
 
@@ -221,16 +234,26 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
     public static final boolean DEFAULT_USE_NETWORK = true;
     public static final boolean DEFAULT_USE_GPS = true;
     public static final String DEFAULT_INTERVAL = "180"; // seconds
+    public static final boolean DEFAULT_SAMPLING_ADAPTIVE = true;
+    public static final String DEFAULT_SAMPLING_DISTANCE = "250"; // meters
+    public static final String DEFAULT_SAMPLING_MIN = "30"; // seconds
+    public static final String DEFAULT_SAMPLING_MAX = "900"; // seconds
     public static final boolean DEFAULT_ALTITUDE = true;
     public static final String DEFAULT_TP_ACCURACY = "20"; // meters
     public static final String DEFAULT_WP_ACCURACY = "10"; // meters
     public static final String DEFAULT_TIMEOUT = "60"; // seconds
     public static final String DEFAULT_CHECK_TIME = "30"; // seconds
     public static final String DEFAULT_CHECK_SAT = "1"; // count
+    public static final boolean DEFAULT_FIX_PREDICT = true;
     public static final String DEFAULT_INACCURATE = "100"; // meters
     public static final String DEFAULT_NEARBY = "100"; // meters
     public static final String DEFAULT_MINTIME = "1"; // seconds
     public static final String DEFAULT_MINDIST = "0"; // meters
+    public static final boolean DEFAULT_FILTER_TRACKPOINT = false;
+    public static final boolean DEFAULT_FILTER_PERIODIC = true;
+    public static final String DEFAULT_FILTER_SPEED = "70"; // meters/second
+    public static final String DEFAULT_SIMPLIFY_TOLERANCE = "5"; // meters
+    public static final String DEFAULT_ARCHIVE_MONTHS = "3"; // months
 
     public static final boolean DEFAULT_PASSIVE_ENABLED = true;
     public static final String DEFAULT_PASSIVE_BEARING = "30"; // degrees
@@ -239,6 +262,7 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
     public static final String DEFAULT_PASSIVE_NEARBY = "20"; // meters
     public static final String DEFAULT_PASSIVE_MINTIME = "1"; // seconds
     public static final String DEFAULT_PASSIVE_MINDIST = "0"; // meters
+    public static final boolean DEFAULT_PASSIVE_FILTER = true;
 
     public static final boolean DEFAULT_CORRECTION_ENABLED = true;
     public static final boolean DEFAULT_ALTITUDE_WAYPOINT = true;
@@ -273,6 +297,7 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
 
     public static final String DEFAULT_STEP_DELTA = "10"; // steps
     public static final String DEFAULT_STEP_SIZE = "75"; // centimeters
+    public static final String DEFAULT_STEP_FLUSH = "300"; // seconds
     public static final String DEFAULT_WEIGHT = "75"; // kilograms
 
     public static final boolean DEFAULT_WEATHER_ENABLED = true;
@@ -339,6 +364,7 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
     public static final String PREF_LAST_ACTIVITY = "pref_last_activity";
     public static final String PREF_LAST_CONFIDENCE = "pref_last_confidence";
     public static final String PREF_LAST_ACTIVITY_TIME = "pref_last_activity_time";
+    public static final String PREF_SAMPLING_NEXT = "pref_sampling_next";
     public static final String PREF_LAST_LOCATION = "pref_last_location";
     public static final String PREF_LAST_STATIONARY = "pref_last_stationary";
     public static final String PREF_LAST_STATIONARY_AVG = "pref_last_stationary_avg";
@@ -363,6 +389,13 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
     public static final String PREF_LAST_FROM = "pref_last_from";
     public static final String PREF_LAST_TO = "pref_last_to";
 
+    public static final String PREF_MAINTENANCE_TIME = "pref_maintenance_time";
+    public static final String PREF_MAINTENANCE_DURATION = "pref_maintenance_duration";
+    public static final String PREF_PURGE_TIME = "pref_purge_time";
+    public static final String PREF_PURGE_ROWS = "pref_purge_rows";
+    public static final String PREF_PURGE_DURATION = "pref_purge_duration";
+    public static final String PREF_PURGE_TOTAL = "pref_purge_total";
+
     public static final String PREF_LIFELINE_ID = "pref_lifeline_id";
     public static final String PREF_LIFELINE_LAST = "pref_lifeline_last";
 
@@ -379,6 +412,9 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
 
     private static final int ACTIVITY_PLAY_SERVICES = 2;
 
+    // Serializes first run and tracking restarts, independent of database writes
+    public static final Object mLifecycleLock = new Object();
+
     private boolean running = false;
     private DatabaseHelper db = null;
     private AtomicBoolean elevationBusy = new AtomicBoolean();
@@ -405,7 +441,7 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
 
         addPreferencesFromResource(R.xml.preferences);
 
-        db = new DatabaseHelper(getActivity());
+        db = DatabaseHelper.getInstance(getActivity());
 
         // Shared geo point
         Uri data = getActivity().getIntent().getData();
@@ -464,9 +500,6 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
         for (AlertDialog dialog : dialogs)
             if (dialog.isShowing())
                 dialog.dismiss();
-
-        if (db != null)
-            db.close();
     }
 
     @Override
@@ -494,7 +527,7 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
             new Thread(new Runnable() {
                 @Override
                 public void run() {
-                    synchronized (getActivity().getApplicationContext()) {
+                    synchronized (mLifecycleLock) {
                         firstRun(getActivity());
                     }
                 }
@@ -514,6 +547,7 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
         Preference pref_check = findPreference(PREF_SETTINGS);
         Preference pref_version = findPreference(PREF_VERSION);
         Preference pref_logcat = findPreference(PREF_LOGCAT);
+        Preference pref_metrics = findPreference(PREF_METRICS);
 
         Preference pref_enabled = findPreference(PREF_ENABLED);
         Preference pref_pressure_enabled = findPreference(PREF_PRESSURE_ENABLED);
@@ -521,6 +555,7 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
         Preference pref_recognize_steps = findPreference(PREF_RECOGNITION_STEPS);
         Preference pref_step_update = findPreference(PREF_STEP_DELTA);
         Preference pref_step_size = findPreference(PREF_STEP_SIZE);
+        Preference pref_step_flush = findPreference(PREF_STEP_FLUSH);
         Preference pref_weight = findPreference(PREF_WEIGHT);
         Preference pref_wakeup = findPreference(PREF_WEATHER_WAKEUP);
         Preference pref_gcm = findPreference(PREF_WEATHER_GCM);
@@ -535,6 +570,9 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
         updateTitle(prefs, PREF_UPLOAD_GPX);
 
         updateTitle(prefs, PREF_INTERVAL);
+        updateTitle(prefs, PREF_SAMPLING_DISTANCE);
+        updateTitle(prefs, PREF_SAMPLING_MIN);
+        updateTitle(prefs, PREF_SAMPLING_MAX);
         updateTitle(prefs, PREF_ALTITUDE);
         updateTitle(prefs, PREF_TP_ACCURACY);
         updateTitle(prefs, PREF_WP_ACCURACY);
@@ -545,6 +583,9 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
         updateTitle(prefs, PREF_NEARBY);
         updateTitle(prefs, PREF_MINTIME);
         updateTitle(prefs, PREF_MINDIST);
+        updateTitle(prefs, PREF_FILTER_SPEED);
+        updateTitle(prefs, PREF_SIMPLIFY_TOLERANCE);
+        updateTitle(prefs, PREF_ARCHIVE_MONTHS);
 
         updateTitle(prefs, PREF_PASSIVE_BEARING);
         updateTitle(prefs, PREF_PASSIVE_ALTITUDE);
@@ -579,6 +620,7 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
 
         updateTitle(prefs, PREF_STEP_DELTA);
         updateTitle(prefs, PREF_STEP_SIZE);
+        updateTitle(prefs, PREF_STEP_FLUSH);
         updateTitle(prefs, PREF_WEIGHT);
 
         updateTitle(prefs, PREF_BLOGURL);
@@ -719,7 +761,7 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
 
         final float ref_pressure = prefs.getFloat(SettingsFragment.PREF_PRESSURE_REF_VALUE, 0);
         final long ref_time = prefs.getLong(SettingsFragment.PREF_PRESSURE_REF_TIME, 0);
-        final Location lastLocation = BackgroundService.LocationDeserializer.deserialize(prefs.getString(SettingsFragment.PREF_LAST_LOCATION, null));
+        final Location lastLocation = TrackingState.getInstance(getActivity()).getLastLocation();
 
         // Handle pressure reading test
         pref_pressure_test.setEnabled(ref_pressure != 0 && ref_time != 0 && lastLocation != null);
@@ -767,6 +809,7 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
         pref_step_history.setEnabled(hasStepCounter);
         pref_step_size.setEnabled(hasStepCounter);
         pref_step_update.setEnabled(hasStepCounter);
+        pref_step_flush.setEnabled(hasStepCounter);
         pref_weight.setEnabled(hasStepCounter);
 
         // Weather wakeups
@@ -828,6 +871,42 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
                 return true;
             }
         });
+
+        // Handle action metrics
+        pref_metrics.setOnPreferenceClickListener(new Preference.OnPreferenceClickListener() {
+            @Override
+            public boolean onPreferenceClick(Preference preference) {
+                metrics();
+                return true;
+            }
+        });
+    }
+
+    private void metrics() {
+        AlertDialog.Builder alertDialogBuilder = new AlertDialog.Builder(getActivity());
+        alertDialogBuilder.setTitle(R.string.title_metrics);
+        alertDialogBuilder.setMessage(ActionMetrics.getInstance(getActivity()).getSummary() + "\n" + NotificationRenderer.getStatistics(false) + "\n" + LocationFilter.getStatistics(false) +
+                "\n" + TrackSimplifier.getInstance().getStatistics(false) +
+                "\n" + SamplingScheduler.getInstance(getActivity()).getStatistics(false) +
+                "\n\n" + SamplingScheduler.getInstance(getActivity()).getDecisions());
+        alertDialogBuilder
+                .setPositiveButton(R.string.title_metrics_send, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        Util.sendMetrics(getActivity());
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null);
+        if (BuildConfig.DEBUG)
+            alertDialogBuilder.setNeutralButton(R.string.title_benchmark, new DialogInterface.OnClickListener() {
+                @Override
+                public void onClick(DialogInterface dialog, int which) {
+                    Intent intent = new Intent(getActivity(), BackgroundService.class);
+                    intent.setAction(BackgroundService.ACTION_BENCHMARK);
+                    getActivity().startService(intent);
+                }
+            });
+        alertDialogBuilder.create().show();
     }
 
     @Override
@@ -890,6 +969,7 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
         if (PREF_PRIVACY.equals(key) ||
                 PREF_ENABLED.equals(key) ||
                 PREF_INTERVAL.equals(key) ||
+                PREF_SAMPLING_ADAPTIVE.equals(key) ||
                 PREF_TIMEOUT.equals(key) ||
                 PREF_CHECK_TIME.equals(key) ||
                 PREF_MINTIME.equals(key) ||
@@ -905,7 +985,7 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
             new Thread(new Runnable() {
                 @Override
                 public void run() {
-                    synchronized (getActivity().getApplicationContext()) {
+                    synchronized (mLifecycleLock) {
                         BackgroundService.stopTracking(getActivity());
                         BackgroundService.startTracking(getActivity());
                     }
@@ -914,19 +994,9 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
 
         if (PREF_AUTO_ENABLED.equals(key))
             if (prefs.getBoolean(key, DEFAULT_AUTO_ENABLED)) {
-                SharedPreferences.Editor editor = prefs.edit();
-                editor.remove(SettingsFragment.PREF_LAST_STATIONARY_AVG);
-                editor.remove(SettingsFragment.PREF_LAST_STATIONARY_LAT);
-                editor.remove(SettingsFragment.PREF_LAST_STATIONARY_LON);
-                editor.remove(SettingsFragment.PREF_LAST_STATIONARY_ALT);
-
-                Location lastLocation = BackgroundService.LocationDeserializer.deserialize(prefs.getString(SettingsFragment.PREF_LAST_LOCATION, null));
-                if (lastLocation == null)
-                    editor.remove(SettingsFragment.PREF_LAST_STATIONARY);
-                else
-                    editor.putString(SettingsFragment.PREF_LAST_STATIONARY, BackgroundService.LocationSerializer.serialize(lastLocation));
-
-                editor.apply();
+                TrackingState state = TrackingState.getInstance(getActivity());
+                state.clearStationaryAverage();
+                state.setLastStationary(state.getLastLocation());
             }
 
         if (PREF_PRIVACY.equals(key) ||
@@ -938,7 +1008,7 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
             new Thread(new Runnable() {
                 @Override
                 public void run() {
-                    synchronized (getActivity().getApplicationContext()) {
+                    synchronized (mLifecycleLock) {
                         BackgroundService.stopWeatherUpdates(getActivity());
                         BackgroundService.startWeatherUpdates(getActivity());
                     }
@@ -992,7 +1062,7 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
 
         // Initialize step counting
         long time = new Date().getTime();
-        new DatabaseHelper(context).updateSteps(time, 0).close();
+        DatabaseHelper.getInstance(context).updateSteps(time, 0);
 
         // Update widgets
         StepCountWidget.updateWidgets(context);
@@ -1124,35 +1194,27 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
         });
 
         // Fill list
-        Cursor cursor = db.getLocations(0, Long.MAX_VALUE, false, true, false, 0);
-        final WaypointAdapter adapter = new WaypointAdapter(getActivity(), cursor, listDelete, db, getFragmentManager());
-        lv.setAdapter(adapter);
-
-        // Handle updates
-        final DatabaseHelper.LocationChangedListener listener = new DatabaseHelper.LocationChangedListener() {
+        final HistoryLoader loader = new HistoryLoader(new HistoryLoader.Source() {
             @Override
-            public void onLocationAdded(Location location) {
-                update();
+            public Cursor getPage(long to, long toId, int limit) {
+                return db.getLocationsPage(0, to, toId, false, true, limit);
             }
 
             @Override
-            public void onLocationUpdated() {
-                update();
+            public Cursor getSince(long id) {
+                return db.getLocationsSince(id, false, true);
             }
+        });
+        Cursor cursor = loader.load();
+        final WaypointAdapter adapter = new WaypointAdapter(getActivity(), cursor, listDelete, db, getFragmentManager());
+        lv.setAdapter(adapter);
+        loader.attach(getActivity(), lv, adapter);
 
+        // Handle updates
+        final DatabaseHelper.ChangeListener listener = new DatabaseHelper.ChangeListener() {
             @Override
-            public void onLocationDeleted(long id) {
-                update();
-            }
-
-            private void update() {
-                getActivity().runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        Cursor cursor = db.getLocations(0, Long.MAX_VALUE, false, true, false, 0);
-                        adapter.changeCursor(cursor);
-                    }
-                });
+            public void onChanged(DatabaseHelper.Change change) {
+                loader.update(getActivity(), adapter, change, null);
             }
         };
         DatabaseHelper.addLocationChangedListener(listener);
@@ -1232,7 +1294,7 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
                                                 altitude_type |= BackgroundService.ALTITUDE_KEEP;
 
                                             // Persist location
-                                            new DatabaseHelper(getActivity()).insertLocation(location, altitude_type, name).close();
+                                            DatabaseHelper.getInstance(getActivity()).insertLocation(location, altitude_type, name);
                                             return null;
                                         }
 
@@ -1297,7 +1359,7 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
                         altitude_type |= BackgroundService.ALTITUDE_KEEP;
 
                     // Persist location
-                    new DatabaseHelper(getActivity()).insertLocation(location, altitude_type, name.toString()).close();
+                    DatabaseHelper.getInstance(getActivity()).insertLocation(location, altitude_type, name.toString());
                     return null;
                 }
 
@@ -1572,7 +1634,7 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
                                 new AsyncTask<Object, Object, Object>() {
                                     @Override
                                     protected Object doInBackground(Object... objects) {
-                                        new DatabaseHelper(getActivity()).updateLocationAltitude(id, altitude, altitude_type ^ BackgroundService.ALTITUDE_KEEP);
+                                        DatabaseHelper.getInstance(getActivity()).updateLocationAltitude(id, altitude, altitude_type ^ BackgroundService.ALTITUDE_KEEP);
                                         return null;
                                     }
                                 }.execute();
@@ -1709,7 +1771,7 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
                                             public void onClick(DialogInterface dialog, int which) {
                                                 new AsyncTask<Object, Object, Object>() {
                                                     protected Object doInBackground(Object... params) {
-                                                        new DatabaseHelper(getActivity()).deleteLocation(id).close();
+                                                        DatabaseHelper.getInstance(getActivity()).deleteLocation(id);
                                                         return null;
                                                     }
 
@@ -1760,33 +1822,29 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
         showAltitudeGraph(graph);
 
         // Fill list
-        Cursor cursor = db.getLocations(0, Long.MAX_VALUE, true, true, false, 0);
-        final LocationAdapter adapter = new LocationAdapter(getActivity(), cursor);
-        lv.setAdapter(adapter);
-
-        // Live updates
-        final DatabaseHelper.LocationChangedListener listener = new DatabaseHelper.LocationChangedListener() {
+        final HistoryLoader loader = new HistoryLoader(new HistoryLoader.Source() {
             @Override
-            public void onLocationAdded(Location location) {
-                update();
+            public Cursor getPage(long to, long toId, int limit) {
+                return db.getLocationsPage(0, to, toId, true, true, limit);
             }
 
             @Override
-            public void onLocationUpdated() {
-                update();
+            public Cursor getSince(long id) {
+                return db.getLocationsSince(id, true, true);
             }
+        });
+        Cursor cursor = loader.load();
+        final LocationAdapter adapter = new LocationAdapter(getActivity(), cursor);
+        lv.setAdapter(adapter);
+        loader.attach(getActivity(), lv, adapter);
 
+        // Live updates
+        final DatabaseHelper.ChangeListener listener = new DatabaseHelper.ChangeListener() {
             @Override
-            public void onLocationDeleted(long id) {
-                update();
-            }
-
-            private void update() {
-                getActivity().runOnUiThread(new Runnable() {
+            public void onChanged(DatabaseHelper.Change change) {
+                loader.update(getActivity(), adapter, change, new Runnable() {
                     @Override
                     public void run() {
-                        Cursor cursor = db.getLocations(0, Long.MAX_VALUE, true, true, false, 0);
-                        adapter.changeCursor(cursor);
                         adapter.init(); // Possible new last location
                         showAltitudeGraph(graph);
                     }
@@ -1826,28 +1884,24 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
         long now = new Date().getTime();
         int history = Integer.parseInt(prefs.getString(PREF_ALTITUDE_HISTORY, DEFAULT_ALTITUDE_HISTORY));
         long viewport = prefs.getLong(PREF_LAST_LOCATION_VIEWPORT, 7 * DAY_MS);
-        Cursor cursor = db.getLocations(now - history * DAY_MS, now, true, true, true, 0);
-
-        int colTime = cursor.getColumnIndex("time");
-        int colAltitude = cursor.getColumnIndex("altitude");
-        int colAltitudeType = cursor.getColumnIndex("altitude_type");
+        TrackSlice slice = db.getTrackSlice(now - history * DAY_MS, now, true, true, TrackSlice.ALTITUDE);
 
         int samples = Integer.parseInt(prefs.getString(PREF_ALTITUDE_AVG, DEFAULT_ALTITUDE_AVG));
-        LineGraphSeries<DataPoint> seriesAltitudeReal = new LineGraphSeries<DataPoint>();
-        LineGraphSeries<DataPoint> seriesAltitudeAvgGPS = new LineGraphSeries<DataPoint>();
-        LineGraphSeries<DataPoint> seriesAltitudeAvgPressure = new LineGraphSeries<DataPoint>();
-        LineGraphSeries<DataPoint> seriesAltitudeAvgLookup = new LineGraphSeries<DataPoint>();
+        DataPoint[] real = new DataPoint[slice.count];
+        DataPoint[] avgGPS = new DataPoint[slice.count];
+        DataPoint[] avgPressure = new DataPoint[slice.count];
+        DataPoint[] avgLookup = new DataPoint[slice.count];
 
-        while (cursor.moveToNext()) {
+        for (int i = 0; i < slice.count; i++) {
             data = true;
 
-            long time = cursor.getLong(colTime);
+            long time = slice.time[i];
 
             if (time > maxTime)
                 maxTime = time;
 
-            double alt = (cursor.isNull(colAltitude) ? Double.NaN : cursor.getDouble(colAltitude));
-            int type = (cursor.isNull(colAltitudeType) ? BackgroundService.ALTITUDE_NONE : cursor.getInt(colAltitudeType));
+            double alt = (slice.isNull(i, TrackSlice.NULL_ALTITUDE) ? Double.NaN : slice.altitude[i]);
+            int type = slice.altitudeType[i];
             type &= ~BackgroundService.ALTITUDE_KEEP;
 
             if (!Double.isNaN(alt)) {
@@ -1861,23 +1915,18 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
                     n++;
             }
 
-            seriesAltitudeReal.appendData(new DataPoint(new Date(time), alt), true, Integer.MAX_VALUE);
-
-            if (type == BackgroundService.ALTITUDE_PRESSURE) {
-                seriesAltitudeAvgGPS.appendData(new DataPoint(new Date(time), Double.NaN), true, Integer.MAX_VALUE);
-                seriesAltitudeAvgPressure.appendData(new DataPoint(new Date(time), avg), true, Integer.MAX_VALUE);
-                seriesAltitudeAvgLookup.appendData(new DataPoint(new Date(time), Double.NaN), true, Integer.MAX_VALUE);
-            } else if (type == BackgroundService.ALTITUDE_LOOKUP) {
-                seriesAltitudeAvgGPS.appendData(new DataPoint(new Date(time), Double.NaN), true, Integer.MAX_VALUE);
-                seriesAltitudeAvgPressure.appendData(new DataPoint(new Date(time), Double.NaN), true, Integer.MAX_VALUE);
-                seriesAltitudeAvgLookup.appendData(new DataPoint(new Date(time), avg), true, Integer.MAX_VALUE);
-            } else {
-                seriesAltitudeAvgGPS.appendData(new DataPoint(new Date(time), avg), true, Integer.MAX_VALUE);
-                seriesAltitudeAvgPressure.appendData(new DataPoint(new Date(time), Double.NaN), true, Integer.MAX_VALUE);
-                seriesAltitudeAvgLookup.appendData(new DataPoint(new Date(time), Double.NaN), true, Integer.MAX_VALUE);
-            }
+            real[i] = new DataPoint(time, alt);
+            avgGPS[i] = new DataPoint(time, type != BackgroundService.ALTITUDE_PRESSURE && type != BackgroundService.ALTITUDE_LOOKUP ? avg : Double.NaN);
+            avgPressure[i] = new DataPoint(time, type == BackgroundService.ALTITUDE_PRESSURE ? avg : Double.NaN);
+            avgLookup[i] = new DataPoint(time, type == BackgroundService.ALTITUDE_LOOKUP ? avg : Double.NaN);
         }
 
+        // Bulk construction instead of appending point by point
+        LineGraphSeries<DataPoint> seriesAltitudeReal = new LineGraphSeries<DataPoint>(real);
+        LineGraphSeries<DataPoint> seriesAltitudeAvgGPS = new LineGraphSeries<DataPoint>(avgGPS);
+        LineGraphSeries<DataPoint> seriesAltitudeAvgPressure = new LineGraphSeries<DataPoint>(avgPressure);
+        LineGraphSeries<DataPoint> seriesAltitudeAvgLookup = new LineGraphSeries<DataPoint>(avgLookup);
+
         if (data) {
             graph.removeAllSeries();
 
@@ -2061,32 +2110,29 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
         showActivityGraph(graphView);
 
         // Fill list
-        Cursor cursor = db.getActivityDurations(0, Long.MAX_VALUE, false);
-        final ActivityDurationAdapter adapter = new ActivityDurationAdapter(getActivity(), cursor);
-        lv.setAdapter(adapter);
-
-        // Live updates
-        final DatabaseHelper.ActivityDurationChangedListener listener = new DatabaseHelper.ActivityDurationChangedListener() {
+        final HistoryLoader loader = new HistoryLoader(new HistoryLoader.Source() {
             @Override
-            public void onActivityAdded(long day) {
-                update();
+            public Cursor getPage(long to, long toId, int limit) {
+                return db.getActivityDurationsPage(0, to, toId, limit);
             }
 
             @Override
-            public void onActivityUpdated(long day, int activity, long duration) {
-                update();
-            }
-
-            public void onActivityDeleted(long id) {
-                update();
+            public Cursor getSince(long id) {
+                return null;
             }
+        });
+        Cursor cursor = loader.load();
+        final ActivityDurationAdapter adapter = new ActivityDurationAdapter(getActivity(), cursor);
+        lv.setAdapter(adapter);
+        loader.attach(getActivity(), lv, adapter);
 
-            private void update() {
-                getActivity().runOnUiThread(new Runnable() {
+        // Live updates
+        final DatabaseHelper.ChangeListener listener = new DatabaseHelper.ChangeListener() {
+            @Override
+            public void onChanged(DatabaseHelper.Change change) {
+                loader.update(getActivity(), adapter, change, new Runnable() {
                     @Override
                     public void run() {
-                        Cursor cursor = db.getActivityDurations(0, Long.MAX_VALUE, false);
-                        adapter.changeCursor(cursor);
                         showActivityGraph(graphView);
                     }
                 });
@@ -2330,7 +2376,7 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
                             public void onClick(DialogInterface dialog, int which) {
                                 new AsyncTask<Object, Object, Object>() {
                                     protected Object doInBackground(Object... params) {
-                                        new DatabaseHelper(getActivity()).deleteActivityTypes().close();
+                                        DatabaseHelper.getInstance(getActivity()).deleteActivityTypes();
                                         return null;
                                     }
                                 }.execute();
@@ -2349,31 +2395,27 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
         });
 
         // Fill list
-        Cursor cursor = db.getActivityTypes(0, Long.MAX_VALUE);
-        final ActivityTypeAdapter adapter = new ActivityTypeAdapter(getActivity(), cursor);
-        lv.setAdapter(adapter);
-
-        // Live updates
-        final DatabaseHelper.ActivityTypeChangedListener listener = new DatabaseHelper.ActivityTypeChangedListener() {
+        final HistoryLoader loader = new HistoryLoader(new HistoryLoader.Source() {
             @Override
-            public void onActivityAdded(long time, int activity, int confidence) {
-                update();
+            public Cursor getPage(long to, long toId, int limit) {
+                return db.getActivityTypesPage(0, to, toId, limit);
             }
 
             @Override
-            public void onActivityDeleted(long id) {
-                update();
+            public Cursor getSince(long id) {
+                return db.getActivityTypesSince(id);
             }
+        });
+        Cursor cursor = loader.load();
+        final ActivityTypeAdapter adapter = new ActivityTypeAdapter(getActivity(), cursor);
+        lv.setAdapter(adapter);
+        loader.attach(getActivity(), lv, adapter);
 
-            private void update() {
-                getActivity().runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        Cursor cursor = db.getActivityTypes(0, Long.MAX_VALUE);
-                        adapter.changeCursor(cursor);
-                        lv.setAdapter(adapter);
-                    }
-                });
+        // Live updates
+        final DatabaseHelper.ChangeListener listener = new DatabaseHelper.ChangeListener() {
+            @Override
+            public void onChanged(DatabaseHelper.Change change) {
+                loader.update(getActivity(), adapter, change, null);
             }
         };
         DatabaseHelper.addActivityTypeChangedListener(listener);
@@ -2407,31 +2449,27 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
         tvDate.setText(SimpleDateFormat.getDateInstance(SimpleDateFormat.MEDIUM).format(from));
 
         // Fill list
-        Cursor cursor = db.getActivityLog(from, to, false);
-        final ActivityLogAdapter adapter = new ActivityLogAdapter(getActivity(), cursor);
-        lv.setAdapter(adapter);
-
-        // Live updates
-        final DatabaseHelper.ActivityLogChangedListener listener = new DatabaseHelper.ActivityLogChangedListener() {
+        final HistoryLoader loader = new HistoryLoader(new HistoryLoader.Source() {
             @Override
-            public void onActivityAdded(long start, long finish, int activity) {
-                update();
+            public Cursor getPage(long pageTo, long toId, int limit) {
+                return db.getActivityLogPage(from, Math.min(to, pageTo), toId, limit);
             }
 
             @Override
-            public void onActivityUpdated(long start, long finish, int activity) {
-                update();
+            public Cursor getSince(long id) {
+                return null;
             }
+        }, "start");
+        Cursor cursor = loader.load();
+        final ActivityLogAdapter adapter = new ActivityLogAdapter(getActivity(), cursor);
+        lv.setAdapter(adapter);
+        loader.attach(getActivity(), lv, adapter);
 
-            private void update() {
-                getActivity().runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        Cursor cursor = db.getActivityLog(from, to, false);
-                        adapter.changeCursor(cursor);
-                        lv.setAdapter(adapter);
-                    }
-                });
+        // Live updates
+        final DatabaseHelper.ChangeListener listener = new DatabaseHelper.ChangeListener() {
+            @Override
+            public void onChanged(DatabaseHelper.Change change) {
+                loader.update(getActivity(), adapter, change, null);
             }
         };
         DatabaseHelper.addActivityLogChangedListener(listener);
@@ -2503,37 +2541,36 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
             }
         });
 
+        // Store pending steps
+        StepCounterService.flush(getActivity());
+
         // Show steps bar graph
         showStepGraph(graph);
 
         // Fill list
-        Cursor cursor = db.getSteps(false);
-        final StepCountAdapter adapter = new StepCountAdapter(getActivity(), cursor);
-        lv.setAdapter(adapter);
-
-        // Live updates
-        final DatabaseHelper.StepCountChangedListener listener = new DatabaseHelper.StepCountChangedListener() {
+        final HistoryLoader loader = new HistoryLoader(new HistoryLoader.Source() {
             @Override
-            public void onStepCountAdded(long time, int count) {
-                update();
+            public Cursor getPage(long to, long toId, int limit) {
+                return db.getStepsPage(0, to, toId, limit);
             }
 
             @Override
-            public void onStepCountUpdated(long time, int count) {
-                update();
-            }
-
-            public void onStepDeleted(long id) {
-                update();
+            public Cursor getSince(long id) {
+                return null;
             }
+        });
+        Cursor cursor = loader.load();
+        final StepCountAdapter adapter = new StepCountAdapter(getActivity(), cursor);
+        lv.setAdapter(adapter);
+        loader.attach(getActivity(), lv, adapter);
 
-            private void update() {
-                getActivity().runOnUiThread(new Runnable() {
+        // Live updates
+        final DatabaseHelper.ChangeListener listener = new DatabaseHelper.ChangeListener() {
+            @Override
+            public void onChanged(DatabaseHelper.Change change) {
+                loader.update(getActivity(), adapter, change, new Runnable() {
                     @Override
                     public void run() {
-                        Cursor cursor = db.getSteps(false);
-                        adapter.changeCursor(cursor);
-                        lv.setAdapter(adapter);
                         showStepGraph(graph);
                     }
                 });
@@ -2562,7 +2599,7 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
         long maxTime = 0;
         int maxSteps = 10000;
 
-        Cursor cursor = db.getSteps(true);
+        Cursor cursor = db.getSteps(0, Long.MAX_VALUE, true);
 
         int colTime = cursor.getColumnIndex("time");
         int colCount = cursor.getColumnIndex("count");
@@ -2763,30 +2800,29 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
         });
 
         // Fill list
-        Cursor cursor = db.getWeather(false);
-        final WeatherAdapter adapter = new WeatherAdapter(getActivity(), cursor);
-        lv.setAdapter(adapter);
-
-        // Live updates
-        final DatabaseHelper.WeatherChangedListener listener = new DatabaseHelper.WeatherChangedListener() {
-
+        final HistoryLoader loader = new HistoryLoader(new HistoryLoader.Source() {
             @Override
-            public void onWeatherAdded(long time, long station_id) {
-                update();
+            public Cursor getPage(long to, long toId, int limit) {
+                return db.getWeatherPage(0, to, toId, limit);
             }
 
             @Override
-            public void onWeatherDeleted(long id) {
-                update();
+            public Cursor getSince(long id) {
+                return db.getWeatherSince(id);
             }
+        });
+        Cursor cursor = loader.load();
+        final WeatherAdapter adapter = new WeatherAdapter(getActivity(), cursor);
+        lv.setAdapter(adapter);
+        loader.attach(getActivity(), lv, adapter);
 
-            private void update() {
-                getActivity().runOnUiThread(new Runnable() {
+        // Live updates
+        final DatabaseHelper.ChangeListener listener = new DatabaseHelper.ChangeListener() {
+            @Override
+            public void onChanged(DatabaseHelper.Change change) {
+                loader.update(getActivity(), adapter, change, new Runnable() {
                     @Override
                     public void run() {
-                        Cursor cursor = db.getWeather(false);
-                        adapter.changeCursor(cursor);
-                        lv.setAdapter(adapter);
                         showWeatherGraph(graph);
                     }
                 });
@@ -2852,7 +2888,7 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
         String speed_unit = prefs.getString(PREF_WINDSPEED, DEFAULT_WINDSPEED);
         String rain_unit = prefs.getString(PREF_PRECIPITATION, DEFAULT_PRECIPITATION);
 
-        Cursor cursor = db.getWeather(true);
+        Cursor cursor = db.getWeather(0, Long.MAX_VALUE, true);
 
         int colTime = cursor.getColumnIndex("time");
         int colValue = cursor.getColumnIndex(column);
@@ -3175,7 +3211,7 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
 
     private void weather_forecast() {
         final SharedPreferences prefs = getPreferenceScreen().getSharedPreferences();
-        final Location location = BackgroundService.LocationDeserializer.deserialize(prefs.getString(SettingsFragment.PREF_LAST_LOCATION, null));
+        final Location location = TrackingState.getInstance(getActivity()).getLastLocation();
 
         if (location == null) {
             Toast.makeText(getActivity(), R.string.msg_locunknown, Toast.LENGTH_SHORT).show();
@@ -3200,7 +3236,6 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
         TextView tvPoweredBy = (TextView) viewForecast.findViewById(R.id.tvPoweredBy);
 
         // Create waypoint adapter
-        DatabaseHelper dh = new DatabaseHelper(getActivity());
         final SimpleCursorAdapter adapter = new SimpleCursorAdapter(
                 getActivity(),
                 android.R.layout.simple_spinner_item,
@@ -3209,7 +3244,6 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
                 new int[]{android.R.id.text1},
                 0);
         adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
-        dh.close();
 
         spWaypoint.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
             @Override
@@ -3220,7 +3254,7 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
                     location.setLatitude(cursor.getDouble(cursor.getColumnIndex("latitude")));
                     location.setLongitude(cursor.getDouble(cursor.getColumnIndex("longitude")));
                 } else {
-                    Location lastLocation = BackgroundService.LocationDeserializer.deserialize(prefs.getString(SettingsFragment.PREF_LAST_LOCATION, null));
+                    Location lastLocation = TrackingState.getInstance(getActivity()).getLastLocation();
                     location.setLatitude(lastLocation.getLatitude());
                     location.setLongitude(lastLocation.getLongitude());
                 }
@@ -3233,7 +3267,7 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
             public void onNothingSelected(AdapterView<?> adapterView) {
                 prefs.edit().putLong(PREF_LAST_FORECAST_WAYPOINT, -1).apply();
 
-                Location lastLocation = BackgroundService.LocationDeserializer.deserialize(prefs.getString(SettingsFragment.PREF_LAST_LOCATION, null));
+                Location lastLocation = TrackingState.getInstance(getActivity()).getLastLocation();
                 location.setLatitude(lastLocation.getLatitude());
                 location.setLongitude(lastLocation.getLongitude());
 
@@ -3538,6 +3572,12 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
 
         } else if (PREF_INTERVAL.equals(key))
             pref.setTitle(getString(R.string.title_interval, prefs.getString(key, DEFAULT_INTERVAL)));
+        else if (PREF_SAMPLING_DISTANCE.equals(key))
+            pref.setTitle(getString(R.string.title_sampling_distance, prefs.getString(key, DEFAULT_SAMPLING_DISTANCE)));
+        else if (PREF_SAMPLING_MIN.equals(key))
+            pref.setTitle(getString(R.string.title_sampling_min, prefs.getString(key, DEFAULT_SAMPLING_MIN)));
+        else if (PREF_SAMPLING_MAX.equals(key))
+            pref.setTitle(getString(R.string.title_sampling_max, prefs.getString(key, DEFAULT_SAMPLING_MAX)));
         else if (PREF_TP_ACCURACY.equals(key))
             pref.setTitle(getString(R.string.title_tp_accuracy, prefs.getString(key, DEFAULT_TP_ACCURACY)));
         else if (PREF_WP_ACCURACY.equals(key))
@@ -3552,10 +3592,16 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
             pref.setTitle(getString(R.string.title_inaccurate, prefs.getString(key, DEFAULT_INACCURATE)));
         else if (PREF_NEARBY.equals(key))
             pref.setTitle(getString(R.string.title_nearby, prefs.getString(key, DEFAULT_NEARBY)));
+        else if (PREF_FILTER_SPEED.equals(key))
+            pref.setTitle(getString(R.string.title_filter_speed, prefs.getString(key, DEFAULT_FILTER_SPEED)));
+        else if (PREF_SIMPLIFY_TOLERANCE.equals(key))
+            pref.setTitle(getString(R.string.title_simplify_tolerance, prefs.getString(key, DEFAULT_SIMPLIFY_TOLERANCE)));
         else if (PREF_MINTIME.equals(key))
             pref.setTitle(getString(R.string.title_mintime, prefs.getString(key, DEFAULT_MINTIME)));
         else if (PREF_MINDIST.equals(key))
             pref.setTitle(getString(R.string.title_mindist, prefs.getString(key, DEFAULT_MINDIST)));
+        else if (PREF_ARCHIVE_MONTHS.equals(key))
+            pref.setTitle(getString(R.string.title_archive_months, prefs.getString(key, DEFAULT_ARCHIVE_MONTHS)));
 
         else if (PREF_PASSIVE_BEARING.equals(key))
             pref.setTitle(getString(R.string.title_passive_bearing, prefs.getString(key, DEFAULT_PASSIVE_BEARING)));
@@ -3622,6 +3668,8 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
             pref.setTitle(getString(R.string.title_step_delta, prefs.getString(key, DEFAULT_STEP_DELTA)));
         else if (PREF_STEP_SIZE.equals(key))
             pref.setTitle(getString(R.string.title_step_size, prefs.getString(key, DEFAULT_STEP_SIZE)));
+        else if (PREF_STEP_FLUSH.equals(key))
+            pref.setTitle(getString(R.string.title_step_flush, prefs.getString(key, DEFAULT_STEP_FLUSH)));
         else if (PREF_WEIGHT.equals(key))
             pref.setTitle(getString(R.string.title_weight, prefs.getString(key, DEFAULT_WEIGHT)));
 
@@ -3640,9 +3688,7 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
         else if (PREF_LIFELINE_METERED_INTERVAL.equals(key))
             pref.setTitle(getString(R.string.title_lifeline_interval, prefs.getString(key, DEFAULT_LIFELINE_METERED_INTERVAL)));
         else if (PREF_LIFELINE_STATE.equals(key) || PREF_LIFELINE_LAST.equals(key)) {
-            DatabaseHelper dh = new DatabaseHelper(getActivity());
-            int unsent = dh.getUnsentLocationCount();
-            dh.close();
+            int unsent = db.getUnsentLocationCount();
             long last = prefs.getLong(PREF_LIFELINE_LAST, 0);
             String time = (last == 0 ? "-" : SimpleDateFormat.getDateTimeInstance().format(last));
             pref = findPreference(PREF_LIFELINE_STATE);
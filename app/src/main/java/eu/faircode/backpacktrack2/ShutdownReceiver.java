@@ -24,8 +24,9 @@ public class ShutdownReceiver extends BroadcastReceiver {
         int lastActivity = prefs.getInt(SettingsFragment.PREF_LAST_ACTIVITY, DetectedActivity.STILL);
         long lastTime = prefs.getLong(SettingsFragment.PREF_LAST_ACTIVITY_TIME, -1);
         if (lastTime >= 0) {
-            new DatabaseHelper(context).updateActivity(lastTime, lastActivity, time - lastTime).close();
+            DatabaseHelper.getInstance(context).updateActivity(lastTime, lastActivity, time - lastTime);
             prefs.edit().putLong(SettingsFragment.PREF_LAST_ACTIVITY_TIME, time).apply();
         }
+        DatabaseHelper.getInstance(context).flushActivity();
     }
 }
@@ -13,24 +13,18 @@ import java.util.Date;
 public class StepCountWidget extends AppWidgetProvider {
     @Override
     public void onUpdate(Context context, AppWidgetManager appWidgetManager, int[] appWidgetIds) {
-        DatabaseHelper dh = null;
-        try {
-            dh = new DatabaseHelper(context);
-            int count = dh.getSteps(new Date().getTime());
+        long time = new Date().getTime();
+        int count = DatabaseHelper.getInstance(context).getSteps(time) + StepCounterService.getPendingSteps(time);
 
-            Intent riMain = new Intent(context, SettingsActivity.class);
-            riMain.putExtra(SettingsFragment.EXTRA_ACTION, SettingsFragment.ACTION_STEPS);
-            PendingIntent piMain = PendingIntent.getActivity(context, BackgroundService.REQUEST_STEPS, riMain, PendingIntent.FLAG_CANCEL_CURRENT);
+        Intent riMain = new Intent(context, SettingsActivity.class);
+        riMain.putExtra(SettingsFragment.EXTRA_ACTION, SettingsFragment.ACTION_STEPS);
+        PendingIntent piMain = PendingIntent.getActivity(context, BackgroundService.REQUEST_STEPS, riMain, PendingIntent.FLAG_CANCEL_CURRENT);
 
-            for (int id : appWidgetIds) {
-                RemoteViews views = new RemoteViews(context.getPackageName(), R.layout.step_widget);
-                views.setOnClickPendingIntent(R.id.llCount, piMain);
-                views.setTextViewText(R.id.tvCount, Integer.toString(count));
-                appWidgetManager.updateAppWidget(id, views);
-            }
-        } finally {
-            if (dh != null)
-                dh.close();
+        for (int id : appWidgetIds) {
+            RemoteViews views = new RemoteViews(context.getPackageName(), R.layout.step_widget);
+            views.setOnClickPendingIntent(R.id.llCount, piMain);
+            views.setTextViewText(R.id.tvCount, Integer.toString(count));
+            appWidgetManager.updateAppWidget(id, views);
         }
     }
 
@@ -2,8 +2,10 @@ package eu.faircode.backpacktrack2;
 
 import android.annotation.TargetApi;
 import android.app.Service;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
@@ -20,6 +22,16 @@ import java.util.Date;
 public class StepCounterService extends Service {
     private static final String TAG = "BPT2.StepCounterService";
 
+    private static final long REFRESH_INTERVAL = 60 * 1000L; // milliseconds
+
+    // Steps counted but not stored yet
+    private static int mPendingSteps = 0;
+    private static long mPendingTime = -1;
+    private static long mLastFlush = 0;
+    private static long mLastRefresh = 0;
+
+    private int mLastCount = -1;
+
     public StepCounterService() {
     }
 
@@ -31,24 +43,36 @@ public class StepCounterService extends Service {
 
             // Check delta
             SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(StepCounterService.this);
-            int last = prefs.getInt(SettingsFragment.PREF_LAST_STEP_COUNT, -1);
             int delta = Integer.parseInt(prefs.getString(SettingsFragment.PREF_STEP_DELTA, SettingsFragment.DEFAULT_STEP_DELTA));
-            if (last < 0 || steps - last >= delta) {
-                // Update last step count
-                prefs.edit().putInt(SettingsFragment.PREF_LAST_STEP_COUNT, steps).apply();
+            if (mLastCount < 0 || steps - mLastCount >= delta) {
+                int stepped = steps - mLastCount;
+                boolean first = (mLastCount < 0);
+                mLastCount = steps;
+
+                if (!first) {
+                    long time = new Date().getTime();
+
+                    // Store steps of a previous day first
+                    boolean rollover;
+                    synchronized (StepCounterService.class) {
+                        rollover = (mPendingTime >= 0 && DatabaseHelper.getDay(mPendingTime) != DatabaseHelper.getDay(time));
+                    }
+                    if (rollover)
+                        flush(StepCounterService.this);
+
+                    synchronized (StepCounterService.class) {
+                        mPendingSteps += stepped;
+                        mPendingTime = time;
+                    }
 
-                if (last >= 0) {
                     // Update total step count
-                    int stepped = steps - last;
-                    new DatabaseHelper(StepCounterService.this).updateSteps(new Date().getTime(), stepped).close();
+                    int interval = Integer.parseInt(prefs.getString(SettingsFragment.PREF_STEP_FLUSH, SettingsFragment.DEFAULT_STEP_FLUSH));
+                    if (time - mLastFlush >= interval * 1000L)
+                        flush(StepCounterService.this);
 
                     // Update UI
-                    StepCountWidget.updateWidgets(StepCounterService.this);
-
-                    // Send state changed intent
-                    Intent intent = new Intent(StepCounterService.this, BackgroundService.class);
-                    intent.setAction(BackgroundService.ACTION_STATE_CHANGED);
-                    startService(intent);
+                    if (time - mLastRefresh >= REFRESH_INTERVAL)
+                        refresh(StepCounterService.this);
                 }
             }
         }
@@ -59,13 +83,53 @@ public class StepCounterService extends Service {
         }
     };
 
+    private BroadcastReceiver mScreenOnReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            flush(context);
+            refresh(context);
+        }
+    };
+
+    public static void flush(Context context) {
+        int steps;
+        long time;
+        synchronized (StepCounterService.class) {
+            steps = mPendingSteps;
+            time = mPendingTime;
+            mPendingSteps = 0;
+            mPendingTime = -1;
+            mLastFlush = new Date().getTime();
+        }
+
+        if (steps > 0) {
+            Log.i(TAG, "Storing steps=" + steps);
+            DatabaseHelper.getInstance(context).updateSteps(time, steps);
+        }
+    }
+
+    public static synchronized int getPendingSteps(long time) {
+        if (mPendingTime >= 0 && DatabaseHelper.getDay(mPendingTime) == DatabaseHelper.getDay(time))
+            return mPendingSteps;
+        else
+            return 0;
+    }
+
+    private static void refresh(Context context) {
+        mLastRefresh = new Date().getTime();
+
+        StepCountWidget.updateWidgets(context);
+
+        // Send state changed intent
+        Intent intent = new Intent(context, BackgroundService.class);
+        intent.setAction(BackgroundService.ACTION_STATE_CHANGED);
+        context.startService(intent);
+    }
+
     @Override
     public void onCreate() {
         super.onCreate();
 
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
-        prefs.edit().remove(SettingsFragment.PREF_LAST_STEP_COUNT).apply();
-
         SensorManager sm = (SensorManager) getSystemService(Context.SENSOR_SERVICE);
         Sensor stepCounter = sm.getDefaultSensor(Sensor.TYPE_STEP_COUNTER);
         if (stepCounter == null)
@@ -74,6 +138,8 @@ public class StepCounterService extends Service {
             Log.w(TAG, "Registering step counter listener");
             sm.registerListener(mStepCounterListener, stepCounter, SensorManager.SENSOR_DELAY_NORMAL);
         }
+
+        registerReceiver(mScreenOnReceiver, new IntentFilter(Intent.ACTION_SCREEN_ON));
     }
 
     @Override
@@ -82,8 +148,8 @@ public class StepCounterService extends Service {
         SensorManager sm = (SensorManager) getSystemService(Context.SENSOR_SERVICE);
         sm.unregisterListener(mStepCounterListener);
 
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
-        prefs.edit().remove(SettingsFragment.PREF_LAST_STEP_COUNT).apply();
+        unregisterReceiver(mScreenOnReceiver);
+        flush(this);
 
         super.onDestroy();
     }
@@ -0,0 +1,154 @@
+package eu.faircode.backpacktrack2;
+
+import android.location.Location;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Opening window simplification at ingest time: the last stored trackpoint stays pending
+// and is moved to each new location as long as all locations since the anchor
+// are within the tolerance of the segment from the anchor to the new location
+public class TrackSimplifier {
+    private static final String TAG = "BPT2.Simplifier";
+
+    private static final double EARTH_RADIUS = 6371000; // meters
+    private static final int MAX_WINDOW = 200; // locations
+    private static final long PROVISIONAL = Long.MAX_VALUE - Integer.MAX_VALUE;
+
+    private static TrackSimplifier mInstance = null;
+
+    private Location anchor = null;
+    private long pendingId = -1;
+    private List<Location> window = new ArrayList<>();
+
+    private int statOffered = 0;
+    private int statRevised = 0;
+
+    public static synchronized TrackSimplifier getInstance() {
+        if (mInstance == null)
+            mInstance = new TrackSimplifier();
+        return mInstance;
+    }
+
+    // Returns the ID of the trackpoint to revise or -1 to insert, tolerance in meters
+    public synchronized long getRevisable(Location location, int tolerance) {
+        statOffered++;
+        if (anchor == null || pendingId < 0 || window.size() >= MAX_WINDOW ||
+                location.getTime() <= window.get(window.size() - 1).getTime())
+            return -1;
+
+        for (Location intermediate : window)
+            if (crossTrack(anchor, location, intermediate) > tolerance)
+                return -1;
+
+        return pendingId;
+    }
+
+    // Called after the location was stored, either as revision or as a new trackpoint
+    public synchronized void stored(Location location, long id, boolean revised) {
+        if (revised) {
+            statRevised++;
+            window.add(location);
+            return;
+        }
+
+        if (id < 0) {
+            reset();
+            return;
+        }
+        if (anchor == null) {
+            commit(location);
+            return;
+        }
+
+        // The pending trackpoint becomes the new anchor
+        if (window.size() > 0)
+            anchor = window.get(window.size() - 1);
+        window.clear();
+        window.add(location);
+        pendingId = id;
+    }
+
+    // The location is stored and should be kept
+    public synchronized void commit(Location location) {
+        anchor = location;
+        pendingId = -1;
+        window.clear();
+    }
+
+    // IDs of trackpoints in a batch which is not inserted yet, never a row ID in practice
+    public static long getProvisionalId(int index) {
+        return PROVISIONAL + index;
+    }
+
+    public static boolean isProvisional(long id) {
+        return (id >= PROVISIONAL);
+    }
+
+    public static int getProvisionalIndex(long id) {
+        return (int) (id - PROVISIONAL);
+    }
+
+    // Called after a batch was inserted, id -1 when the insert failed
+    public synchronized void resolve(long provisional, long id) {
+        if (pendingId != provisional)
+            return;
+        if (id < 0)
+            reset();
+        else
+            pendingId = id;
+    }
+
+    public synchronized void reset() {
+        anchor = null;
+        pendingId = -1;
+        window.clear();
+    }
+
+    public synchronized String getStatistics(boolean reset) {
+        String statistics = "Simplifier offered=" + statOffered + " revised=" + statRevised;
+        if (reset) {
+            statOffered = 0;
+            statRevised = 0;
+        }
+        return statistics;
+    }
+
+    // Distance of point to the segment from a to b in meters
+    static double crossTrack(Location a, Location b, Location point) {
+        double cos = Math.cos(Math.toRadians(a.getLatitude()));
+        double bx = Math.toRadians(b.getLongitude() - a.getLongitude()) * EARTH_RADIUS * cos;
+        double by = Math.toRadians(b.getLatitude() - a.getLatitude()) * EARTH_RADIUS;
+        double px = Math.toRadians(point.getLongitude() - a.getLongitude()) * EARTH_RADIUS * cos;
+        double py = Math.toRadians(point.getLatitude() - a.getLatitude()) * EARTH_RADIUS;
+
+        double length2 = bx * bx + by * by;
+        double t = (length2 == 0 ? 0 : (px * bx + py * by) / length2);
+        t = Math.max(0, Math.min(1, t));
+        double dx = px - t * bx;
+        double dy = py - t * by;
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    // Number of trackpoints the simplification would keep of a recorded track, development builds only
+    public static int replay(List<Location> track, int tolerance) {
+        if (track.size() < 3)
+            return track.size();
+
+        int kept = 1;
+        int anchor = 0;
+        for (int i = 2; i < track.size(); i++)
+            for (int j = anchor + 1; j < i; j++)
+                if (i - anchor > MAX_WINDOW || crossTrack(track.get(anchor), track.get(i), track.get(j)) > tolerance) {
+                    kept++;
+                    anchor = i - 1;
+                    break;
+                }
+        kept++;
+
+        Log.i(TAG, "Replay tolerance=" + tolerance + "m locations=" + track.size() + " kept=" + kept +
+                " ratio=" + (track.size() * 10 / kept) / 10f);
+        return kept;
+    }
+}
@@ -0,0 +1,71 @@
+package eu.faircode.backpacktrack2;
+
+// Locations of a time range in parallel primitive arrays, loaded by DatabaseHelper.getTrackSlice
+public class TrackSlice {
+    // Projection
+    public static final int ID = 1;
+    public static final int POSITION = 1 << 1;
+    public static final int ALTITUDE = 1 << 2;
+    public static final int ACCURACY = 1 << 3;
+    public static final int SPEED = 1 << 4;
+    public static final int BEARING = 1 << 5;
+    public static final int PROXIMITY = 1 << 6;
+
+    // Null and flag bits per point
+    public static final int NULL_ALTITUDE = 1;
+    public static final int NULL_ACCURACY = 1 << 1;
+    public static final int NULL_SPEED = 1 << 2;
+    public static final int NULL_BEARING = 1 << 3;
+    public static final int NULL_PROXIMITY = 1 << 4;
+    public static final int WAYPOINT = 1 << 5;
+
+    public int projection;
+    public int count = 0;
+
+    // Always loaded
+    public long[] time;
+    public int[] flags;
+
+    // Loaded according to projection, null otherwise
+    public long[] id;
+    public double[] latitude;
+    public double[] longitude;
+    public double[] altitude;
+    public int[] altitudeType;
+    public float[] accuracy;
+    public float[] speed;
+    public float[] bearing;
+    public long[] proximity;
+
+    public TrackSlice(int projection, int capacity) {
+        this.projection = projection;
+        time = new long[capacity];
+        flags = new int[capacity];
+        if ((projection & ID) != 0)
+            id = new long[capacity];
+        if ((projection & POSITION) != 0) {
+            latitude = new double[capacity];
+            longitude = new double[capacity];
+        }
+        if ((projection & ALTITUDE) != 0) {
+            altitude = new double[capacity];
+            altitudeType = new int[capacity];
+        }
+        if ((projection & ACCURACY) != 0)
+            accuracy = new float[capacity];
+        if ((projection & SPEED) != 0)
+            speed = new float[capacity];
+        if ((projection & BEARING) != 0)
+            bearing = new float[capacity];
+        if ((projection & PROXIMITY) != 0)
+            proximity = new long[capacity];
+    }
+
+    public boolean isNull(int index, int bit) {
+        return ((flags[index] & bit) != 0);
+    }
+
+    public boolean isWaypoint(int index) {
+        return ((flags[index] & WAYPOINT) != 0);
+    }
+}
@@ -0,0 +1,362 @@
+package eu.faircode.backpacktrack2;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.location.Location;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.preference.PreferenceManager;
+import android.support.v4.util.AtomicFile;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+// Last, best and stationary location with the stationary average, kept in memory
+// and persisted as one binary record, in the background and only when changed
+public class TrackingState {
+    private static final String TAG = "BPT2.State";
+
+    private static final String FILE = "tracking.state";
+    private static final int VERSION = 1;
+
+    private static final int HAS_ALTITUDE = 1;
+    private static final int HAS_SPEED = 1 << 1;
+    private static final int HAS_BEARING = 1 << 2;
+    private static final int HAS_ACCURACY = 1 << 3;
+
+    private static TrackingState mInstance = null;
+
+    private static HandlerThread hthread = null;
+    private static Handler handler = null;
+
+    private AtomicFile file;
+    private Location lastLocation = null;
+    private Location bestLocation = null;
+    private Location lastStationary = null;
+
+    // Count zero means no average
+    private int stationaryCount = 0;
+    private float stationaryLatitude;
+    private float stationaryLongitude;
+    private float stationaryAltitude;
+
+    private boolean persistScheduled = false;
+
+    static {
+        hthread = new HandlerThread("TrackingState");
+        hthread.start();
+        handler = new Handler(hthread.getLooper());
+    }
+
+    private final Runnable persister = new Runnable() {
+        @Override
+        public void run() {
+            persist();
+        }
+    };
+
+    public static synchronized TrackingState getInstance(Context context) {
+        if (mInstance == null)
+            mInstance = new TrackingState(context.getApplicationContext());
+        return mInstance;
+    }
+
+    private TrackingState(Context context) {
+        file = new AtomicFile(new File(context.getFilesDir(), FILE));
+        if (file.getBaseFile().exists())
+            restore();
+        else
+            importPreferences(context);
+    }
+
+    // Locations are copied in and out, callers are free to modify them
+
+    public synchronized Location getLastLocation() {
+        return copy(lastLocation);
+    }
+
+    public synchronized void setLastLocation(Location location) {
+        if (!same(lastLocation, location)) {
+            lastLocation = copy(location);
+            changed();
+        }
+    }
+
+    public synchronized Location getBestLocation() {
+        return copy(bestLocation);
+    }
+
+    public synchronized void setBestLocation(Location location) {
+        if (!same(bestLocation, location)) {
+            bestLocation = copy(location);
+            changed();
+        }
+    }
+
+    public synchronized Location getLastStationary() {
+        return copy(lastStationary);
+    }
+
+    public synchronized void setLastStationary(Location location) {
+        if (!same(lastStationary, location)) {
+            lastStationary = copy(location);
+            changed();
+        }
+    }
+
+    // Replaces the position of the stationary location by the average, if any
+    public synchronized void applyStationaryAverage(Location stationary) {
+        if (stationaryCount > 0) {
+            stationary.setLatitude(stationaryLatitude);
+            stationary.setLongitude(stationaryLongitude);
+            stationary.setAltitude(stationaryAltitude);
+        }
+    }
+
+    public synchronized void addStationaryAverage(Location stationary, Location location) {
+        int count = (stationaryCount > 0 ? stationaryCount : 1);
+        float lat = (stationaryCount > 0 ? stationaryLatitude : (float) stationary.getLatitude());
+        float lon = (stationaryCount > 0 ? stationaryLongitude : (float) stationary.getLongitude());
+        float alt = (stationaryCount > 0 ? stationaryAltitude : (float) stationary.getAltitude());
+
+        stationaryLatitude = (lat * count + (float) location.getLatitude()) / (count + 1);
+        stationaryLongitude = (lon * count + (float) location.getLongitude()) / (count + 1);
+        stationaryAltitude = (alt * count + (float) location.getAltitude()) / (count + 1);
+        stationaryCount = count + 1;
+        changed();
+    }
+
+    public synchronized void clearStationaryAverage() {
+        if (stationaryCount > 0) {
+            stationaryCount = 0;
+            changed();
+        }
+    }
+
+    private void changed() {
+        if (!persistScheduled) {
+            persistScheduled = true;
+            handler.post(persister);
+        }
+    }
+
+    private void persist() {
+        byte[] record;
+        synchronized (this) {
+            persistScheduled = false;
+            try {
+                record = encode();
+            } catch (IOException ex) {
+                Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+                return;
+            }
+        }
+
+        FileOutputStream fos = null;
+        try {
+            fos = file.startWrite();
+            fos.write(record);
+            file.finishWrite(fos);
+        } catch (Throwable ex) {
+            Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+            if (fos != null)
+                file.failWrite(fos);
+        }
+    }
+
+    private void restore() {
+        try {
+            decode(file.readFully());
+            Log.i(TAG, "Restored last=" + lastLocation + " best=" + bestLocation + " stationary=" + lastStationary);
+        } catch (Throwable ex) {
+            Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+        }
+    }
+
+    private void importPreferences(Context context) {
+        // One time migration of the JSON serialized locations
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        try {
+            lastLocation = BackgroundService.LocationDeserializer.deserialize(prefs.getString(SettingsFragment.PREF_LAST_LOCATION, null));
+            bestLocation = BackgroundService.LocationDeserializer.deserialize(prefs.getString(SettingsFragment.PREF_BEST_LOCATION, null));
+            lastStationary = BackgroundService.LocationDeserializer.deserialize(prefs.getString(SettingsFragment.PREF_LAST_STATIONARY, null));
+            if (lastStationary != null && prefs.contains(SettingsFragment.PREF_LAST_STATIONARY_AVG)) {
+                stationaryCount = prefs.getInt(SettingsFragment.PREF_LAST_STATIONARY_AVG, 1);
+                stationaryLatitude = prefs.getFloat(SettingsFragment.PREF_LAST_STATIONARY_LAT, (float) lastStationary.getLatitude());
+                stationaryLongitude = prefs.getFloat(SettingsFragment.PREF_LAST_STATIONARY_LON, (float) lastStationary.getLongitude());
+                stationaryAltitude = prefs.getFloat(SettingsFragment.PREF_LAST_STATIONARY_ALT, (float) lastStationary.getAltitude());
+            }
+            Log.i(TAG, "Imported last=" + lastLocation + " best=" + bestLocation + " stationary=" + lastStationary);
+        } catch (Throwable ex) {
+            Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+        }
+        persist();
+
+        prefs.edit()
+                .remove(SettingsFragment.PREF_LAST_LOCATION)
+                .remove(SettingsFragment.PREF_BEST_LOCATION)
+                .remove(SettingsFragment.PREF_LAST_STATIONARY)
+                .remove(SettingsFragment.PREF_LAST_STATIONARY_AVG)
+                .remove(SettingsFragment.PREF_LAST_STATIONARY_LAT)
+                .remove(SettingsFragment.PREF_LAST_STATIONARY_LON)
+                .remove(SettingsFragment.PREF_LAST_STATIONARY_ALT)
+                .apply();
+    }
+
+    private byte[] encode() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeInt(VERSION);
+        writeLocation(out, lastLocation);
+        writeLocation(out, bestLocation);
+        writeLocation(out, lastStationary);
+        out.writeInt(stationaryCount);
+        out.writeFloat(stationaryLatitude);
+        out.writeFloat(stationaryLongitude);
+        out.writeFloat(stationaryAltitude);
+        out.flush();
+        return bos.toByteArray();
+    }
+
+    private void decode(byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        if (in.readInt() != VERSION)
+            throw new IOException("Unknown state version");
+        lastLocation = readLocation(in);
+        bestLocation = readLocation(in);
+        lastStationary = readLocation(in);
+        stationaryCount = in.readInt();
+        stationaryLatitude = in.readFloat();
+        stationaryLongitude = in.readFloat();
+        stationaryAltitude = in.readFloat();
+    }
+
+    private static void writeLocation(DataOutputStream out, Location location) throws IOException {
+        out.writeBoolean(location != null);
+        if (location == null)
+            return;
+
+        int flags = 0;
+        if (location.hasAltitude())
+            flags |= HAS_ALTITUDE;
+        if (location.hasSpeed())
+            flags |= HAS_SPEED;
+        if (location.hasBearing())
+            flags |= HAS_BEARING;
+        if (location.hasAccuracy())
+            flags |= HAS_ACCURACY;
+
+        out.writeUTF(location.getProvider() == null ? "" : location.getProvider());
+        out.writeLong(location.getTime());
+        out.writeDouble(location.getLatitude());
+        out.writeDouble(location.getLongitude());
+        out.writeByte(flags);
+        if ((flags & HAS_ALTITUDE) != 0)
+            out.writeDouble(location.getAltitude());
+        if ((flags & HAS_SPEED) != 0)
+            out.writeFloat(location.getSpeed());
+        if ((flags & HAS_BEARING) != 0)
+            out.writeFloat(location.getBearing());
+        if ((flags & HAS_ACCURACY) != 0)
+            out.writeFloat(location.getAccuracy());
+    }
+
+    private static Location readLocation(DataInputStream in) throws IOException {
+        if (!in.readBoolean())
+            return null;
+
+        Location location = new Location(in.readUTF());
+        location.setTime(in.readLong());
+        location.setLatitude(in.readDouble());
+        location.setLongitude(in.readDouble());
+        int flags = in.readByte();
+        if ((flags & HAS_ALTITUDE) != 0)
+            location.setAltitude(in.readDouble());
+        if ((flags & HAS_SPEED) != 0)
+            location.setSpeed(in.readFloat());
+        if ((flags & HAS_BEARING) != 0)
+            location.setBearing(in.readFloat());
+        if ((flags & HAS_ACCURACY) != 0)
+            location.setAccuracy(in.readFloat());
+        return location;
+    }
+
+    private static Location copy(Location location) {
+        return (location == null ? null : new Location(location));
+    }
+
+    private static boolean same(Location a, Location b) {
+        if (a == null || b == null)
+            return (a == b);
+        return (a.getTime() == b.getTime() &&
+                a.getLatitude() == b.getLatitude() &&
+                a.getLongitude() == b.getLongitude() &&
+                a.getAltitude() == b.getAltitude() &&
+                a.getAccuracy() == b.getAccuracy() &&
+                a.getSpeed() == b.getSpeed() &&
+                a.getBearing() == b.getBearing() &&
+                a.hasAltitude() == b.hasAltitude() &&
+                a.hasAccuracy() == b.hasAccuracy() &&
+                a.hasSpeed() == b.hasSpeed() &&
+                a.hasBearing() == b.hasBearing() &&
+                (a.getProvider() == null ? b.getProvider() == null : a.getProvider().equals(b.getProvider())));
+    }
+
+    // Compares the CPU time and allocations per fix of the former Gson round trip through the preferences
+    // with the journal format and the in-memory copy, development builds only
+    public static String benchmark(Context context, Location location, int iterations) {
+        SharedPreferences prefs = context.getSharedPreferences("benchmark", Context.MODE_PRIVATE);
+        try {
+            Debug.startAllocCounting();
+
+            Debug.resetThreadAllocCount();
+            long start = Debug.threadCpuTimeNanos();
+            for (int i = 0; i < iterations; i++) {
+                prefs.edit().putString(SettingsFragment.PREF_LAST_LOCATION, BackgroundService.LocationSerializer.serialize(location)).apply();
+                BackgroundService.LocationDeserializer.deserialize(prefs.getString(SettingsFragment.PREF_LAST_LOCATION, null));
+            }
+            long prefsCpu = Debug.threadCpuTimeNanos() - start;
+            int prefsAllocs = Debug.getThreadAllocCount();
+
+            Debug.resetThreadAllocCount();
+            start = Debug.threadCpuTimeNanos();
+            for (int i = 0; i < iterations; i++) {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream(64);
+                DataOutputStream out = new DataOutputStream(bos);
+                writeLocation(out, location);
+                out.flush();
+                readLocation(new DataInputStream(new ByteArrayInputStream(bos.toByteArray())));
+            }
+            long binaryCpu = Debug.threadCpuTimeNanos() - start;
+            int binaryAllocs = Debug.getThreadAllocCount();
+
+            Debug.resetThreadAllocCount();
+            start = Debug.threadCpuTimeNanos();
+            for (int i = 0; i < iterations; i++)
+                copy(location);
+            long memoryCpu = Debug.threadCpuTimeNanos() - start;
+            int memoryAllocs = Debug.getThreadAllocCount();
+
+            String result = "Tracking state per fix over " + iterations + " iterations" +
+                    " prefs=" + (prefsCpu / iterations) + "ns/" + (prefsAllocs / iterations) + " allocs" +
+                    " binary=" + (binaryCpu / iterations) + "ns/" + (binaryAllocs / iterations) + " allocs" +
+                    " memory=" + (memoryCpu / iterations) + "ns/" + (memoryAllocs / iterations) + " allocs";
+            Log.i(TAG, result);
+            return result;
+        } catch (Throwable ex) {
+            Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+            return ex.toString();
+        } finally {
+            Debug.stopAllocCounting();
+            prefs.edit().clear().apply();
+        }
+    }
+}
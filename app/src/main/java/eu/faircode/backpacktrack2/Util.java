@@ -34,6 +34,7 @@ import com.google.android.gms.common.GooglePlayServicesUtil;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
@@ -196,6 +197,48 @@ public class Util {
         task.execute();
     }
 
+    public static void sendMetrics(final Context context) {
+        AsyncTask task = new AsyncTask<Object, Object, Intent>() {
+            @Override
+            protected Intent doInBackground(Object... objects) {
+                File metricsFolder = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS);
+                metricsFolder.mkdirs();
+                File metricsFile = new File(metricsFolder, "metrics.csv");
+                FileWriter writer = null;
+                try {
+                    writer = new FileWriter(metricsFile);
+                    ActionMetrics.getInstance(context).writeCsv(writer);
+                } catch (Throwable ex) {
+                    Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+                    return null;
+                } finally {
+                    if (writer != null)
+                        try {
+                            writer.close();
+                        } catch (IOException ignored) {
+                        }
+                }
+
+                Intent sendCsv = new Intent(Intent.ACTION_SEND);
+                sendCsv.setType("text/csv");
+                sendCsv.putExtra(Intent.EXTRA_SUBJECT, "BackPackTrack II metrics");
+                sendCsv.putExtra(Intent.EXTRA_STREAM, Uri.fromFile(metricsFile));
+                return sendCsv;
+            }
+
+            @Override
+            protected void onPostExecute(Intent sendCsv) {
+                if (sendCsv != null)
+                    try {
+                        context.startActivity(sendCsv);
+                    } catch (Throwable ex) {
+                        Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+                    }
+            }
+        };
+        task.execute();
+    }
+
     private static StringBuilder getLogcat() {
         String pid = Integer.toString(android.os.Process.myPid());
         StringBuilder builder = new StringBuilder();
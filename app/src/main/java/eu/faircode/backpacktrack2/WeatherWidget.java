@@ -20,42 +20,36 @@ public class WeatherWidget extends AppWidgetProvider {
 
     @Override
     public void onUpdate(Context context, AppWidgetManager appWidgetManager, int[] appWidgetIds) {
-        DatabaseHelper dh = null;
-        try {
-            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-            String temperature_unit = prefs.getString(SettingsFragment.PREF_TEMPERATURE, SettingsFragment.DEFAULT_TEMPERATURE);
-            String report = prefs.getString(SettingsFragment.PREF_LAST_WEATHER_REPORT, null);
-            Weather weather = (report == null ? null : Weather.deserialize(report));
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        String temperature_unit = prefs.getString(SettingsFragment.PREF_TEMPERATURE, SettingsFragment.DEFAULT_TEMPERATURE);
+        String report = prefs.getString(SettingsFragment.PREF_LAST_WEATHER_REPORT, null);
+        Weather weather = (report == null ? null : Weather.deserialize(report));
 
-            Intent riMain = new Intent(context, SettingsActivity.class);
-            riMain.putExtra(SettingsFragment.EXTRA_ACTION, SettingsFragment.ACTION_WEATHER);
-            PendingIntent piMain = PendingIntent.getActivity(context, BackgroundService.REQUEST_WAYPOINT, riMain, PendingIntent.FLAG_CANCEL_CURRENT);
+        Intent riMain = new Intent(context, SettingsActivity.class);
+        riMain.putExtra(SettingsFragment.EXTRA_ACTION, SettingsFragment.ACTION_WEATHER);
+        PendingIntent piMain = PendingIntent.getActivity(context, BackgroundService.REQUEST_WAYPOINT, riMain, PendingIntent.FLAG_CANCEL_CURRENT);
 
-            for (int id : appWidgetIds) {
-                RemoteViews views = new RemoteViews(context.getPackageName(), R.layout.weather_widget);
-                views.setOnClickPendingIntent(R.id.llWeather, piMain);
-                if (weather != null && weather.isValid(context)) {
-                    // Show icon
-                    views.setImageViewResource(R.id.ivWeather, BackgroundService.getWeatherIcon(weather, false, context));
+        for (int id : appWidgetIds) {
+            RemoteViews views = new RemoteViews(context.getPackageName(), R.layout.weather_widget);
+            views.setOnClickPendingIntent(R.id.llWeather, piMain);
+            if (weather != null && weather.isValid(context)) {
+                // Show icon
+                views.setImageViewResource(R.id.ivWeather, BackgroundService.getWeatherIcon(weather, false, context));
 
-                    // Show temperature
-                    if (Double.isNaN(weather.temperature))
-                        views.setTextViewText(R.id.tvDegrees, "");
-                    else {
-                        double temperature = weather.temperature;
-                        if ("f".equals(temperature_unit))
-                            temperature = temperature * 9 / 5 + 32;
-                        views.setTextViewText(R.id.tvDegrees, DF.format(temperature) + "°");
-                    }
-                } else {
-                    views.setImageViewResource(R.id.ivWeather, android.R.drawable.ic_menu_help);
-                    views.setTextViewText(R.id.tvDegrees, "?");
+                // Show temperature
+                if (Double.isNaN(weather.temperature))
+                    views.setTextViewText(R.id.tvDegrees, "");
+                else {
+                    double temperature = weather.temperature;
+                    if ("f".equals(temperature_unit))
+                        temperature = temperature * 9 / 5 + 32;
+                    views.setTextViewText(R.id.tvDegrees, DF.format(temperature) + "°");
                 }
-                appWidgetManager.updateAppWidget(id, views);
+            } else {
+                views.setImageViewResource(R.id.ivWeather, android.R.drawable.ic_menu_help);
+                views.setTextViewText(R.id.tvDegrees, "?");
             }
-        } finally {
-            if (dh != null)
-                dh.close();
+            appWidgetManager.updateAppWidget(id, views);
         }
     }
 
@@ -0,0 +1,60 @@
+package eu.faircode.backpacktrack2;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+// Serializes the writers of the database, SQLite has a single writer connection anyway; counts contention
+public class WriteLock {
+    private String name;
+    private ReentrantLock lock = new ReentrantLock();
+
+    // Updated while holding the lock
+    private volatile long count = 0;
+    private volatile long contended = 0;
+    private volatile long totalWait = 0;
+    private volatile long maxWait = 0;
+
+    public WriteLock(String name) {
+        this.name = name;
+    }
+
+    public void lock() {
+        if (lock.tryLock()) {
+            count++;
+            return;
+        }
+
+        long start = System.nanoTime();
+        lock.lock();
+        long wait = System.nanoTime() - start;
+        count++;
+        contended++;
+        totalWait += wait;
+        if (wait > maxWait)
+            maxWait = wait;
+    }
+
+    public void unlock() {
+        lock.unlock();
+    }
+
+    public void reset() {
+        lock.lock();
+        try {
+            count = 0;
+            contended = 0;
+            totalWait = 0;
+            maxWait = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name +
+                " locks=" + count +
+                " contended=" + contended +
+                " wait=" + (totalWait / 1000000L) + " ms" +
+                " max=" + (maxWait / 1000000L) + " ms";
+    }
+}